@@ -0,0 +1,100 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * How a blob is stored when it isn't stored verbatim.
+ * <p>
+ * An encoded blob starts with one byte naming its codec, followed by the
+ * contents as that codec wrote them:
+ * <pre>
+ *     codec     1 byte   DEFLATE
+ *     data      the contents compressed by a java.util.zip.Deflater
+ * </pre>
+ * or
+ * <pre>
+ *     codec     1 byte   DELTA
+ *     base      20 bytes sha1 of the blob the delta applies to
+ *     depth     1 byte   how many deltas it takes to rebuild this blob
+ *     length    4 bytes  length of the contents
+ *     data      Delta instructions
+ * </pre>
+ * or, for a file cut into chunks by a Chunker,
+ * <pre>
+ *     codec     1 byte   CHUNKED
+ *     length    8 bytes  length of the contents
+ *     count     4 bytes  number of chunks
+ *     chunks    for every chunk, in order: 20 bytes sha1 of its blob, 4 bytes length
+ * </pre>
+ * Deltas and chunks need the object store to find the blobs they refer to,
+ * so ObjectStore reads those itself, decode() only handles the codecs that
+ * stand on their own. Whatever the codec, the sha1 of an encoded blob is that
+ * of the plain contents, so the encoding never shows outside of the object store.
+ *
+ * @author Linde
+ */
+class BlobCodec {
+
+    /** the contents compressed with zlib */
+    static final int DEFLATE = 1;
+    /** the contents as a Delta against another blob */
+    static final int DELTA = 2;
+    /** the contents as a list of chunk blobs */
+    static final int CHUNKED = 3;
+
+    /** the buffer size of the deflater and inflater streams */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private BlobCodec() {
+    }
+
+    /**
+     * Returns a stream that writes the contents it is given to OUT compressed
+     * at LEVEL (1-9) behind the DEFLATE codec byte.
+     * Closing the returned stream finishes the compressed data and closes OUT.
+     */
+    static OutputStream deflate(OutputStream out, int level) throws IOException {
+        out.write(DEFLATE);
+        Deflater deflater = new Deflater(level);
+        return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns a stream of the plain contents of the encoded blob IN.
+     * Nothing is decoded before the caller reads it, so a large blob
+     * never has to fit in memory.
+     */
+    static InputStream decode(InputStream in) throws IOException {
+        int codec = in.read();
+        if (codec == DEFLATE) {
+            Inflater inflater = new Inflater();
+            return new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            };
+        }
+        in.close();
+        throw new GitletException("Unknown blob codec " + codec + ".");
+    }
+}
@@ -0,0 +1,97 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Cuts a stream into content-defined chunks with FastCDC.
+ * <p>
+ * A "gear" hash, hash = (hash << 1) + GEAR[byte], rolls over the stream,
+ * and a chunk ends where some of its high bits are all zero. Since the hash
+ * only depends on the last 64 bytes, a cut point only depends on the bytes
+ * around it: an edit in the middle of a file moves the cut points near the edit,
+ * and every chunk before and after it stays the same, so it is stored only once.
+ * <p>
+ * Chunks are between MIN_SIZE and MAX_SIZE bytes. Below AVG_SIZE the hash has
+ * to match more bits, above it fewer ("normalized chunking"), which keeps most
+ * chunks close to AVG_SIZE.
+ *
+ * @author Linde
+ */
+class Chunker {
+
+    static final int MIN_SIZE = 16 << 10;
+    static final int AVG_SIZE = 64 << 10;
+    static final int MAX_SIZE = 256 << 10;
+
+    /** 18 bits must be zero before AVG_SIZE, 2 more than log2(AVG_SIZE) */
+    private static final long MASK_SMALL = -1L << (64 - 18);
+    /** 14 bits must be zero after AVG_SIZE, 2 fewer than log2(AVG_SIZE) */
+    private static final long MASK_LARGE = -1L << (64 - 14);
+
+    /** a random number for every byte value, fixed so that cut points never change */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(1);
+        for (int i = 0; i < GEAR.length; i += 1) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[MAX_SIZE];
+    /** how many bytes of buffer hold data we haven't returned yet */
+    private int filled;
+    private boolean endOfStream;
+
+    Chunker(InputStream in) {
+        this.in = in;
+    }
+
+    /** Returns the next chunk, or null at the end of the stream. */
+    byte[] next() throws IOException {
+        while (!endOfStream && filled < buffer.length) {
+            int read = in.read(buffer, filled, buffer.length - filled);
+            if (read < 0) {
+                endOfStream = true;
+            } else {
+                filled += read;
+            }
+        }
+        if (filled == 0) {
+            return null;
+        }
+        int cut = cutPoint(buffer, filled);
+        byte[] chunk = Arrays.copyOf(buffer, cut);
+        System.arraycopy(buffer, cut, buffer, 0, filled - cut);
+        filled -= cut;
+        return chunk;
+    }
+
+    /** Returns the length of the chunk at the start of the first LENGTH bytes of DATA. */
+    private static int cutPoint(byte[] data, int length) {
+        if (length <= MIN_SIZE) {
+            return length;
+        }
+        int normalEnd = Math.min(AVG_SIZE, length);
+        int end = Math.min(MAX_SIZE, length);
+        long hash = 0;
+        int i = MIN_SIZE;
+        for (; i < normalEnd; i += 1) {
+            hash = (hash << 1) + GEAR[data[i] & 0xff];
+            if ((hash & MASK_SMALL) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < end; i += 1) {
+            hash = (hash << 1) + GEAR[data[i] & 0xff];
+            if ((hash & MASK_LARGE) == 0) {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+}
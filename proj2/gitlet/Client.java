@@ -0,0 +1,35 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Runs a gitlet command in the daemon of this repository if one is running,
+ * see Daemon, and prints what the daemon answers.
+ * <p>
+ * Usage: java gitlet.Client ARGS, with the same ARGS as gitlet.Main.
+ * Without a daemon, the command runs right here, like gitlet.Main would run it,
+ * so a script can always call the client whether the daemon is up or not.
+ *
+ * @author Linde
+ */
+public class Client {
+
+    public static void main(String[] args) {
+        try (SocketChannel daemon = Daemon.connect()) {
+            if (daemon == null) {
+                Main.main(args);
+                return;
+            }
+            Daemon.writeRequest(Channels.newOutputStream(daemon), args);
+            daemon.shutdownOutput();
+            InputStream in = Channels.newInputStream(daemon);
+            in.transferTo(System.out);
+            System.out.flush();
+        } catch (IOException excp) {
+            System.out.println(excp.getMessage());
+        }
+    }
+}
@@ -1,21 +1,21 @@
 package gitlet;
 
-import java.io.File;
-import java.io.IOException;
 import java.io.Serializable;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
 import java.util.*;
 
-import static gitlet.Utils.*;
-
 /**
  * Represents a gitlet commit object.
  *
  * @author Linde
  */
 public class Commit implements Serializable {
+    /**
+     * Commits are stored through CommitFormat now, but repositories created
+     * by older versions hold serialized Commits, this pins the id those were
+     * written with so that they can still be read.
+     */
+    private static final long serialVersionUID = 4944327343843691329L;
+
     /**
      * The message of this Commit.
      */
@@ -35,14 +35,47 @@ public class Commit implements Serializable {
     }
 
     /**
-     * where store the mapping of filename and its blob
+     * where store the mapping of filename and its blob.
+     * a commit written with trees only knows its root tree at first,
+     * the map is built from the trees the first time someone asks for it.
      */
     private TreeMap<String, String> map;
 
     public TreeMap<String, String> getMap() {
+        if (map == null) {
+            map = Tree.flatten(objectStore, treeSha1);
+        }
+        return map;
+    }
+
+    /** Returns the map if it has been built already, otherwise null, without reading any tree. */
+    TreeMap<String, String> getLoadedMap() {
         return map;
     }
 
+    /**
+     * the sha1 of the tree of the root directory,
+     * null for a commit written before there were trees
+     */
+    private String treeSha1;
+
+    public String getTreeSha1() {
+        return treeSha1;
+    }
+
+    /**
+     * where the trees of this commit can be read
+     */
+    private transient ObjectStore objectStore;
+
+    /**
+     * used by ObjectStore, so that getMap() can read the trees of this commit
+     */
+    Commit setObjectStore(ObjectStore objectStore) {
+        this.objectStore = objectStore;
+        return this;
+    }
+
     /**
      * where store the sha1 values of parents of this commit
      */
@@ -60,99 +93,87 @@ public class Commit implements Serializable {
      * Thu Jan 01 00:00:00 CST 1970
      *
      * @param message The message of the commit
+     * @param store   where the empty tree of the commit is written
      */
-    public Commit(String message) {
+    public Commit(String message, ObjectStore store) {
         this.timeStamp = new Date(0);
         this.message = message;
         this.map = new TreeMap<>();
+        this.treeSha1 = store.writeTree(new Tree());
+        this.objectStore = store;
         this.parentSha1List = new ArrayList<>();
     }
 
+    /**
+     * used by CommitFormat to rebuild a Commit from its encoding,
+     * which holds either the whole MAP (version 1) or only the TREESHA1 of the root.
+     */
+    Commit(String message, Date timeStamp, TreeMap<String, String> map,
+           String treeSha1, List<String> parentSha1List) {
+        this.message = message;
+        this.timeStamp = timeStamp;
+        this.map = map;
+        this.treeSha1 = treeSha1;
+        this.parentSha1List = parentSha1List;
+    }
+
     /**
      * when we create a new commit, we will clone a parent commit
      * and modify it, its message, parent, filename->fileSha1 mapping
-     * should be modified, and it should add new blobs to blobsDir.
+     * should be modified.
      * It may remove some filename->fileSha1 mapping,
      * since in the new commit some files in parent commit will be untracked
+     * <p>
+     * the blobs are already in the object store, Repository.add() put them
+     * there, so all we need from the staging area is the sha1 of every blob.
+     * <p>
+     * the mapping lives in trees now, only the trees of the directories
+     * that have a staged file are written again, see Tree.update().
      */
     public void modifyCommit(String message, List<String> parentSha1List,
-                             File stagedForAddDir, File blobsDir, File stagedForRemoveDir) {
+                             Index index, ObjectStore store) {
         this.message = message;
         this.timeStamp = new Date();
         // this.parentSha1List is copied from its parent,
         // it needs to be flushed
         this.parentSha1List = parentSha1List;
-        try {
-            addBlobsToCommit(stagedForAddDir, blobsDir);
-            removeBlobsFromCommit(stagedForRemoveDir);
-        } catch (IOException excp) {
-            throw new GitletException(excp.getMessage());
-        }
-
+        // a parent written before there were trees gets them now
+        String parentTreeSha1 = treeSha1 != null ? treeSha1 : Tree.fromMap(store, getMap());
+        this.treeSha1 = Tree.update(store, parentTreeSha1, getChanges(index));
+        this.map = null;
+        this.objectStore = store;
     }
 
     /**
-     * Add files into commit.
+     * Returns what the staging area changes, filename->fileSha1 for the
+     * files staged for addition and filename->null for the files staged for removal.
      * <p>
      * Recall that Repository.add() have make sure that the
-     * files in stagedForAdd is "tracked but be modified" or "untracked".
-     * <p>
-     * this function will put the filename->fileSha1 mapping into this commit.
-     * and copy files from the stagedForAdd directory
-     * to the .gitlet/blobs directory,
+     * files staged for addition are "tracked but be modified" or "untracked",
+     * and Repository.remove() have make sure that the
+     * files staged for removal exist in the current commit.
      * <p>
      * e.g.
      * hello.txt's sha1 is 7afbac, we call it hello.txt version 1,
-     * when this function is executed, we will create a mapping hello.txt->7afbac
-     * and the content of hello.txt will be stored at .gitlet/blobs/7afbac,
+     * when the commit is made, we will create a mapping hello.txt->7afbac,
+     * the content of hello.txt has been stored at .gitlet/blobs/7afbac by add(),
      * <p>
      * now we modify the content of hello.txt, its sha1 is a127db,
-     * we call it hello.txt version 2, when this function is executed,
+     * we call it hello.txt version 2, when the next commit is made,
      * we will update the mapping hello.txt->a127db,
-     * and the content of hello.txt will be stored at .gitlet/blobs/a127db
+     * we can only replace the reference, we can not remove the old blob
+     * because other commit may refer the blob
      */
-    public void addBlobsToCommit(File stagedForAddDir, File blobsDir) throws IOException {
-        for (File stagedFile : Objects.requireNonNull(stagedForAddDir.listFiles())) {
-            String stagedFileSha1 = sha1((Object) readContents(stagedFile));
-            String stagedFileName = stagedFile.getName();
-            // Recall that Repository.add() have make sure that the
-            // files in stagedForAdd are "tracked but be modified" or "untracked".
-
-            // if it is tracked, it must be modified
-            if (map.containsKey(stagedFileName)) {
-                String oldSha1Value = map.get(stagedFileName);
-                // we can only replace the reference, we can not replace the blob
-                // because other commit may refer the blob
-                map.replace(stagedFileName, oldSha1Value, stagedFileSha1);
-            } else {
-                map.put(stagedFileName, stagedFileSha1);
+    private static TreeMap<String, String> getChanges(Index index) {
+        TreeMap<String, String> changes = new TreeMap<>();
+        for (Index.Entry entry : index.getEntries()) {
+            if (entry.state == Index.STAGED_FOR_ADD) {
+                changes.put(entry.filename, entry.blobSha1);
+            } else if (entry.state == Index.STAGED_FOR_REMOVE) {
+                changes.put(entry.filename, null);
             }
-
-            Path src = stagedFile.toPath();
-            Path dest = join(blobsDir, stagedFileSha1).toPath();
-            try {
-                Files.copy(src, dest, StandardCopyOption.REPLACE_EXISTING);
-            } catch (IOException excp) {
-                throw new GitletException(excp.getMessage());
-            }
-
-        }
-    }
-
-
-    /**
-     * if there are files in stageForRemoveDir,
-     * remove their reference from the current Commit,
-     * we can not remove the blobs, because other commit may refer it.
-     * <p>
-     * recall that Repository.remove() have make sure that the
-     * files in stagedForRemoveDir exist in the current commit.
-     * <p>
-     */
-    public void removeBlobsFromCommit(File stagedForRemoveDir) {
-        for (File fileInStagedDir : Objects.requireNonNull(stagedForRemoveDir.listFiles())) {
-            this.map.remove(fileInStagedDir.getName());
         }
+        return changes;
     }
 
 }
@@ -0,0 +1,113 @@
+package gitlet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least recently used cache of the commits a command has already read,
+ * so that log, merge and the other commands that walk the history only read
+ * a commit from disk once, however many times they reach it.
+ * <p>
+ * The cache is bounded by an estimate of the memory its commits take rather
+ * than by their number: a commit whose file map has been built (see
+ * Commit.getMap()) takes far more than one that only knows its tree, so the
+ * estimate of a commit is updated every time it is handed out.
+ * <p>
+ * The commits in the cache are shared, whoever gets one must not modify it.
+ *
+ * @author Linde
+ */
+class CommitCache {
+
+    /** roughly what a commit takes before counting its message, parents and map */
+    private static final long COMMIT_OVERHEAD = 256;
+    /** roughly what a parent sha1 takes, a 40-char String and its list slot */
+    private static final long PARENT_SIZE = 96;
+    /** roughly what one filename->sha1 entry of a map takes, with a short filename */
+    private static final long MAP_ENTRY_SIZE = 200;
+
+    private final long capacity;
+    private long size;
+    private long hits;
+    private long misses;
+    /** sha1->commit in access order, the eldest is the least recently used */
+    private final LinkedHashMap<String, Cached> commits = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** A commit with the size it was charged for. */
+    private static class Cached {
+        private final Commit commit;
+        private long size;
+
+        Cached(Commit commit, long size) {
+            this.commit = commit;
+            this.size = size;
+        }
+    }
+
+    /** Creates a cache that holds commits worth at most CAPACITY bytes. */
+    CommitCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /** Returns the commit COMMITSHA1 if it is in the cache, otherwise null. */
+    synchronized Commit get(String commitSha1) {
+        Cached cached = commits.get(commitSha1);
+        if (cached == null) {
+            misses += 1;
+            return null;
+        }
+        hits += 1;
+        // the map may have been built since we last saw this commit
+        long newSize = estimateSize(cached.commit);
+        if (newSize != cached.size) {
+            size += newSize - cached.size;
+            cached.size = newSize;
+            evict();
+        }
+        return cached.commit;
+    }
+
+    synchronized void put(String commitSha1, Commit commit) {
+        long commitSize = estimateSize(commit);
+        if (commitSize > capacity) {
+            return;
+        }
+        Cached old = commits.put(commitSha1, new Cached(commit, commitSize));
+        if (old != null) {
+            size -= old.size;
+        }
+        size += commitSize;
+        evict();
+    }
+
+    synchronized void clear() {
+        commits.clear();
+        size = 0;
+    }
+
+    /** Returns something like "commit cache: 12 hits, 3 misses, 3 commits, 2 KB". */
+    synchronized String stats() {
+        return "commit cache: " + hits + " hits, " + misses + " misses, "
+                + commits.size() + " commits, " + (size >> 10) + " KB";
+    }
+
+    private void evict() {
+        Iterator<Cached> eldest = commits.values().iterator();
+        while (size > capacity && eldest.hasNext()) {
+            size -= eldest.next().size;
+            eldest.remove();
+        }
+    }
+
+    private static long estimateSize(Commit commit) {
+        long estimate = COMMIT_OVERHEAD + 2L * commit.getMessage().length()
+                + PARENT_SIZE * commit.getParentSha1List().size();
+        Map<String, String> map = commit.getLoadedMap();
+        if (map != null) {
+            // not walking the map, so that a hit stays a map probe
+            estimate += MAP_ENTRY_SIZE * map.size();
+        }
+        return estimate;
+    }
+}
@@ -0,0 +1,186 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * The on-disk encoding of a Commit.
+ * <p>
+ * Version 2 of the format looks like this, all integers are big-endian:
+ * <pre>
+ *     magic        4 bytes  "GLTC"
+ *     version      1 byte   2
+ *     timestamp    8 bytes  milliseconds since the epoch
+ *     parents      4 bytes  count, then 20 raw sha1 bytes per parent
+ *     message      4 bytes  length, then the UTF-8 bytes of the message
+ *     tree         20 raw sha1 bytes of the root Tree
+ * </pre>
+ * Version 1 had the whole filename->blob mapping where version 2 has the tree:
+ * <pre>
+ *     entries      4 bytes  count, then for every filename->blob mapping:
+ *                           4 bytes length + UTF-8 filename, 20 raw sha1 bytes
+ * </pre>
+ * read() still reads it, only encode() always writes version 2.
+ * The same commit always encodes to the same bytes, that is what makes the
+ * sha1 of the encoding usable as the commit id.
+ * <p>
+ * Repositories created before this format existed store their commits through
+ * Utils.writeObject, read() recognizes the Java serialization stream header
+ * and still reads those commits, so an old .gitlet directory keeps working
+ * and only the new commits are written in this format.
+ *
+ * @author Linde
+ */
+class CommitFormat {
+
+    /** The first bytes of every encoded commit. */
+    private static final byte[] MAGIC = {'G', 'L', 'T', 'C'};
+
+    /** The version written by encode(). */
+    static final int VERSION = 2;
+
+    /** The version that stored the whole map instead of a tree. */
+    private static final int MAP_VERSION = 1;
+
+    /** The first two bytes of a stream written by ObjectOutputStream. */
+    private static final int JAVA_SERIALIZATION_MAGIC = 0xACED;
+
+    /** Returns the encoded bytes of COMMIT. */
+    static byte[] encode(Commit commit) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            write(commit, bytes);
+        } catch (IOException excp) {
+            throw new GitletException(excp.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Writes the encoding of COMMIT to OUT, OUT is not closed. */
+    static void write(Commit commit, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.write(MAGIC);
+        data.writeByte(VERSION);
+        data.writeLong(commit.getTimeStamp().getTime());
+
+        List<String> parentSha1List = commit.getParentSha1List();
+        data.writeInt(parentSha1List.size());
+        for (String parentSha1 : parentSha1List) {
+            writeSha1(data, parentSha1);
+        }
+
+        writeString(data, commit.getMessage());
+
+        writeSha1(data, commit.getTreeSha1());
+        data.flush();
+    }
+
+    /** Returns the Commit stored in FILE, in either format. */
+    static Commit read(File file) {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            return read(in);
+        } catch (IOException excp) {
+            throw new GitletException(excp.getMessage());
+        }
+    }
+
+    /** Returns the Commit encoded in BYTES, in either format. */
+    static Commit decode(byte[] bytes) {
+        try {
+            return read(new ByteArrayInputStream(bytes));
+        } catch (IOException excp) {
+            throw new GitletException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Reads one commit from IN. IN must support mark/reset, since we need to
+     * peek at the first bytes to tell the old serialized commits apart.
+     */
+    static Commit read(InputStream in) throws IOException {
+        in.mark(2);
+        int header = (in.read() << 8) | in.read();
+        in.reset();
+        if (header == JAVA_SERIALIZATION_MAGIC) {
+            return readLegacy(in);
+        }
+
+        DataInputStream data = new DataInputStream(in);
+        for (byte b : MAGIC) {
+            if (data.readByte() != b) {
+                throw new GitletException("Not a commit file.");
+            }
+        }
+        int version = data.readUnsignedByte();
+        if (version != VERSION && version != MAP_VERSION) {
+            throw new GitletException("Unsupported commit format version " + version + ".");
+        }
+        Date timeStamp = new Date(data.readLong());
+
+        int parentCount = data.readInt();
+        List<String> parentSha1List = new ArrayList<>(parentCount);
+        for (int i = 0; i < parentCount; i += 1) {
+            parentSha1List.add(readSha1(data));
+        }
+
+        String message = readString(data);
+
+        if (version == VERSION) {
+            return new Commit(message, timeStamp, null, readSha1(data), parentSha1List);
+        }
+        int entryCount = data.readInt();
+        TreeMap<String, String> map = new TreeMap<>();
+        for (int i = 0; i < entryCount; i += 1) {
+            String filename = readString(data);
+            map.put(filename, readSha1(data));
+        }
+        return new Commit(message, timeStamp, map, null, parentSha1List);
+    }
+
+    /** Reads a commit written by Utils.writeObject. */
+    private static Commit readLegacy(InputStream in) throws IOException {
+        try {
+            return (Commit) new ObjectInputStream(in).readObject();
+        } catch (ClassNotFoundException | ClassCastException excp) {
+            throw new GitletException(excp.getMessage());
+        }
+    }
+
+    private static void writeString(DataOutputStream data, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    private static String readString(DataInputStream data) throws IOException {
+        byte[] bytes = new byte[data.readInt()];
+        data.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Writes the 40 digit hex SHA1 as 20 raw bytes. */
+    private static void writeSha1(DataOutputStream data, String sha1) throws IOException {
+        data.write(Utils.fromHex(sha1));
+    }
+
+    /** Reads 20 raw bytes back into a 40 digit hex sha1. */
+    private static String readSha1(DataInputStream data) throws IOException {
+        byte[] bytes = new byte[Utils.UID_BYTES];
+        data.readFully(bytes);
+        return Utils.toHex(bytes);
+    }
+}
@@ -0,0 +1,497 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import static gitlet.Utils.*;
+
+/**
+ * The shape of the history, kept in .gitlet/commit-graph, so that walking it
+ * never needs to read a Commit.
+ * <p>
+ * Every commit gets a position, in the order the commits were added, and
+ * parents are always added before their children. For every position we keep
+ * the sha1 of the commit, the positions of its (at most two) parents, its
+ * generation number and its timestamp. The generation number of a commit
+ * without parents is 1, otherwise it is one more than the largest generation
+ * of its parents, so an ancestor always has a smaller generation than its
+ * descendants. That is what lets mergeBase() and isAncestor() stop early.
+ * <p>
+ * The file looks like this, all integers are big-endian:
+ * <pre>
+ *     magic      4 bytes  "GLCG"
+ *     version    4 bytes  1
+ *     count      4 bytes  number of commits
+ *     commits    for every position: 20 bytes sha1, 4 bytes first parent,
+ *                4 bytes second parent (-1 if there is none),
+ *                4 bytes generation, 8 bytes timestamp in milliseconds
+ *     lookup     count * 4 bytes, the positions sorted by sha1
+ * </pre>
+ * The lookup table makes finding the position of a sha1 a binary search.
+ *
+ * @author Linde
+ */
+class CommitGraph {
+
+    private static final byte[] MAGIC = {'G', 'L', 'C', 'G'};
+    private static final int VERSION = 1;
+    private static final int HEADER_LEN = 12;
+    private static final int RECORD_LEN = UID_BYTES + 4 + 4 + 4 + 8;
+
+    /** the parent position of a commit that doesn't have that parent */
+    static final int NO_PARENT = -1;
+
+    private final File graphFile;
+
+    private int count;
+    /** the raw sha1 of position i is at sha1s[i * UID_BYTES] */
+    private byte[] sha1s;
+    private int[] firstParents;
+    private int[] secondParents;
+    private int[] generations;
+    private long[] timeStamps;
+    /** the positions sorted by sha1 */
+    private int[] lookup;
+
+    private CommitGraph(File graphFile, int capacity) {
+        this.graphFile = graphFile;
+        this.sha1s = new byte[capacity * UID_BYTES];
+        this.firstParents = new int[capacity];
+        this.secondParents = new int[capacity];
+        this.generations = new int[capacity];
+        this.timeStamps = new long[capacity];
+        this.lookup = new int[capacity];
+    }
+
+    /**
+     * Reads GRAPHFILE, a missing file is an empty graph.
+     */
+    static CommitGraph read(File graphFile) {
+        if (!graphFile.exists()) {
+            return new CommitGraph(graphFile, 16);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(readContents(graphFile));
+        for (byte b : MAGIC) {
+            if (buffer.get() != b) {
+                throw error("%s is not a commit-graph file.", graphFile);
+            }
+        }
+        if (buffer.getInt() != VERSION) {
+            throw error("Unsupported commit-graph version in %s.", graphFile);
+        }
+        int count = buffer.getInt();
+        CommitGraph graph = new CommitGraph(graphFile, Math.max(16, count));
+        graph.count = count;
+        for (int i = 0; i < count; i += 1) {
+            buffer.get(graph.sha1s, i * UID_BYTES, UID_BYTES);
+            graph.firstParents[i] = buffer.getInt();
+            graph.secondParents[i] = buffer.getInt();
+            graph.generations[i] = buffer.getInt();
+            graph.timeStamps[i] = buffer.getLong();
+        }
+        for (int i = 0; i < count; i += 1) {
+            graph.lookup[i] = buffer.getInt();
+        }
+        return graph;
+    }
+
+    /**
+     * Reads GRAPHFILE, or if it is missing or empty, because an older version
+     * made the repository, builds the graph from every commit in STORE once
+     * and writes it, unless another command holds the lock of the graph file.
+     */
+    static CommitGraph readOrBuild(File graphFile, ObjectStore store) {
+        CommitGraph graph = read(graphFile);
+        if (graph.size() == 0) {
+            boolean changed = false;
+            for (String commitSha1 : store.listCommitSha1s()) {
+                changed |= graph.addWithAncestors(commitSha1, store);
+            }
+            // a command holding the lock writes the graph itself,
+            // otherwise the next command builds it again
+            try (LockFile lock = changed ? LockFile.tryAcquire(graphFile) : null) {
+                if (lock != null) {
+                    graph.write(lock);
+                }
+            }
+        }
+        return graph;
+    }
+
+    /**
+     * Replaces the graph file with the current graph through LOCK, the lock of
+     * the graph file, which the caller took before it read the graph.
+     */
+    void write(LockFile lock) {
+        lock.commit(fileOut -> {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(fileOut, HEADER_LEN + RECORD_LEN * 1024));
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            for (int i = 0; i < count; i += 1) {
+                out.write(sha1s, i * UID_BYTES, UID_BYTES);
+                out.writeInt(firstParents[i]);
+                out.writeInt(secondParents[i]);
+                out.writeInt(generations[i]);
+                out.writeLong(timeStamps[i]);
+            }
+            for (int i = 0; i < count; i += 1) {
+                out.writeInt(lookup[i]);
+            }
+            out.flush();
+        });
+    }
+
+    /** Returns the number of commits in the graph. */
+    int size() {
+        return count;
+    }
+
+    boolean contains(String commitSha1) {
+        return positionOf(commitSha1) >= 0;
+    }
+
+    /** Returns the position of COMMITSHA1, or -1 if it is not in the graph. */
+    int positionOf(String commitSha1) {
+        byte[] key = fromHex(commitSha1);
+        int lo = 0;
+        int hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareSha1(lookup[mid], key);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return lookup[mid];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the sha1s of the commits that start with the hexadecimal PREFIX,
+     * in sorted order, at most LIMIT of them. Asking for 2 is enough to tell a
+     * unique prefix from an ambiguous one.
+     */
+    List<String> findByPrefix(String prefix, int limit) {
+        List<String> result = new ArrayList<>();
+        if (prefix.isEmpty() || prefix.length() > UID_LENGTH) {
+            return result;
+        }
+        // the smallest sha1 with this prefix is the prefix padded with zeros,
+        // so the matches start where a binary search for it ends
+        StringBuilder padded = new StringBuilder(prefix);
+        while (padded.length() < UID_LENGTH) {
+            padded.append('0');
+        }
+        byte[] key = fromHex(padded.toString());
+        int lo = 0;
+        int hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareSha1(lookup[mid], key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        for (int i = lo; i < count && result.size() < limit; i += 1) {
+            String sha1 = sha1At(lookup[i]);
+            if (!sha1.startsWith(prefix)) {
+                break;
+            }
+            result.add(sha1);
+        }
+        return result;
+    }
+
+    /** Returns the sha1 of the commit at POSITION. */
+    String sha1At(int position) {
+        return toHex(Arrays.copyOfRange(sha1s,
+                position * UID_BYTES, (position + 1) * UID_BYTES));
+    }
+
+    int firstParentOf(int position) {
+        return firstParents[position];
+    }
+
+    int secondParentOf(int position) {
+        return secondParents[position];
+    }
+
+    int generationOf(int position) {
+        return generations[position];
+    }
+
+    /**
+     * Adds the commit COMMITSHA1 with the given parents and TIMESTAMP, and returns
+     * its position. The parents must already be in the graph, and a commit that
+     * is already there is not added twice.
+     */
+    int add(String commitSha1, List<String> parentSha1List, long timeStamp) {
+        int existing = positionOf(commitSha1);
+        if (existing >= 0) {
+            return existing;
+        }
+        if (count == firstParents.length) {
+            grow();
+        }
+        int position = count;
+        int[] parents = {NO_PARENT, NO_PARENT};
+        int generation = 1;
+        for (int i = 0; i < parentSha1List.size() && i < 2; i += 1) {
+            parents[i] = positionOf(parentSha1List.get(i));
+            if (parents[i] < 0) {
+                throw error("Parent %s of %s is not in the commit-graph.",
+                        parentSha1List.get(i), commitSha1);
+            }
+            generation = Math.max(generation, generations[parents[i]] + 1);
+        }
+        byte[] key = fromHex(commitSha1);
+        System.arraycopy(key, 0, sha1s, position * UID_BYTES, UID_BYTES);
+        firstParents[position] = parents[0];
+        secondParents[position] = parents[1];
+        generations[position] = generation;
+        timeStamps[position] = timeStamp;
+
+        // keep lookup sorted, the new commit goes where the binary search would look
+        int lo = 0;
+        int hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareSha1(lookup[mid], key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        System.arraycopy(lookup, lo, lookup, lo + 1, count - lo);
+        lookup[lo] = position;
+        count += 1;
+        return position;
+    }
+
+    /**
+     * Adds COMMITSHA1 and every ancestor of it that is not in the graph yet,
+     * reading those commits from STORE. Returns true if anything was added.
+     * This is how the graph is built for a repository that doesn't have one.
+     */
+    boolean addWithAncestors(String commitSha1, ObjectStore store) {
+        if (contains(commitSha1)) {
+            return false;
+        }
+        // an explicit stack instead of recursion, histories can be very deep
+        Deque<String> stack = new ArrayDeque<>();
+        Map<String, Commit> waiting = new HashMap<>();
+        stack.push(commitSha1);
+        while (!stack.isEmpty()) {
+            String sha1 = stack.peek();
+            if (contains(sha1)) {
+                // it was reached through another child first
+                stack.pop();
+                continue;
+            }
+            Commit commit = waiting.computeIfAbsent(sha1, s -> readCommit(store, s));
+            String missingParent = null;
+            for (String parentSha1 : commit.getParentSha1List()) {
+                if (!contains(parentSha1)) {
+                    missingParent = parentSha1;
+                    break;
+                }
+            }
+            if (missingParent != null) {
+                stack.push(missingParent);
+            } else {
+                add(sha1, commit.getParentSha1List(), commit.getTimeStamp().getTime());
+                waiting.remove(sha1);
+                stack.pop();
+            }
+        }
+        return true;
+    }
+
+    private static Commit readCommit(ObjectStore store, String commitSha1) {
+        Commit commit = store.readCommit(commitSha1);
+        if (commit == null) {
+            throw error("Commit %s does not exist.", commitSha1);
+        }
+        return commit;
+    }
+
+    /**
+     * Returns true if the commit at ANCESTOR is DESCENDANT or one of its ancestors.
+     * Commits whose generation is not larger than the generation of ANCESTOR
+     * can't lead to it, so we never walk past them.
+     */
+    boolean isAncestor(int ancestor, int descendant) {
+        int minGeneration = generations[ancestor];
+        boolean[] seen = new boolean[count];
+        Deque<Integer> stack = new ArrayDeque<>();
+        stack.push(descendant);
+        seen[descendant] = true;
+        while (!stack.isEmpty()) {
+            int position = stack.pop();
+            if (position == ancestor) {
+                return true;
+            }
+            for (int parent : new int[]{firstParents[position], secondParents[position]}) {
+                if (parent != NO_PARENT && !seen[parent] && generations[parent] >= minGeneration) {
+                    seen[parent] = true;
+                    stack.push(parent);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the position of a latest common ancestor of the commits at A and B,
+     * or -1 if they have none.
+     * <p>
+     * We walk down from both commits at the same time, always taking the commit
+     * with the largest generation next, and paint every commit with the side(s)
+     * it was reached from. The first commit painted by both sides is a common
+     * ancestor, and since everything still waiting has a generation no larger
+     * than it, no other common ancestor can be a descendant of it, so it is one of
+     * the latest. Commits below it are never visited.
+     */
+    int mergeBase(int a, int b) {
+        if (a == b) {
+            return a;
+        }
+        final byte fromA = 1;
+        final byte fromB = 2;
+        byte[] paint = new byte[count];
+        // the largest generation first, ties broken by position to stay deterministic
+        PriorityQueue<Integer> queue = new PriorityQueue<>((p1, p2) -> {
+            int cmp = Integer.compare(generations[p2], generations[p1]);
+            return cmp != 0 ? cmp : Integer.compare(p2, p1);
+        });
+        paint[a] = fromA;
+        paint[b] = fromB;
+        queue.add(a);
+        queue.add(b);
+        while (!queue.isEmpty()) {
+            int position = queue.poll();
+            if (paint[position] == (fromA | fromB)) {
+                return position;
+            }
+            for (int parent : new int[]{firstParents[position], secondParents[position]}) {
+                if (parent == NO_PARENT) {
+                    continue;
+                }
+                // a commit that is already waiting just gets more paint,
+                // its place in the queue only depends on its generation
+                if (paint[parent] == 0) {
+                    queue.add(parent);
+                }
+                paint[parent] |= paint[position];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the commits that are TIPSHA1 or one of its ancestors but are not
+     * in OTHER, parents before children. A graph holds every ancestor of the
+     * commits it holds, so the walk stops at the first commit OTHER has: only the
+     * commits returned, and the ones right behind them, are looked at.
+     */
+    List<String> missingFrom(CommitGraph other, String tipSha1) {
+        List<Integer> missing = new ArrayList<>();
+        boolean[] seen = new boolean[count];
+        Deque<Integer> stack = new ArrayDeque<>();
+        int tip = positionOf(tipSha1);
+        stack.push(tip);
+        seen[tip] = true;
+        while (!stack.isEmpty()) {
+            int position = stack.pop();
+            if (other.contains(sha1At(position))) {
+                continue;
+            }
+            missing.add(position);
+            for (int parent : new int[]{firstParents[position], secondParents[position]}) {
+                if (parent != NO_PARENT && !seen[parent]) {
+                    seen[parent] = true;
+                    stack.push(parent);
+                }
+            }
+        }
+        // a parent always has a smaller position than its children
+        missing.sort(null);
+        List<String> result = new ArrayList<>(missing.size());
+        for (int position : missing) {
+            result.add(sha1At(position));
+        }
+        return result;
+    }
+
+    /**
+     * Adds the commits COMMITSHA1S of the graph FROM, given parents before children,
+     * with the parents and timestamps FROM has for them.
+     */
+    void addFrom(CommitGraph from, List<String> commitSha1s) {
+        for (String commitSha1 : commitSha1s) {
+            int position = from.positionOf(commitSha1);
+            List<String> parentSha1List = new ArrayList<>(2);
+            for (int parent : new int[]{from.firstParents[position], from.secondParents[position]}) {
+                if (parent != NO_PARENT) {
+                    parentSha1List.add(from.sha1At(parent));
+                }
+            }
+            add(commitSha1, parentSha1List, from.timeStamps[position]);
+        }
+    }
+
+    /**
+     * Returns a graph, written to the same file, without the commits REMOVED.
+     * No commit that stays may have a parent in REMOVED.
+     */
+    CommitGraph without(Set<String> removed) {
+        CommitGraph graph = new CommitGraph(graphFile, Math.max(16, count));
+        List<String> kept = new ArrayList<>();
+        for (int i = 0; i < count; i += 1) {
+            String commitSha1 = sha1At(i);
+            if (!removed.contains(commitSha1)) {
+                kept.add(commitSha1);
+            }
+        }
+        graph.addFrom(this, kept);
+        return graph;
+    }
+
+    private int compareSha1(int position, byte[] key) {
+        int start = position * UID_BYTES;
+        for (int k = 0; k < UID_BYTES; k += 1) {
+            int cmp = Integer.compare(sha1s[start + k] & 0xff, key[k] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    private void grow() {
+        int capacity = firstParents.length * 2;
+        sha1s = Arrays.copyOf(sha1s, capacity * UID_BYTES);
+        firstParents = Arrays.copyOf(firstParents, capacity);
+        secondParents = Arrays.copyOf(secondParents, capacity);
+        generations = Arrays.copyOf(generations, capacity);
+        timeStamps = Arrays.copyOf(timeStamps, capacity);
+        lookup = Arrays.copyOf(lookup, capacity);
+    }
+}
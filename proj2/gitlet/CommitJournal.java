@@ -0,0 +1,445 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+
+import static gitlet.Utils.*;
+
+/**
+ * Every commit of the repository, in the order they were made, so that
+ * global-log reads one file from start to end instead of every commit, and
+ * find looks its message up in an index instead of reading every commit.
+ * <p>
+ * The journal is only ever appended to, and record i is the commit at position i
+ * of the CommitGraph, Repository keeps the two in step. It is made of four parts:
+ * <pre>
+ *     journal               magic "GLJN", 4 bytes version, then for every commit:
+ *                           20 bytes sha1, 8 bytes timestamp in milliseconds,
+ *                           20 bytes first parent, 20 bytes second parent (zeros
+ *                           if there is none), 8 bytes offset and 4 bytes length
+ *                           of the message in journal-messages
+ *     journal-messages      the UTF-8 messages, one after the other
+ *     journal-postings      the inverted index: for every word of every message,
+ *                           8 bytes key, the start of the sha1 of the word, and
+ *                           4 bytes record number, sorted by key and then record
+ *     journal-postings-new  the same for the latest commits, in record order
+ * </pre>
+ * The postings of a word are one range of journal-postings, found by binary
+ * search. New postings are appended to journal-postings-new, which is merged
+ * into journal-postings once it is an eighth of its size, so appending stays
+ * cheap and the index stays two files however many words there are.
+ * <p>
+ * A record is written after its message and its words, so a record that is
+ * there always has them, and a half-written record at the end is overwritten
+ * by the next append. Two words with the same key, or postings left by a
+ * half-written record, only make find() read a message that doesn't match.
+ *
+ * @author Linde
+ */
+class CommitJournal {
+
+    private static final byte[] MAGIC = {'G', 'L', 'J', 'N'};
+    private static final int VERSION = 1;
+    private static final int HEADER_LEN = 8;
+    private static final int RECORD_LEN = UID_BYTES + 8 + UID_BYTES + UID_BYTES + 8 + 4;
+    private static final byte[] NO_PARENT = new byte[UID_BYTES];
+    /** 8 bytes key and 4 bytes record of one posting */
+    private static final int POSTING_LEN = 12;
+    /** journal-postings-new is never merged while it holds fewer postings than this */
+    private static final long MIN_MERGE = 1024;
+
+    /** One commit, as global-log prints it. */
+    static class Entry {
+        final String sha1;
+        final Date timeStamp;
+        final List<String> parentSha1List;
+        final String message;
+
+        Entry(String sha1, Date timeStamp, List<String> parentSha1List, String message) {
+            this.sha1 = sha1;
+            this.timeStamp = timeStamp;
+            this.parentSha1List = parentSha1List;
+            this.message = message;
+        }
+    }
+
+    private final File journalFile;
+    private final File messagesFile;
+    private final File postingsFile;
+    private final File newPostingsFile;
+    private int size;
+
+    private CommitJournal(File gitletDir) {
+        this.journalFile = join(gitletDir, "journal");
+        this.messagesFile = join(gitletDir, "journal-messages");
+        this.postingsFile = join(gitletDir, "journal-postings");
+        this.newPostingsFile = join(gitletDir, "journal-postings-new");
+        long length = journalFile.length();
+        this.size = length < HEADER_LEN ? 0 : (int) ((length - HEADER_LEN) / RECORD_LEN);
+    }
+
+    /** Opens the journal in GITLETDIR, a missing journal is an empty one. */
+    static CommitJournal open(File gitletDir) {
+        return new CommitJournal(gitletDir);
+    }
+
+    /** Returns the number of commits in the journal. */
+    int size() {
+        return size;
+    }
+
+    /** Forgets every commit, so that the journal can be written again from scratch. */
+    void clear() {
+        journalFile.delete();
+        messagesFile.delete();
+        postingsFile.delete();
+        newPostingsFile.delete();
+        size = 0;
+    }
+
+    /** Adds COMMIT, whose sha1 is COMMITSHA1, as the next record. */
+    void append(String commitSha1, Commit commit) {
+        byte[] message = commit.getMessage().getBytes(StandardCharsets.UTF_8);
+        List<String> parents = commit.getParentSha1List();
+        try {
+            long offset = messagesFile.length();
+            try (FileOutputStream out = new FileOutputStream(messagesFile, true)) {
+                out.write(message);
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(newPostingsFile, true)))) {
+                for (String word : tokenize(commit.getMessage())) {
+                    out.writeLong(keyOf(word));
+                    out.writeInt(size);
+                }
+            }
+            try (RandomAccessFile out = new RandomAccessFile(journalFile, "rw")) {
+                if (out.length() < HEADER_LEN) {
+                    out.write(MAGIC);
+                    out.writeInt(VERSION);
+                }
+                out.seek(HEADER_LEN + (long) size * RECORD_LEN);
+                out.write(fromHex(commitSha1));
+                out.writeLong(commit.getTimeStamp().getTime());
+                out.write(parents.size() > 0 ? fromHex(parents.get(0)) : NO_PARENT);
+                out.write(parents.size() > 1 ? fromHex(parents.get(1)) : NO_PARENT);
+                out.writeLong(offset);
+                out.writeInt(message.length);
+            }
+            if (newPostingsFile.length() / POSTING_LEN
+                    >= Math.max(MIN_MERGE, postingsFile.length() / POSTING_LEN / 8)) {
+                mergePostings();
+            }
+        } catch (IOException excp) {
+            throw new GitletException(excp.getMessage());
+        }
+        size += 1;
+    }
+
+    /**
+     * Merges journal-postings-new into journal-postings. The merged file is
+     * renamed over the old one before journal-postings-new goes, so a crash in
+     * between only leaves postings that are there twice.
+     */
+    private void mergePostings() throws IOException {
+        List<long[]> newPostings = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(newPostingsFile)))) {
+            for (long n = newPostingsFile.length() / POSTING_LEN; n > 0; n -= 1) {
+                newPostings.add(new long[]{in.readLong(), in.readInt()});
+            }
+        }
+        newPostings.sort(CommitJournal::comparePostings);
+
+        File tempFile = Files.createTempFile(postingsFile.getParentFile().toPath(),
+                postingsFile.getName() + "-", ".tmp").toFile();
+        try {
+            try (FileOutputStream fileOut = new FileOutputStream(tempFile);
+                 DataInputStream in = new DataInputStream(new BufferedInputStream(
+                         postingsFile.exists()
+                                 ? new FileInputStream(postingsFile)
+                                 : InputStream.nullInputStream()))) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+                long oldCount = postingsFile.length() / POSTING_LEN;
+                long[] old = oldCount > 0 ? new long[]{in.readLong(), in.readInt()} : null;
+                long[] last = null;
+                int i = 0;
+                while (old != null || i < newPostings.size()) {
+                    long[] next;
+                    if (old != null && (i == newPostings.size()
+                            || comparePostings(old, newPostings.get(i)) <= 0)) {
+                        next = old;
+                        oldCount -= 1;
+                        old = oldCount > 0 ? new long[]{in.readLong(), in.readInt()} : null;
+                    } else {
+                        next = newPostings.get(i);
+                        i += 1;
+                    }
+                    if (last == null || comparePostings(last, next) != 0) {
+                        out.writeLong(next[0]);
+                        out.writeInt((int) next[1]);
+                        last = next;
+                    }
+                }
+                out.flush();
+                fileOut.getFD().sync();
+            }
+            Files.move(tempFile.toPath(), postingsFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tempFile.delete();
+        }
+        newPostingsFile.delete();
+    }
+
+    private static int comparePostings(long[] a, long[] b) {
+        int cmp = Long.compare(a[0], b[0]);
+        return cmp != 0 ? cmp : Long.compare(a[1], b[1]);
+    }
+
+    /** Gives every commit to ACTION, in the order they were appended. */
+    void forEach(Consumer<Entry> action) {
+        if (size == 0) {
+            return;
+        }
+        try (DataInputStream journal = new DataInputStream(
+                     new BufferedInputStream(new FileInputStream(journalFile), 1 << 16));
+             DataInputStream messages = new DataInputStream(
+                     new BufferedInputStream(new FileInputStream(messagesFile), 1 << 16))) {
+            checkHeader(journal);
+            // the messages are in the order of the records, so both files are read once
+            long messagesPosition = 0;
+            byte[] sha1 = new byte[UID_BYTES];
+            byte[] parent = new byte[UID_BYTES];
+            for (int i = 0; i < size; i += 1) {
+                journal.readFully(sha1);
+                long timeStamp = journal.readLong();
+                List<String> parents = new ArrayList<>(2);
+                for (int k = 0; k < 2; k += 1) {
+                    journal.readFully(parent);
+                    if (!Arrays.equals(parent, NO_PARENT)) {
+                        parents.add(toHex(parent));
+                    }
+                }
+                long offset = journal.readLong();
+                byte[] message = new byte[journal.readInt()];
+                skipFully(messages, offset - messagesPosition);
+                messages.readFully(message);
+                messagesPosition = offset + message.length;
+                action.accept(new Entry(toHex(sha1), new Date(timeStamp), parents,
+                        new String(message, StandardCharsets.UTF_8)));
+            }
+        } catch (IOException excp) {
+            throw new GitletException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Returns the sha1 of every commit whose message is MESSAGE, in journal order.
+     * The postings of the word of MESSAGE that the fewest commits have are read,
+     * and each of their records is looked up in the postings of the other words
+     * by binary search. So this costs about the number of commits that have the
+     * rarest word, times a logarithm, however many commits there are.
+     */
+    List<String> find(String message) {
+        List<String> words = tokenize(message);
+        List<String> result = new ArrayList<>();
+        if (words.isEmpty()) {
+            // a message without any word, like "...", can't use the index
+            forEach(entry -> {
+                if (entry.message.equals(message)) {
+                    result.add(entry.sha1);
+                }
+            });
+            return result;
+        }
+        if (size == 0) {
+            return result;
+        }
+        try (RandomAccessFile postings = postingsFile.exists()
+                     ? new RandomAccessFile(postingsFile, "r") : null;
+             RandomAccessFile journal = new RandomAccessFile(journalFile, "r");
+             RandomAccessFile messages = new RandomAccessFile(messagesFile, "r")) {
+            Map<Long, List<Integer>> newPostings = readNewPostings();
+            List<Postings> wordPostings = new ArrayList<>();
+            for (String word : words) {
+                wordPostings.add(new Postings(postings, keyOf(word), newPostings));
+            }
+            wordPostings.sort(Comparator.comparingLong(Postings::count));
+            List<Postings> others = wordPostings.subList(1, wordPostings.size());
+            byte[] sha1 = new byte[UID_BYTES];
+            for (int record : wordPostings.get(0).records()) {
+                boolean inAll = true;
+                for (Postings other : others) {
+                    inAll = inAll && other.contains(record);
+                }
+                if (!inAll) {
+                    continue;
+                }
+                journal.seek(HEADER_LEN + (long) record * RECORD_LEN);
+                journal.readFully(sha1);
+                journal.seek(HEADER_LEN + (long) record * RECORD_LEN + RECORD_LEN - 12);
+                long offset = journal.readLong();
+                byte[] candidateMessage = new byte[journal.readInt()];
+                messages.seek(offset);
+                messages.readFully(candidateMessage);
+                if (new String(candidateMessage, StandardCharsets.UTF_8).equals(message)) {
+                    result.add(toHex(sha1));
+                }
+            }
+        } catch (IOException excp) {
+            throw new GitletException(excp.getMessage());
+        }
+        return result;
+    }
+
+    /** Returns the records of journal-postings-new by key, each in increasing order. */
+    private Map<Long, List<Integer>> readNewPostings() throws IOException {
+        Map<Long, List<Integer>> result = new HashMap<>();
+        if (!newPostingsFile.exists()) {
+            return result;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(newPostingsFile)))) {
+            for (long n = newPostingsFile.length() / POSTING_LEN; n > 0; n -= 1) {
+                long key = in.readLong();
+                result.computeIfAbsent(key, k -> new ArrayList<>()).add(in.readInt());
+            }
+        }
+        return result;
+    }
+
+    /** The postings of one key: a range of journal-postings, and the new ones. */
+    private class Postings {
+        private final RandomAccessFile file;
+        private final long key;
+        /** the range of the key in FILE, in postings */
+        private final long from;
+        private final long to;
+        private final List<Integer> newRecords;
+
+        Postings(RandomAccessFile file, long key, Map<Long, List<Integer>> newPostings)
+                throws IOException {
+            this.file = file;
+            this.key = key;
+            // no record is as large as 1 << 32
+            this.from = file == null ? 0 : postingsBefore(key, 0);
+            this.to = file == null ? 0 : postingsBefore(key, 1L << 32);
+            this.newRecords = newPostings.getOrDefault(key, Collections.emptyList());
+        }
+
+        long count() {
+            return to - from + newRecords.size();
+        }
+
+        /**
+         * Returns the distinct records, in increasing order, leaving out
+         * the records past the end, which were never finished.
+         */
+        Collection<Integer> records() throws IOException {
+            TreeSet<Integer> records = new TreeSet<>();
+            if (to > from) {
+                byte[] bytes = new byte[(int) ((to - from) * POSTING_LEN)];
+                file.seek(from * POSTING_LEN);
+                file.readFully(bytes);
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                for (long i = from; i < to; i += 1) {
+                    buffer.getLong();
+                    records.add(buffer.getInt());
+                }
+            }
+            records.addAll(newRecords);
+            return records.headSet(size);
+        }
+
+        boolean contains(int record) throws IOException {
+            long i = postingsBefore(key, record);
+            if (i < to && readRecordAt(i) == record) {
+                return true;
+            }
+            return newRecords.contains(record);
+        }
+
+        /** Returns the number of postings in FILE that sort before KEY and RECORD. */
+        private long postingsBefore(long key, long record) throws IOException {
+            long lo = 0;
+            long hi = file == null ? 0 : file.length() / POSTING_LEN;
+            while (lo < hi) {
+                long mid = (lo + hi) >>> 1;
+                file.seek(mid * POSTING_LEN);
+                long midKey = file.readLong();
+                int midRecord = file.readInt();
+                if (midKey < key || (midKey == key && midRecord < record)) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        private int readRecordAt(long i) throws IOException {
+            file.seek(i * POSTING_LEN + 8);
+            return file.readInt();
+        }
+    }
+
+    /** Returns the key of WORD in the postings, the first 8 bytes of its sha1. */
+    private static long keyOf(String word) {
+        return Long.parseUnsignedLong(sha1(word).substring(0, 16), 16);
+    }
+
+    /** Returns the distinct words of MESSAGE, lowercased, a word is a run of letters and digits. */
+    private static List<String> tokenize(String message) {
+        TreeSet<String> words = new TreeSet<>();
+        Collections.addAll(words, message.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+"));
+        words.remove("");
+        return new ArrayList<>(words);
+    }
+
+    private void checkHeader(DataInputStream in) throws IOException {
+        for (byte b : MAGIC) {
+            if (in.readByte() != b) {
+                throw error("%s is not a commit journal.", journalFile);
+            }
+        }
+        if (in.readInt() != VERSION) {
+            throw error("Unsupported commit journal version in %s.", journalFile);
+        }
+    }
+
+    private static void skipFully(DataInputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            n -= skipped;
+        }
+    }
+}
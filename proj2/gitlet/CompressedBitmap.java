@@ -0,0 +1,375 @@
+package gitlet;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+/**
+ * An immutable set of non-negative ints, compressed the way roaring bitmaps are.
+ * <p>
+ * The ints are split by their upper 16 bits into chunks of 65536, and every
+ * chunk that holds any is a container in the cheapest of three forms: a sorted
+ * array of the lower 16 bits when there are few (2 bytes each), a list of runs
+ * when they come in long stretches (4 bytes a run), or else a plain bitset of
+ * 8 KB. The ancestors of a commit are mostly long stretches of commit-graph
+ * positions, so a history of a million commits usually takes a few runs.
+ * Finding an int is a binary search for its chunk and then one in the container.
+ *
+ * @author Linde
+ */
+class CompressedBitmap {
+
+    private static final byte ARRAY = 0;
+    private static final byte BITSET = 1;
+    private static final byte RUN = 2;
+    /** the most values an array container holds, beyond that a bitset is smaller */
+    private static final int MAX_ARRAY = 4096;
+    /** the number of longs in a bitset container, 65536 bits */
+    private static final int WORDS = 1024;
+
+    /** the upper 16 bits of the ints of each container, sorted */
+    private final char[] keys;
+    private final Container[] containers;
+
+    private CompressedBitmap(char[] keys, Container[] containers) {
+        this.keys = keys;
+        this.containers = containers;
+    }
+
+    /** Returns the set of the bits that are set in BITS. */
+    static CompressedBitmap of(BitSet bits) {
+        List<Character> keys = new ArrayList<>();
+        List<Container> containers = new ArrayList<>();
+        int chunks = (bits.length() + 0xffff) >>> 16;
+        for (int key = 0; key < chunks; key += 1) {
+            long[] words = Arrays.copyOf(
+                    bits.get(key << 16, (key + 1) << 16).toLongArray(), WORDS);
+            Container container = Container.of(words);
+            if (container != null) {
+                keys.add((char) key);
+                containers.add(container);
+            }
+        }
+        return make(keys, containers);
+    }
+
+    private static CompressedBitmap make(List<Character> keyList, List<Container> containers) {
+        char[] keys = new char[keyList.size()];
+        for (int i = 0; i < keys.length; i += 1) {
+            keys[i] = keyList.get(i);
+        }
+        return new CompressedBitmap(keys, containers.toArray(new Container[0]));
+    }
+
+    boolean contains(int value) {
+        int i = Arrays.binarySearch(keys, (char) (value >>> 16));
+        return i >= 0 && containers[i].contains(value & 0xffff);
+    }
+
+    /** Returns the ints that are in this set and in OTHER. */
+    CompressedBitmap and(CompressedBitmap other) {
+        List<Character> keys = new ArrayList<>();
+        List<Container> containers = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < this.keys.length && j < other.keys.length) {
+            if (this.keys[i] < other.keys[j]) {
+                i += 1;
+            } else if (this.keys[i] > other.keys[j]) {
+                j += 1;
+            } else {
+                Container container = this.containers[i].and(other.containers[j]);
+                if (container != null) {
+                    keys.add(this.keys[i]);
+                    containers.add(container);
+                }
+                i += 1;
+                j += 1;
+            }
+        }
+        return make(keys, containers);
+    }
+
+    /** Returns the set as an uncompressed BitSet. */
+    BitSet toBitSet() {
+        if (keys.length == 0) {
+            return new BitSet();
+        }
+        long[] words = new long[(keys[keys.length - 1] + 1) * WORDS];
+        for (int i = 0; i < keys.length; i += 1) {
+            System.arraycopy(containers[i].toWords(), 0, words, keys[i] * WORDS, WORDS);
+        }
+        return BitSet.valueOf(words);
+    }
+
+    /**
+     * Calls ACTION on every int of the set, the largest first,
+     * until it returns false.
+     */
+    void forEachDescending(IntPredicate action) {
+        for (int i = keys.length - 1; i >= 0; i -= 1) {
+            if (!containers[i].forEachDescending(keys[i] << 16, action)) {
+                return;
+            }
+        }
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(keys.length);
+        for (int i = 0; i < keys.length; i += 1) {
+            out.writeChar(keys[i]);
+            containers[i].write(out);
+        }
+    }
+
+    static CompressedBitmap read(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        char[] keys = new char[count];
+        Container[] containers = new Container[count];
+        for (int i = 0; i < count; i += 1) {
+            keys[i] = in.readChar();
+            containers[i] = Container.read(in);
+        }
+        return new CompressedBitmap(keys, containers);
+    }
+
+    /** The lower 16 bits of the ints of one chunk. */
+    private static final class Container {
+
+        private final byte type;
+        /** the sorted values of an array, or the start and length - 1 of every run */
+        private final char[] values;
+        /** the bits of a bitset */
+        private final long[] words;
+
+        private Container(byte type, char[] values, long[] words) {
+            this.type = type;
+            this.values = values;
+            this.words = words;
+        }
+
+        /** Returns the cheapest container of the bits WORDS, or null if none is set. */
+        static Container of(long[] words) {
+            int cardinality = 0;
+            int runs = 0;
+            long previous = 0;
+            for (long word : words) {
+                cardinality += Long.bitCount(word);
+                // a run starts at every set bit whose lower neighbour is clear
+                runs += Long.bitCount(word & ~((word << 1) | (previous >>> 63)));
+                previous = word;
+            }
+            if (cardinality == 0) {
+                return null;
+            }
+            if (runs * 2 <= Math.min(cardinality, MAX_ARRAY)) {
+                return new Container(RUN, runsOf(words, runs), null);
+            }
+            if (cardinality <= MAX_ARRAY) {
+                return new Container(ARRAY, valuesOf(words, cardinality), null);
+            }
+            return new Container(BITSET, null, words);
+        }
+
+        private static char[] valuesOf(long[] words, int cardinality) {
+            char[] values = new char[cardinality];
+            int n = 0;
+            for (int w = 0; w < WORDS; w += 1) {
+                for (long word = words[w]; word != 0; word &= word - 1) {
+                    values[n++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+                }
+            }
+            return values;
+        }
+
+        private static char[] runsOf(long[] words, int runs) {
+            char[] values = new char[runs * 2];
+            int n = 0;
+            int bit = 0;
+            while (n < values.length) {
+                int start = nextBit(words, bit, 0);
+                int end = nextBit(words, start, -1);
+                values[n++] = (char) start;
+                values[n++] = (char) (end - start - 1);
+                bit = end;
+            }
+            return values;
+        }
+
+        /**
+         * Returns the first bit from FROM on that is set, if FLIP is 0, or clear,
+         * if FLIP is -1, or 65536 if there is none.
+         */
+        private static int nextBit(long[] words, int from, long flip) {
+            int w = from >>> 6;
+            if (w >= WORDS) {
+                return WORDS * 64;
+            }
+            long word = (words[w] ^ flip) & (-1L << from);
+            while (word == 0) {
+                w += 1;
+                if (w == WORDS) {
+                    return WORDS * 64;
+                }
+                word = words[w] ^ flip;
+            }
+            return (w << 6) | Long.numberOfTrailingZeros(word);
+        }
+
+        /** Returns the values in this container and in OTHER, or null if there are none. */
+        Container and(Container other) {
+            if (type != RUN || other.type != RUN) {
+                long[] result = toWords();
+                long[] otherWords = other.toWords();
+                for (int w = 0; w < WORDS; w += 1) {
+                    result[w] &= otherWords[w];
+                }
+                return of(result);
+            }
+            // two lists of runs, the usual case for ancestors, overlap in runs
+            char[] result = new char[values.length + other.values.length];
+            int n = 0;
+            int i = 0;
+            int j = 0;
+            while (i < values.length && j < other.values.length) {
+                int start = Math.max(values[i], other.values[j]);
+                int end = values[i] + values[i + 1];
+                int otherEnd = other.values[j] + other.values[j + 1];
+                if (start <= Math.min(end, otherEnd)) {
+                    result[n++] = (char) start;
+                    result[n++] = (char) (Math.min(end, otherEnd) - start);
+                }
+                if (end <= otherEnd) {
+                    i += 2;
+                } else {
+                    j += 2;
+                }
+            }
+            return n == 0 ? null : new Container(RUN, Arrays.copyOf(result, n), null);
+        }
+
+        boolean contains(int low) {
+            switch (type) {
+                case ARRAY:
+                    return Arrays.binarySearch(values, (char) low) >= 0;
+                case RUN:
+                    // the last run that starts at or below LOW
+                    int lo = 0;
+                    int hi = values.length / 2 - 1;
+                    while (lo <= hi) {
+                        int mid = (lo + hi) >>> 1;
+                        if (values[mid * 2] <= low) {
+                            lo = mid + 1;
+                        } else {
+                            hi = mid - 1;
+                        }
+                    }
+                    return hi >= 0 && low <= values[hi * 2] + values[hi * 2 + 1];
+                default:
+                    return (words[low >>> 6] & (1L << low)) != 0;
+            }
+        }
+
+        long[] toWords() {
+            long[] result = new long[WORDS];
+            switch (type) {
+                case ARRAY:
+                    for (char value : values) {
+                        result[value >>> 6] |= 1L << value;
+                    }
+                    break;
+                case RUN:
+                    for (int r = 0; r < values.length; r += 2) {
+                        int start = values[r];
+                        int end = start + values[r + 1];
+                        for (int w = start >>> 6; w <= end >>> 6; w += 1) {
+                            long mask = -1L;
+                            if (w == start >>> 6) {
+                                mask &= -1L << start;
+                            }
+                            if (w == end >>> 6) {
+                                mask &= -1L >>> (63 - (end & 63));
+                            }
+                            result[w] |= mask;
+                        }
+                    }
+                    break;
+                default:
+                    System.arraycopy(words, 0, result, 0, WORDS);
+                    break;
+            }
+            return result;
+        }
+
+        /** Calls ACTION on BASE plus every value, the largest first. Returns false if it stopped. */
+        boolean forEachDescending(int base, IntPredicate action) {
+            switch (type) {
+                case ARRAY:
+                    for (int i = values.length - 1; i >= 0; i -= 1) {
+                        if (!action.test(base | values[i])) {
+                            return false;
+                        }
+                    }
+                    return true;
+                case RUN:
+                    for (int r = values.length - 2; r >= 0; r -= 2) {
+                        for (int value = values[r] + values[r + 1]; value >= values[r]; value -= 1) {
+                            if (!action.test(base | value)) {
+                                return false;
+                            }
+                        }
+                    }
+                    return true;
+                default:
+                    for (int w = WORDS - 1; w >= 0; w -= 1) {
+                        for (long word = words[w]; word != 0; ) {
+                            int bit = 63 - Long.numberOfLeadingZeros(word);
+                            if (!action.test(base | (w << 6) | bit)) {
+                                return false;
+                            }
+                            word &= ~(1L << bit);
+                        }
+                    }
+                    return true;
+            }
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeByte(type);
+            if (type == BITSET) {
+                for (long word : words) {
+                    out.writeLong(word);
+                }
+                return;
+            }
+            out.writeInt(values.length);
+            for (char value : values) {
+                out.writeChar(value);
+            }
+        }
+
+        static Container read(DataInputStream in) throws IOException {
+            byte type = in.readByte();
+            if (type == BITSET) {
+                long[] words = new long[WORDS];
+                for (int w = 0; w < WORDS; w += 1) {
+                    words[w] = in.readLong();
+                }
+                return new Container(type, null, words);
+            }
+            if (type != ARRAY && type != RUN) {
+                throw new IOException("unknown container type " + type);
+            }
+            char[] values = new char[in.readInt()];
+            for (int i = 0; i < values.length; i += 1) {
+                values[i] = in.readChar();
+            }
+            return new Container(type, values, null);
+        }
+    }
+}
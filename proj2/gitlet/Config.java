@@ -0,0 +1,110 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+
+/**
+ * The settings of a repository, kept in .gitlet/config as a java.util.Properties file.
+ * <p>
+ * Known keys:
+ * <pre>
+ *     core.compression   0 (the default) stores blobs verbatim,
+ *                        1-9 deflates new blobs at that level
+ *     core.checkout      copy (the default) copies blobs into the working directory,
+ *                        link hard-links the blobs that are stored verbatim
+ *     remote.NAME.path   the .gitlet directory of the remote NAME, set by add-remote
+ * </pre>
+ *
+ * @author Linde
+ */
+class Config {
+
+    /** the name of the config file in a .gitlet directory */
+    static final String FILENAME = "config";
+
+    static final String COMPRESSION = "core.compression";
+
+    static final String CHECKOUT = "core.checkout";
+
+    /** Returns the key of the path of the remote named REMOTENAME. */
+    static String remotePathKey(String remoteName) {
+        return "remote." + remoteName + ".path";
+    }
+
+    private final Properties properties = new Properties();
+
+    /** Reads CONFIGFILE, a missing file has no settings. */
+    static Config read(File configFile) {
+        Config config = new Config();
+        if (configFile.exists()) {
+            try (InputStream in = new FileInputStream(configFile)) {
+                config.properties.load(in);
+            } catch (IOException excp) {
+                throw new GitletException(excp.getMessage());
+            }
+        }
+        return config;
+    }
+
+    /**
+     * Replaces the config file with the current settings through LOCK, the
+     * lock of the file, which the caller took before it read the settings.
+     */
+    void write(LockFile lock) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            properties.store(out, null);
+        } catch (IOException excp) {
+            throw new GitletException(excp.getMessage());
+        }
+        // store() escapes everything outside of ASCII
+        lock.commit(new String(out.toByteArray(), StandardCharsets.US_ASCII));
+    }
+
+    /** Returns the value of KEY, or null if it isn't set. */
+    String get(String key) {
+        return properties.getProperty(key);
+    }
+
+    void set(String key, String value) {
+        properties.setProperty(key, value);
+    }
+
+    void remove(String key) {
+        properties.remove(key);
+    }
+
+    /** Returns the compression level for new blobs, 0 means no compression. */
+    int getCompressionLevel() {
+        String value = get(COMPRESSION);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            int level = Integer.parseInt(value.trim());
+            if (level >= 0 && level <= 9) {
+                return level;
+            }
+        } catch (NumberFormatException excp) {
+            // fall through
+        }
+        throw new GitletException("Invalid " + COMPRESSION + " in config: " + value);
+    }
+
+    /** Returns whether checkout hard-links blobs into the working directory. */
+    boolean isLinkCheckout() {
+        String value = get(CHECKOUT);
+        if (value == null || value.trim().equals("copy")) {
+            return false;
+        }
+        if (value.trim().equals("link")) {
+            return true;
+        }
+        throw new GitletException("Invalid " + CHECKOUT + " in config: " + value);
+    }
+}
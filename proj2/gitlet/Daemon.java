@@ -0,0 +1,163 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static gitlet.Utils.join;
+
+/**
+ * Serves gitlet commands over a Unix domain socket, .gitlet/daemon.sock,
+ * so that a script running thousands of commands starts one JVM instead of
+ * thousands, and every command after the first finds the classes loaded,
+ * the code compiled and the commit and blob caches warm.
+ * <p>
+ * Start it with "java gitlet.Main daemon" in the working directory, run
+ * commands with "java gitlet.Client ARGS", stop it with "java gitlet.Client daemon stop".
+ * <p>
+ * A request is every argument in UTF-8 followed by a 0 byte, and ends when
+ * the client shuts down its side of the connection, so a script can also send
+ * one without starting any JVM: printf 'status\0' | nc -U -N .gitlet/daemon.sock
+ * The daemon runs the command with System.out going to a buffer, writes the
+ * buffer back and closes the connection.
+ * Commands run one at a time, since Repository keeps its state in static fields.
+ *
+ * @author Linde
+ */
+class Daemon {
+
+    static final File SOCKET_FILE = join(Repository.GITLET_DIR, "daemon.sock");
+
+    private Daemon() {
+    }
+
+    /** Serves commands until a client asks us to stop. */
+    static void serve() {
+        if (SOCKET_FILE.exists()) {
+            SocketChannel running = connect();
+            if (running != null) {
+                try {
+                    running.close();
+                } catch (IOException excp) {
+                    // we only wanted to know whether it answers
+                }
+                throw new GitletException("A daemon is already running.");
+            }
+            // a daemon that was killed leaves its socket behind
+            SOCKET_FILE.delete();
+        }
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(SOCKET_FILE.toPath()));
+            Thread removeSocket = new Thread(SOCKET_FILE::delete);
+            Runtime.getRuntime().addShutdownHook(removeSocket);
+            boolean stop = false;
+            while (!stop) {
+                try (SocketChannel client = server.accept()) {
+                    stop = handle(client);
+                } catch (IOException excp) {
+                    // the client went away, the next one may do better
+                    System.err.println(excp.getMessage());
+                }
+            }
+            Runtime.getRuntime().removeShutdownHook(removeSocket);
+        } catch (IOException excp) {
+            throw new GitletException(excp.getMessage());
+        } finally {
+            SOCKET_FILE.delete();
+        }
+    }
+
+    /**
+     * This is "daemon stop" when there is no daemon to send it to,
+     * a running daemon handles it in handle().
+     */
+    static void stop() {
+        throw new GitletException("No daemon is running.");
+    }
+
+    /**
+     * Returns a connection to the daemon of this repository,
+     * or null if no daemon is listening.
+     */
+    static SocketChannel connect() {
+        if (!SOCKET_FILE.exists()) {
+            return null;
+        }
+        try {
+            return SocketChannel.open(UnixDomainSocketAddress.of(SOCKET_FILE.toPath()));
+        } catch (IOException excp) {
+            return null;
+        }
+    }
+
+    /** Writes the command ARGS to OUT, the way readRequest() reads it. */
+    static void writeRequest(OutputStream out, String[] args) throws IOException {
+        for (String arg : args) {
+            out.write(arg.getBytes(StandardCharsets.UTF_8));
+            out.write(0);
+        }
+        out.flush();
+    }
+
+    /** Reads the arguments of a command until the client stops writing. */
+    private static String[] readRequest(InputStream in) throws IOException {
+        byte[] request = in.readAllBytes();
+        List<String> args = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < request.length; i += 1) {
+            if (request[i] == 0) {
+                args.add(new String(request, start, i - start, StandardCharsets.UTF_8));
+                start = i + 1;
+            }
+        }
+        return args.toArray(new String[0]);
+    }
+
+    /** Runs the command CLIENT sent us, returns true if it was "daemon stop". */
+    private static boolean handle(SocketChannel client) throws IOException {
+        String[] args = readRequest(Channels.newInputStream(client));
+        if (args.length == 0) {
+            // serve() checking whether a daemon is running, or a client with nothing to say
+            return false;
+        }
+        boolean stop = args.length == 2 && args[0].equals("daemon") && args[1].equals("stop");
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(output, true));
+        try {
+            if (stop) {
+                System.out.println("Daemon stopped.");
+            } else {
+                Repository.forgetCommandState();
+                Main.run(args);
+            }
+        } catch (GitletException excp) {
+            System.out.println(excp.getMessage());
+        } catch (RuntimeException excp) {
+            // a bug in one command shouldn't take the daemon down
+            System.out.println(excp);
+        } finally {
+            System.out.flush();
+            System.setOut(stdout);
+        }
+        if (Boolean.getBoolean("gitlet.cacheStats")) {
+            System.err.println(Repository.getCommitCacheStats());
+        }
+        OutputStream out = Channels.newOutputStream(client);
+        out.write(output.toByteArray());
+        out.flush();
+        return stop;
+    }
+}
@@ -0,0 +1,182 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Describes one version of a file as a list of instructions against another
+ * version, its base, so that a file that changes a few lines per commit
+ * doesn't cost a full copy per commit.
+ * <p>
+ * There are two instructions, all integers are big-endian:
+ * <pre>
+ *     COPY      1 byte 1, 4 bytes offset, 4 bytes length:
+ *               the next LENGTH bytes are the bytes of the base at OFFSET
+ *     INSERT    1 byte 0, 4 bytes length, the bytes:
+ *               the next LENGTH bytes are given right here
+ * </pre>
+ * To find what can be copied, encode() remembers a hash of every WINDOW-byte
+ * block of the base, then slides a WINDOW-byte rolling hash over the target.
+ * Whenever the hash matches a block, and the bytes really are the same,
+ * the match is grown in both directions and becomes a COPY.
+ *
+ * @author Linde
+ */
+class Delta {
+
+    private static final int INSERT = 0;
+    private static final int COPY = 1;
+
+    /** the length of the blocks we look for in the base */
+    private static final int WINDOW = 16;
+    private static final int MULTIPLIER = 31;
+    /** MULTIPLIER to the power of WINDOW - 1, to take the oldest byte out of the hash */
+    private static final int OLDEST_FACTOR;
+
+    static {
+        int factor = 1;
+        for (int i = 0; i < WINDOW - 1; i += 1) {
+            factor *= MULTIPLIER;
+        }
+        OLDEST_FACTOR = factor;
+    }
+
+    private Delta() {
+    }
+
+    /** Returns the instructions that turn BASE into TARGET. */
+    static byte[] encode(byte[] base, byte[] target) {
+        int[] table = indexBlocks(base);
+        int mask = table.length - 1;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            int insertStart = 0;
+            int i = 0;
+            int hash = target.length >= WINDOW ? hash(target, 0) : 0;
+            while (i + WINDOW <= target.length) {
+                int candidate = table.length == 0 ? -1 : table[hash & mask] - 1;
+                if (candidate >= 0 && sameBytes(base, candidate, target, i, WINDOW)) {
+                    // grow the match backwards into what we were about to insert,
+                    // and forwards as far as the two agree
+                    int start = i;
+                    int baseStart = candidate;
+                    while (start > insertStart && baseStart > 0
+                            && base[baseStart - 1] == target[start - 1]) {
+                        start -= 1;
+                        baseStart -= 1;
+                    }
+                    int length = i - start + WINDOW;
+                    while (start + length < target.length && baseStart + length < base.length
+                            && base[baseStart + length] == target[start + length]) {
+                        length += 1;
+                    }
+                    writeInsert(out, target, insertStart, start);
+                    out.writeByte(COPY);
+                    out.writeInt(baseStart);
+                    out.writeInt(length);
+                    i = start + length;
+                    insertStart = i;
+                    if (i + WINDOW <= target.length) {
+                        hash = hash(target, i);
+                    }
+                } else if (i + WINDOW < target.length) {
+                    hash = (hash - (target[i] & 0xff) * OLDEST_FACTOR) * MULTIPLIER
+                            + (target[i + WINDOW] & 0xff);
+                    i += 1;
+                } else {
+                    break;
+                }
+            }
+            writeInsert(out, target, insertStart, target.length);
+            out.flush();
+        } catch (IOException excp) {
+            // a ByteArrayOutputStream doesn't throw
+            throw new GitletException(excp.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns the contents described by the instructions in DELTA applied to BASE,
+     * LENGTH is the length of the result.
+     */
+    static byte[] apply(byte[] base, InputStream delta, int length) throws IOException {
+        byte[] result = new byte[length];
+        int position = 0;
+        DataInputStream in = new DataInputStream(delta);
+        while (true) {
+            int instruction = in.read();
+            if (instruction < 0) {
+                break;
+            }
+            int count;
+            if (instruction == COPY) {
+                int offset = in.readInt();
+                count = in.readInt();
+                System.arraycopy(base, offset, result, position, count);
+            } else if (instruction == INSERT) {
+                count = in.readInt();
+                in.readFully(result, position, count);
+            } else {
+                throw new GitletException("Corrupt delta instruction " + instruction + ".");
+            }
+            position += count;
+        }
+        if (position != length) {
+            throw new EOFException("Delta ended after " + position + " of " + length + " bytes.");
+        }
+        return result;
+    }
+
+    /**
+     * Returns an open-addressing table from the hash of each WINDOW-byte block of
+     * BASE to the offset of the block plus 1 (0 is an empty slot). When two blocks
+     * land in the same slot, the later one wins, encode() checks the bytes anyway.
+     */
+    private static int[] indexBlocks(byte[] base) {
+        int blocks = base.length / WINDOW;
+        if (blocks == 0) {
+            return new int[0];
+        }
+        int size = Integer.highestOneBit(blocks) << 2;
+        int[] table = new int[size];
+        for (int offset = 0; offset + WINDOW <= base.length; offset += WINDOW) {
+            table[hash(base, offset) & (size - 1)] = offset + 1;
+        }
+        return table;
+    }
+
+    private static int hash(byte[] bytes, int offset) {
+        int hash = 0;
+        for (int i = offset; i < offset + WINDOW; i += 1) {
+            hash = hash * MULTIPLIER + (bytes[i] & 0xff);
+        }
+        return hash;
+    }
+
+    private static boolean sameBytes(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        if (aOffset + length > a.length) {
+            return false;
+        }
+        for (int k = 0; k < length; k += 1) {
+            if (a[aOffset + k] != b[bOffset + k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeInsert(DataOutputStream out, byte[] target, int from, int to)
+            throws IOException {
+        if (from < to) {
+            out.writeByte(INSERT);
+            out.writeInt(to - from);
+            out.write(target, from, to - from);
+        }
+    }
+}
@@ -0,0 +1,454 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Line diffs, for "gitlet diff" and for merging a file both branches changed.
+ * <p>
+ * The lines of both sides are interned into integer ids first, so the
+ * algorithms compare ints and every line is hashed only once. The common
+ * prefix and suffix are cut off before anything else, which for a big file
+ * with a small edit leaves almost nothing to do.
+ * <p>
+ * MYERS is Myers' O(ND) algorithm in its linear space form: find the middle
+ * snake of the shortest edit script, split the problem there and recurse.
+ * PATIENCE first matches the lines that occur exactly once on each side, in
+ * the longest increasing run, and diffs the gaps between them; it gives more
+ * readable diffs of code that moved around, and falls back to Myers where
+ * there is no such line.
+ * <p>
+ * Lines keep their "\n", so joining them gives back the file exactly,
+ * including a last line without one.
+ *
+ * @author Linde
+ */
+class Diff {
+
+    enum Algorithm { MYERS, PATIENCE }
+
+    /** Lines [aStart, aEnd) of the old side were replaced by lines [bStart, bEnd) of the new side. */
+    static class Hunk {
+        final int aStart;
+        final int aEnd;
+        final int bStart;
+        final int bEnd;
+
+        Hunk(int aStart, int aEnd, int bStart, int bEnd) {
+            this.aStart = aStart;
+            this.aEnd = aEnd;
+            this.bStart = bStart;
+            this.bEnd = bEnd;
+        }
+    }
+
+    /** The result of a three-way merge, CONFLICT tells whether TEXT has conflict markers. */
+    static class MergeResult {
+        final String text;
+        final boolean conflict;
+
+        MergeResult(String text, boolean conflict) {
+            this.text = text;
+            this.conflict = conflict;
+        }
+    }
+
+    private final int[] a;
+    private final int[] b;
+    private final boolean[] aChanged;
+    private final boolean[] bChanged;
+    /** the furthest reaching paths of the forward and backward searches, by diagonal */
+    private final int[] forward;
+    private final int[] backward;
+    private final int offset;
+
+    private Diff(int[] a, int[] b) {
+        this.a = a;
+        this.b = b;
+        this.aChanged = new boolean[a.length];
+        this.bChanged = new boolean[b.length];
+        this.offset = (a.length + b.length) / 2 + 2;
+        this.forward = new int[2 * offset + 1];
+        this.backward = new int[2 * offset + 1];
+    }
+
+    /** Returns the lines of TEXT, each with its "\n" (the last one may have none). */
+    static List<String> splitLines(String text) {
+        List<String> lines = new ArrayList<>();
+        int start = 0;
+        while (start < text.length()) {
+            int end = text.indexOf('\n', start);
+            end = end < 0 ? text.length() : end + 1;
+            lines.add(text.substring(start, end));
+            start = end;
+        }
+        return lines;
+    }
+
+    /** Returns the hunks that turn the lines A into the lines B, in order. */
+    static List<Hunk> diff(List<String> a, List<String> b, Algorithm algorithm) {
+        Map<String, Integer> ids = new HashMap<>();
+        Diff diff = new Diff(intern(a, ids), intern(b, ids));
+        if (algorithm == Algorithm.PATIENCE) {
+            diff.patience(0, a.size(), 0, b.size());
+        } else {
+            diff.myers(0, a.size(), 0, b.size());
+        }
+        return diff.hunks();
+    }
+
+    private static int[] intern(List<String> lines, Map<String, Integer> ids) {
+        int[] result = new int[lines.size()];
+        for (int i = 0; i < result.length; i += 1) {
+            Integer id = ids.get(lines.get(i));
+            if (id == null) {
+                id = ids.size();
+                ids.put(lines.get(i), id);
+            }
+            result[i] = id;
+        }
+        return result;
+    }
+
+    /* MYERS */
+
+    /** Marks the changed lines between A[ALO, AHI) and B[BLO, BHI). */
+    private void myers(int aLo, int aHi, int bLo, int bHi) {
+        while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+            aLo += 1;
+            bLo += 1;
+        }
+        while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+            aHi -= 1;
+            bHi -= 1;
+        }
+        if (aLo == aHi || bLo == bHi) {
+            Arrays.fill(aChanged, aLo, aHi, true);
+            Arrays.fill(bChanged, bLo, bHi, true);
+            return;
+        }
+        // both sides are left with a difference at each end, so there are at
+        // least two edits, and the three parts below are each smaller
+        int[] snake = middleSnake(aLo, aHi, bLo, bHi);
+        myers(aLo, snake[0], bLo, snake[1]);
+        myers(snake[0], snake[2], snake[1], snake[3]);
+        myers(snake[2], aHi, snake[3], bHi);
+    }
+
+    /**
+     * Returns {x, y, u, v}: a shortest edit script from (ALO, BLO) to (AHI, BHI)
+     * goes through (x, y) and (u, v), with at most one edit between the two.
+     * The search runs forward from the top left and backward from the bottom
+     * right at once, and stops where they meet, after about D/2 steps each.
+     */
+    private int[] middleSnake(int aLo, int aHi, int bLo, int bHi) {
+        int width = aHi - aLo;
+        int height = bHi - bLo;
+        int delta = width - height;
+        boolean odd = (delta & 1) != 0;
+        int max = (width + height + 1) / 2;
+        forward[offset + 1] = aLo;
+        backward[offset + 1] = bHi;
+        for (int d = 0; d <= max; d += 1) {
+            // forward, on diagonal k = x - y (relative to the corner)
+            for (int k = d; k >= -d; k -= 2) {
+                int x;
+                int px;
+                if (k == -d || (k != d && forward[offset + k - 1] < forward[offset + k + 1])) {
+                    px = forward[offset + k + 1];
+                    x = px;
+                } else {
+                    px = forward[offset + k - 1];
+                    x = px + 1;
+                }
+                int y = bLo + (x - aLo) - k;
+                int py = (d == 0 || x != px) ? y : y - 1;
+                while (x < aHi && y < bHi && a[x] == b[y]) {
+                    x += 1;
+                    y += 1;
+                }
+                forward[offset + k] = x;
+                int c = k - delta;
+                if (odd && c >= -(d - 1) && c <= d - 1 && y >= backward[offset + c]) {
+                    return new int[]{px, py, x, y};
+                }
+            }
+            // backward, on diagonal c = k - delta
+            for (int c = -d; c <= d; c += 2) {
+                int y;
+                int py;
+                if (c == -d || (c != d && backward[offset + c - 1] > backward[offset + c + 1])) {
+                    py = backward[offset + c + 1];
+                    y = py;
+                } else {
+                    py = backward[offset + c - 1];
+                    y = py - 1;
+                }
+                int k = c + delta;
+                int x = aLo + (y - bLo) + k;
+                int px = (d == 0 || y != py) ? x : x + 1;
+                while (x > aLo && y > bLo && a[x - 1] == b[y - 1]) {
+                    x -= 1;
+                    y -= 1;
+                }
+                backward[offset + c] = y;
+                if (!odd && k >= -d && k <= d && x <= forward[offset + k]) {
+                    return new int[]{x, y, px, py};
+                }
+            }
+        }
+        throw new IllegalStateException("the searches never met");
+    }
+
+    /* PATIENCE */
+
+    /** Marks the changed lines between A[ALO, AHI) and B[BLO, BHI). */
+    private void patience(int aLo, int aHi, int bLo, int bHi) {
+        while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+            aLo += 1;
+            bLo += 1;
+        }
+        while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+            aHi -= 1;
+            bHi -= 1;
+        }
+        if (aLo == aHi || bLo == bHi) {
+            Arrays.fill(aChanged, aLo, aHi, true);
+            Arrays.fill(bChanged, bLo, bHi, true);
+            return;
+        }
+        int[][] anchors = uniqueCommonLines(aLo, aHi, bLo, bHi);
+        if (anchors.length == 0) {
+            myers(aLo, aHi, bLo, bHi);
+            return;
+        }
+        int aPrev = aLo;
+        int bPrev = bLo;
+        for (int[] anchor : anchors) {
+            patience(aPrev, anchor[0], bPrev, anchor[1]);
+            aPrev = anchor[0] + 1;
+            bPrev = anchor[1] + 1;
+        }
+        patience(aPrev, aHi, bPrev, bHi);
+    }
+
+    /**
+     * Returns the pairs {i, j} with A[i] == B[j] where that line occurs once in
+     * A[ALO, AHI) and once in B[BLO, BHI), keeping the longest run of them that
+     * is in the same order on both sides.
+     */
+    private int[][] uniqueCommonLines(int aLo, int aHi, int bLo, int bHi) {
+        // line id -> position in A, or -1 if it isn't unique there
+        Map<Integer, Integer> inA = new HashMap<>();
+        for (int i = aLo; i < aHi; i += 1) {
+            inA.put(a[i], inA.containsKey(a[i]) ? -1 : i);
+        }
+        Map<Integer, Integer> inB = new HashMap<>();
+        for (int j = bLo; j < bHi; j += 1) {
+            inB.put(b[j], inB.containsKey(b[j]) ? -1 : j);
+        }
+        List<int[]> pairs = new ArrayList<>();
+        for (int i = aLo; i < aHi; i += 1) {
+            Integer j = inB.get(a[i]);
+            if (inA.get(a[i]) == i && j != null && j >= 0) {
+                pairs.add(new int[]{i, j});
+            }
+        }
+        // the pairs are in the order of A, patience sort them by their place in B
+        int[] tails = new int[pairs.size()];
+        int[] previous = new int[pairs.size()];
+        int length = 0;
+        for (int p = 0; p < pairs.size(); p += 1) {
+            int lo = 0;
+            int hi = length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (pairs.get(tails[mid])[1] < pairs.get(p)[1]) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            previous[p] = lo > 0 ? tails[lo - 1] : -1;
+            tails[lo] = p;
+            if (lo == length) {
+                length += 1;
+            }
+        }
+        int[][] result = new int[length][];
+        for (int p = length > 0 ? tails[length - 1] : -1, n = length - 1; p >= 0;
+             p = previous[p], n -= 1) {
+            result[n] = pairs.get(p);
+        }
+        return result;
+    }
+
+    /* HUNKS */
+
+    private List<Hunk> hunks() {
+        List<Hunk> hunks = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < b.length) {
+            if (i < a.length && j < b.length && !aChanged[i] && !bChanged[j]) {
+                i += 1;
+                j += 1;
+                continue;
+            }
+            int aStart = i;
+            int bStart = j;
+            while (i < a.length && aChanged[i]) {
+                i += 1;
+            }
+            while (j < b.length && bChanged[j]) {
+                j += 1;
+            }
+            hunks.add(new Hunk(aStart, i, bStart, j));
+        }
+        return hunks;
+    }
+
+    /**
+     * Returns HUNKS between the lines A and B as a unified diff with CONTEXT
+     * lines around each change, under the header naming the two sides.
+     */
+    static String unified(String aName, String bName, List<String> a, List<String> b,
+                          List<Hunk> hunks, int context) {
+        StringBuilder out = new StringBuilder();
+        out.append("--- ").append(aName).append('\n');
+        out.append("+++ ").append(bName).append('\n');
+        int h = 0;
+        while (h < hunks.size()) {
+            // hunks whose context would touch are printed as one
+            int last = h;
+            while (last + 1 < hunks.size()
+                    && hunks.get(last + 1).aStart - hunks.get(last).aEnd <= 2 * context) {
+                last += 1;
+            }
+            Hunk first = hunks.get(h);
+            int aFrom = Math.max(0, first.aStart - context);
+            int bFrom = first.bStart - (first.aStart - aFrom);
+            int aTo = Math.min(a.size(), hunks.get(last).aEnd + context);
+            int bTo = hunks.get(last).bEnd + (aTo - hunks.get(last).aEnd);
+            out.append("@@ -").append(range(aFrom, aTo)).append(" +")
+                    .append(range(bFrom, bTo)).append(" @@\n");
+            int i = aFrom;
+            for (int k = h; k <= last; k += 1) {
+                Hunk hunk = hunks.get(k);
+                appendLines(out, ' ', a, i, hunk.aStart);
+                appendLines(out, '-', a, hunk.aStart, hunk.aEnd);
+                appendLines(out, '+', b, hunk.bStart, hunk.bEnd);
+                i = hunk.aEnd;
+            }
+            appendLines(out, ' ', a, i, aTo);
+            h = last + 1;
+        }
+        return out.toString();
+    }
+
+    private static String range(int from, int to) {
+        int length = to - from;
+        // an empty range names the line before it
+        return (length == 0 ? from : from + 1) + (length == 1 ? "" : "," + length);
+    }
+
+    private static void appendLines(StringBuilder out, char prefix, List<String> lines,
+                                    int from, int to) {
+        for (int i = from; i < to; i += 1) {
+            String line = lines.get(i);
+            out.append(prefix).append(line);
+            if (!line.endsWith("\n")) {
+                out.append("\n\\ No newline at end of file\n");
+            }
+        }
+    }
+
+    /* MERGE */
+
+    /**
+     * Merges the changes from BASE to OURS and from BASE to THEIRS. Changes
+     * to different lines are both taken; changes to the same or adjacent
+     * lines of BASE conflict, unless both sides made the same change, and are
+     * written between conflict markers, ours first.
+     */
+    static MergeResult merge(List<String> base, List<String> ours, List<String> theirs,
+                             Algorithm algorithm) {
+        List<Hunk> oursHunks = diff(base, ours, algorithm);
+        List<Hunk> theirsHunks = diff(base, theirs, algorithm);
+        StringBuilder out = new StringBuilder();
+        boolean conflict = false;
+        int basePos = 0;
+        int i = 0;
+        int j = 0;
+        while (i < oursHunks.size() || j < theirsHunks.size()) {
+            // a group of hunks whose base ranges overlap or touch
+            int iFirst = i;
+            int jFirst = j;
+            int lo;
+            int hi;
+            if (j == theirsHunks.size()
+                    || (i < oursHunks.size() && oursHunks.get(i).aStart <= theirsHunks.get(j).aStart)) {
+                lo = oursHunks.get(i).aStart;
+                hi = oursHunks.get(i).aEnd;
+                i += 1;
+            } else {
+                lo = theirsHunks.get(j).aStart;
+                hi = theirsHunks.get(j).aEnd;
+                j += 1;
+            }
+            while (true) {
+                if (i < oursHunks.size() && oursHunks.get(i).aStart <= hi) {
+                    hi = Math.max(hi, oursHunks.get(i).aEnd);
+                    i += 1;
+                } else if (j < theirsHunks.size() && theirsHunks.get(j).aStart <= hi) {
+                    hi = Math.max(hi, theirsHunks.get(j).aEnd);
+                    j += 1;
+                } else {
+                    break;
+                }
+            }
+            appendRange(out, base, basePos, lo);
+            List<String> oursPart = side(base, ours, oursHunks, iFirst, i, lo, hi);
+            List<String> theirsPart = side(base, theirs, theirsHunks, jFirst, j, lo, hi);
+            if (iFirst == i) {
+                appendRange(out, theirsPart, 0, theirsPart.size());
+            } else if (jFirst == j || oursPart.equals(theirsPart)) {
+                appendRange(out, oursPart, 0, oursPart.size());
+            } else {
+                conflict = true;
+                out.append("<<<<<<< HEAD\n");
+                appendRange(out, oursPart, 0, oursPart.size());
+                out.append("=======\n");
+                appendRange(out, theirsPart, 0, theirsPart.size());
+                out.append(">>>>>>>\n");
+            }
+            basePos = hi;
+        }
+        appendRange(out, base, basePos, base.size());
+        return new MergeResult(out.toString(), conflict);
+    }
+
+    /**
+     * Returns the lines of SIDE that replace BASE[LO, HI), where HUNKS[FROM, TO)
+     * are the hunks of SIDE in that range; the base lines between them are
+     * unchanged on this side.
+     */
+    private static List<String> side(List<String> base, List<String> side, List<Hunk> hunks,
+                                     int from, int to, int lo, int hi) {
+        if (from == to) {
+            return base.subList(lo, hi);
+        }
+        Hunk first = hunks.get(from);
+        Hunk last = hunks.get(to - 1);
+        return side.subList(first.bStart - (first.aStart - lo), last.bEnd + (hi - last.aEnd));
+    }
+
+    private static void appendRange(StringBuilder out, List<String> lines, int from, int to) {
+        for (int i = from; i < to; i += 1) {
+            out.append(lines.get(i));
+        }
+    }
+}
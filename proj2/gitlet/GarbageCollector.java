@@ -0,0 +1,188 @@
+package gitlet;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the objects no branch, HEAD or staged file can reach, and deletes them.
+ * <p>
+ * Every object of the store, loose or packed, gets an index in one sorted
+ * array of sha1s, so the marks are a BitSet of one bit per object and finding
+ * an object is a binary search. mark() walks from a root with an explicit
+ * stack, commit to parents and root tree, tree to subtrees and blobs, blob to
+ * the base of its delta or its chunks, so a history of any depth takes no
+ * stack space. sweep() then deletes the loose objects that weren't marked,
+ * and rewrites the packs that hold any, without them.
+ * <p>
+ * An object another command has just written may not be referred to yet,
+ * e.g. a blob add() stored before it writes the index, or the commit objects
+ * fetch() puts in a pack before it moves the branch. So objects younger than
+ * the grace period are marked as roots too, with everything they reach.
+ *
+ * @author Linde
+ */
+class GarbageCollector {
+
+    /** unreachable objects younger than this are kept, two weeks */
+    static final long GRACE_PERIOD_MILLIS = 14L * 24 * 60 * 60 * 1000;
+
+    private final ObjectStore store;
+    private final List<Pack.Entry> looseObjects;
+    private final List<Pack> packs;
+
+    /** the sha1 of every object, sorted, each once */
+    private final String[] sha1s;
+    /** the type of the object at the same index, one of the ObjectStore type constants */
+    private final byte[] types;
+    private final BitSet marked;
+
+    /** Indexes every object of STORE, none of them marked yet. */
+    GarbageCollector(ObjectStore store) {
+        this.store = store;
+        this.looseObjects = store.listLooseObjects();
+        this.packs = store.listPacks();
+        Map<String, Integer> typeOf = new HashMap<>();
+        for (Pack.Entry entry : looseObjects) {
+            typeOf.put(entry.sha1, entry.type);
+        }
+        for (Pack pack : packs) {
+            for (int i = 0; i < pack.size(); i += 1) {
+                typeOf.putIfAbsent(pack.sha1At(i), pack.typeAt(i));
+            }
+        }
+        this.sha1s = typeOf.keySet().toArray(new String[0]);
+        Arrays.sort(sha1s);
+        this.types = new byte[sha1s.length];
+        for (int i = 0; i < sha1s.length; i += 1) {
+            types[i] = typeOf.get(sha1s[i]).byteValue();
+        }
+        this.marked = new BitSet(sha1s.length);
+    }
+
+    /** Returns the number of objects in the store. */
+    int size() {
+        return sha1s.length;
+    }
+
+    /**
+     * Marks the loose objects modified at CUTOFF or later, and the objects
+     * of the packs written at CUTOFF or later, with everything they reach.
+     */
+    void markNewerThan(long cutoff) {
+        for (Pack.Entry entry : looseObjects) {
+            if (entry.file.lastModified() >= cutoff) {
+                mark(entry.sha1);
+            }
+        }
+        for (Pack pack : packs) {
+            if (pack.getPackFile().lastModified() >= cutoff) {
+                for (int i = 0; i < pack.size(); i += 1) {
+                    mark(pack.sha1At(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks the object ROOTSHA1 and everything it reaches. An object that is
+     * already marked is not walked again, so marking from every branch costs
+     * about as much as marking from one.
+     */
+    void mark(String rootSha1) {
+        int root = indexOf(rootSha1);
+        if (root < 0 || marked.get(root)) {
+            return;
+        }
+        Deque<Integer> stack = new ArrayDeque<>();
+        marked.set(root);
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            int i = stack.pop();
+            for (String referenced : referencesOf(i)) {
+                int j = indexOf(referenced);
+                // an object that is missing altogether is fsck's business
+                if (j >= 0 && !marked.get(j)) {
+                    marked.set(j);
+                    stack.push(j);
+                }
+            }
+        }
+    }
+
+    /** Returns the sha1s of the objects the object at index I refers to. */
+    private List<String> referencesOf(int i) {
+        List<String> result = new ArrayList<>();
+        switch (types[i]) {
+            case ObjectStore.COMMIT:
+                Commit commit = store.readCommit(sha1s[i]);
+                result.addAll(commit.getParentSha1List());
+                if (commit.getTreeSha1() != null) {
+                    result.add(commit.getTreeSha1());
+                } else {
+                    // a commit written before there were trees
+                    result.addAll(commit.getMap().values());
+                }
+                break;
+            case ObjectStore.TREE:
+                for (Tree.Entry entry : store.readTree(sha1s[i]).getEntries()) {
+                    result.add(entry.sha1);
+                }
+                break;
+            case ObjectStore.ENCODED_BLOB:
+                result.addAll(store.blobReferences(sha1s[i]));
+                break;
+            default:
+                break;
+        }
+        return result;
+    }
+
+    /** Returns the number of objects that are not marked. */
+    int unmarkedCount() {
+        return sha1s.length - marked.cardinality();
+    }
+
+    /** Returns the sha1s of the commits that are not marked. */
+    Set<String> unmarkedCommits() {
+        Set<String> result = new HashSet<>();
+        for (int i = marked.nextClearBit(0); i < sha1s.length; i = marked.nextClearBit(i + 1)) {
+            if (types[i] == ObjectStore.COMMIT) {
+                result.add(sha1s[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Deletes every object that is not marked, and returns the number of bytes
+     * that freed: loose files are deleted, a pack holding any is written again
+     * without them.
+     */
+    long sweep() {
+        long freed = 0;
+        for (Pack.Entry entry : looseObjects) {
+            if (!marked.get(indexOf(entry.sha1))) {
+                freed += entry.file.length();
+                entry.file.delete();
+            }
+        }
+        store.deleteEmptyObjectDirs();
+        for (Pack pack : packs) {
+            freed += store.rewritePack(pack, sha1 -> marked.get(indexOf(sha1)));
+        }
+        return freed;
+    }
+
+    private int indexOf(String sha1) {
+        int i = Arrays.binarySearch(sha1s, sha1);
+        return i >= 0 ? i : -1;
+    }
+}
@@ -0,0 +1,175 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+/**
+ * The staging area, kept in the single file .gitlet/index.
+ * <p>
+ * Every staged file has one entry: its name, whether it is staged for addition
+ * or for removal, and for an addition the sha1 of the blob (which add() has
+ * already written into the object store), the size and the last modified time
+ * of the file when it was added.
+ * <p>
+ * The file looks like this, all integers are big-endian:
+ * <pre>
+ *     magic     4 bytes  "GLIX"
+ *     version   4 bytes  1
+ *     count     4 bytes  number of entries
+ *     entries   for every entry, sorted by name:
+ *               1 byte state, 4 bytes length + UTF-8 name,
+ *               20 bytes blob sha1 (zeros for a removal),
+ *               8 bytes size, 8 bytes last modified time in milliseconds
+ * </pre>
+ * A command that changes the staging area holds the LockFile of the index from
+ * before it reads the index until write() renames the new one over it, so two
+ * commands can't both change it and lose one of the changes, and a reader
+ * sees either the old index or the new one, never half of it.
+ *
+ * @author Linde
+ */
+class Index {
+
+    /** the state of a file staged by add() */
+    static final int STAGED_FOR_ADD = 1;
+    /** the state of a file staged by remove() */
+    static final int STAGED_FOR_REMOVE = 2;
+
+    private static final byte[] MAGIC = {'G', 'L', 'I', 'X'};
+    private static final int VERSION = 1;
+
+    /** One staged file. */
+    static class Entry {
+        final String filename;
+        final int state;
+        final String blobSha1;
+        final long size;
+        final long lastModified;
+
+        Entry(String filename, int state, String blobSha1, long size, long lastModified) {
+            this.filename = filename;
+            this.state = state;
+            this.blobSha1 = blobSha1;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /** filename->entry, sorted so that write() is deterministic */
+    private final TreeMap<String, Entry> entries = new TreeMap<>();
+
+    /**
+     * Reads INDEXFILE, a missing file is an empty staging area.
+     */
+    static Index read(File indexFile) {
+        Index index = new Index();
+        if (!indexFile.exists()) {
+            return index;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(indexFile)))) {
+            for (byte b : MAGIC) {
+                if (in.readByte() != b) {
+                    throw error("%s is not an index file.", indexFile);
+                }
+            }
+            if (in.readInt() != VERSION) {
+                throw error("Unsupported index version in %s.", indexFile);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i += 1) {
+                int state = in.readUnsignedByte();
+                byte[] name = new byte[in.readInt()];
+                in.readFully(name);
+                byte[] sha1 = new byte[UID_BYTES];
+                in.readFully(sha1);
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                String filename = new String(name, StandardCharsets.UTF_8);
+                String blobSha1 = state == STAGED_FOR_ADD ? toHex(sha1) : null;
+                index.entries.put(filename,
+                        new Entry(filename, state, blobSha1, size, lastModified));
+            }
+        } catch (IOException excp) {
+            throw new GitletException(excp.getMessage());
+        }
+        return index;
+    }
+
+    /**
+     * Replaces the index file with the current entries through LOCK, the lock
+     * of the index file, which the caller took before it read the index.
+     */
+    void write(LockFile lock) {
+        lock.commit(fileOut -> {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            byte[] noSha1 = new byte[UID_BYTES];
+            for (Entry entry : entries.values()) {
+                byte[] name = entry.filename.getBytes(StandardCharsets.UTF_8);
+                out.writeByte(entry.state);
+                out.writeInt(name.length);
+                out.write(name);
+                out.write(entry.blobSha1 == null ? noSha1 : fromHex(entry.blobSha1));
+                out.writeLong(entry.size);
+                out.writeLong(entry.lastModified);
+            }
+            out.flush();
+        });
+    }
+
+    /** Stages FILENAME for addition with the contents of the blob BLOBSHA1. */
+    void stageForAdd(String filename, String blobSha1, long size, long lastModified) {
+        entries.put(filename, new Entry(filename, STAGED_FOR_ADD, blobSha1, size, lastModified));
+    }
+
+    /** Stages FILENAME for removal. */
+    void stageForRemove(String filename) {
+        entries.put(filename, new Entry(filename, STAGED_FOR_REMOVE, null, 0, 0));
+    }
+
+    /** Removes FILENAME from the staging area, returns false if it wasn't staged. */
+    boolean unstage(String filename) {
+        return entries.remove(filename) != null;
+    }
+
+    boolean isStagedForAdd(String filename) {
+        Entry entry = entries.get(filename);
+        return entry != null && entry.state == STAGED_FOR_ADD;
+    }
+
+    boolean isStagedForRemove(String filename) {
+        Entry entry = entries.get(filename);
+        return entry != null && entry.state == STAGED_FOR_REMOVE;
+    }
+
+    /** Returns the entry of FILENAME, or null if it isn't staged. */
+    Entry get(String filename) {
+        return entries.get(filename);
+    }
+
+    /** Returns the staged entries sorted by filename. */
+    Collection<Entry> getEntries() {
+        return entries.values();
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    void clear() {
+        entries.clear();
+    }
+}
@@ -0,0 +1,166 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The lock of one file of .gitlet, the file FILE.lock next to it.
+ * <p>
+ * Creating FILE.lock either succeeds or fails with the file already there,
+ * so only one process at a time holds the lock, without any process waiting
+ * on another. The holder writes the new contents into the lock file, syncs it
+ * to disk and renames it over FILE, so a reader (or a crash) sees the old FILE
+ * or the new one, never half of it. Closing the lock without committing leaves
+ * FILE as it was.
+ * <p>
+ * Refs are changed by compare-and-set: a command reads the value it expects,
+ * and once the lock is held checkUnchanged() fails unless the file still holds
+ * that value, so two commands that raced can't both think they won.
+ *
+ * @author Linde
+ */
+class LockFile implements AutoCloseable {
+
+    /** how often acquire(FILE, TIMEOUT) looks at the lock again while it waits */
+    private static final long RETRY_MILLIS = 5;
+    /** the lock of FILE is FILE with this appended, no ref name may end in it */
+    static final String SUFFIX = ".lock";
+
+    private final File file;
+    private final File lockFile;
+    private boolean held;
+
+    private LockFile(File file) {
+        this.file = file;
+        this.lockFile = new File(file.getPath() + SUFFIX);
+    }
+
+    /**
+     * Takes the lock of FILE, or throws a GitletException if another command holds it.
+     */
+    static LockFile acquire(File file) {
+        LockFile lock = new LockFile(file);
+        if (!lock.tryLock()) {
+            throw lock.heldElsewhere();
+        }
+        return lock;
+    }
+
+    /**
+     * Takes the lock of FILE, waiting up to TIMEOUTMILLIS for another command
+     * to release it. Meant for locks that are only held for a moment.
+     */
+    static LockFile acquire(File file, long timeoutMillis) {
+        LockFile lock = new LockFile(file);
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!lock.tryLock()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw lock.heldElsewhere();
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException excp) {
+                Thread.currentThread().interrupt();
+                throw new GitletException(excp.getMessage());
+            }
+        }
+        return lock;
+    }
+
+    /** Takes the lock of FILE, or returns null if another command holds it. */
+    static LockFile tryAcquire(File file) {
+        LockFile lock = new LockFile(file);
+        return lock.tryLock() ? lock : null;
+    }
+
+    /**
+     * Returns the error of a lock that is held, naming the lock file,
+     * which has to be deleted by hand if a crashed command left it behind.
+     */
+    private GitletException heldElsewhere() {
+        return new GitletException("Unable to lock " + file.getName() + ": "
+                + lockFile.getPath() + " exists. Another gitlet command is changing it,"
+                + " or one crashed and left it behind.");
+    }
+
+    private boolean tryLock() {
+        try {
+            Files.createFile(lockFile.toPath());
+        } catch (FileAlreadyExistsException excp) {
+            return false;
+        } catch (IOException excp) {
+            throw new GitletException(excp.getMessage());
+        }
+        held = true;
+        return true;
+    }
+
+    /** Returns the contents of the locked file as a string, "" if there is no such file. */
+    String read() {
+        return file.exists() ? Utils.readContentsAsString(file) : "";
+    }
+
+    /** Writes the new contents of a locked file. */
+    interface Contents {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /** Replaces the locked file with CONTENTS and releases the lock. */
+    void commit(String contents) {
+        commit(out -> out.write(contents.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Replaces the locked file with what CONTENTS writes and releases the lock.
+     * Only the holder of the lock may commit, and only once.
+     */
+    void commit(Contents contents) {
+        if (!held) {
+            throw new GitletException("The lock of " + file.getName() + " is not held.");
+        }
+        try (FileOutputStream out = new FileOutputStream(lockFile)) {
+            contents.writeTo(out);
+            out.getFD().sync();
+        } catch (IOException excp) {
+            throw new GitletException(excp.getMessage());
+        }
+        try {
+            Files.move(lockFile.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new GitletException(excp.getMessage());
+        }
+        held = false;
+    }
+
+    /**
+     * Throws a GitletException unless the locked file still holds EXPECTED
+     * ("" for a file that doesn't exist yet).
+     */
+    void checkUnchanged(String expected) {
+        if (!read().equals(expected)) {
+            throw new GitletException(file.getName()
+                    + " was changed by another gitlet command.");
+        }
+    }
+
+    /** Deletes the locked file, close() then releases the lock. */
+    void delete() {
+        file.delete();
+    }
+
+    /** Releases the lock, if it wasn't released by commit(). */
+    @Override
+    public void close() {
+        if (held) {
+            lockFile.delete();
+            held = false;
+        }
+    }
+}
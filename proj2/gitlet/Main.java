@@ -1,6 +1,9 @@
 package gitlet;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import static gitlet.Utils.join;
 
@@ -20,8 +23,8 @@ public class Main {
     public static final File GITLET_DIR = join(CWD, ".gitlet");
 
     /**
-     * If the args.length is less or more than function's need,
-     * quit the entire program.
+     * If the args.length is more than function's need,
+     * stop the command with "Incorrect operands.".
      * for example:
      * <p>
      * for init(),
@@ -37,8 +40,7 @@ public class Main {
     private static void checkFuncArgumentLength(String[] args, int length) {
         // the first element in args is the function name
         if (args.length > length) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
+            throw new GitletException("Incorrect operands.");
         }
     }
 
@@ -46,11 +48,29 @@ public class Main {
     /**
      * Usage: java gitlet.Main ARGS, where ARGS contains
      * <COMMAND> <OPERAND1> <OPERAND2> ...
+     * <p>
+     * "java gitlet.Main daemon" serves the commands of gitlet.Client
+     * without starting a JVM for each of them, see Daemon.
      */
     public static void main(String[] args) {
+        try {
+            run(args);
+        } catch (GitletException excp) {
+            System.out.println(excp.getMessage());
+        }
+        if (Boolean.getBoolean("gitlet.cacheStats")) {
+            System.err.println(Repository.getCommitCacheStats());
+        }
+    }
+
+    /**
+     * Runs the command in ARGS. A command that fails throws a GitletException,
+     * whose message is what we should print, instead of quitting the program,
+     * so that the daemon can go on serving the next command.
+     */
+    static void run(String[] args) {
         if (args.length == 0) {
-            System.out.println("Please enter a command.");
-            System.exit(0);
+            throw new GitletException("Please enter a command.");
         }
 
         String firstArg = args[0];
@@ -61,9 +81,10 @@ public class Main {
                 break;
             case "add":
                 checkInitialize();
-                checkFuncArgumentLength(args, 2);
-                String filenameForAdd = args[1];
-                Repository.add(filenameForAdd);
+                if (args.length < 2) {
+                    throw new GitletException("Incorrect operands.");
+                }
+                Repository.add(Arrays.asList(args).subList(1, args.length));
                 break;
             case "commit":
                 checkInitialize();
@@ -79,8 +100,7 @@ public class Main {
                 break;
             case "log":
                 checkInitialize();
-                checkFuncArgumentLength(args, 1);
-                Repository.log();
+                runLog(args);
                 break;
             case "global-log":
                 checkInitialize();
@@ -106,8 +126,7 @@ public class Main {
                     String branchName = args[1];
                     Repository.checkoutBranchName(branchName);
                 } else {
-                    System.out.println("Incorrect operands.");
-                    System.exit(0);
+                    throw new GitletException("Incorrect operands.");
                 }
                 break;
             case "branch":
@@ -139,6 +158,85 @@ public class Main {
                 String targetBranchName = args[1];
                 Repository.merge(targetBranchName);
                 break;
+            case "repack":
+                checkInitialize();
+                checkFuncArgumentLength(args, 1);
+                Repository.repack();
+                break;
+            case "gc":
+                checkInitialize();
+                checkFuncArgumentLength(args, 2);
+                if (args.length == 2 && !args[1].equals("--now")) {
+                    throw new GitletException("Incorrect operands.");
+                }
+                Repository.gc(args.length == 2);
+                break;
+            case "fsck":
+                checkInitialize();
+                checkFuncArgumentLength(args, 1);
+                Repository.fsck();
+                break;
+            case "config":
+                checkInitialize();
+                checkFuncArgumentLength(args, 3);
+                if (args.length < 2) {
+                    throw new GitletException("Incorrect operands.");
+                }
+                Repository.config(args[1], args.length == 3 ? args[2] : null);
+                break;
+            case "diff":
+                checkInitialize();
+                List<String> operands = new ArrayList<>(Arrays.asList(args).subList(1, args.length));
+                boolean patience = operands.remove("--patience");
+                if (operands.size() > 2) {
+                    throw new GitletException("Incorrect operands.");
+                }
+                Repository.diff(operands.size() > 0 ? operands.get(0) : null,
+                        operands.size() > 1 ? operands.get(1) : null, patience);
+                break;
+            case "add-remote":
+                checkInitialize();
+                checkFuncArgumentLength(args, 3);
+                if (args.length < 3) {
+                    throw new GitletException("Incorrect operands.");
+                }
+                Repository.addRemote(args[1], args[2]);
+                break;
+            case "rm-remote":
+                checkInitialize();
+                checkFuncArgumentLength(args, 2);
+                if (args.length < 2) {
+                    throw new GitletException("Incorrect operands.");
+                }
+                Repository.removeRemote(args[1]);
+                break;
+            case "fetch":
+            case "push":
+            case "pull":
+                checkInitialize();
+                checkFuncArgumentLength(args, 3);
+                if (args.length < 3) {
+                    throw new GitletException("Incorrect operands.");
+                }
+                if (firstArg.equals("fetch")) {
+                    Repository.fetch(args[1], args[2]);
+                } else if (firstArg.equals("push")) {
+                    Repository.push(args[1], args[2]);
+                } else {
+                    Repository.pull(args[1], args[2]);
+                }
+                break;
+            case "daemon":
+                checkInitialize();
+                checkFuncArgumentLength(args, 2);
+                if (args.length == 1) {
+                    Daemon.serve();
+                } else if (args[1].equals("stop")) {
+                    Daemon.stop();
+                } else {
+                    throw new GitletException("Incorrect operands.");
+                }
+                break;
             default:
                 System.out.println("No command with that name exists.");
                 break;
@@ -146,10 +244,31 @@ public class Main {
 
     }
 
+    /**
+     * log [-n N] [--since DATE], also --since=DATE, in any order.
+     */
+    private static void runLog(String[] args) {
+        int limit = Integer.MAX_VALUE;
+        String since = null;
+        for (int i = 1; i < args.length; i += 1) {
+            if (args[i].equals("-n") && i + 1 < args.length && args[i + 1].matches("[0-9]{1,9}")) {
+                limit = Integer.parseInt(args[i + 1]);
+                i += 1;
+            } else if (args[i].equals("--since") && i + 1 < args.length) {
+                since = args[i + 1];
+                i += 1;
+            } else if (args[i].startsWith("--since=")) {
+                since = args[i].substring("--since=".length());
+            } else {
+                throw new GitletException("Incorrect operands.");
+            }
+        }
+        Repository.log(limit, since);
+    }
+
     private static void checkInitialize() {
         if (!GITLET_DIR.exists()) {
-            System.out.println("Not in an initialized Gitlet directory.");
-            System.exit(0);
+            throw new GitletException("Not in an initialized Gitlet directory.");
         }
     }
 
@@ -0,0 +1,1012 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Predicate;
+
+import static gitlet.Utils.*;
+
+/**
+ * Where the blobs, trees and commits of a repository live.
+ * <p>
+ * An object is either loose, i.e. a file of its own
+ * (.gitlet/blobs/[sha1], .gitlet/commits/[first 2 sha1 digit]/[sha1],
+ * .gitlet/trees/[first 2 sha1 digit]/[sha1]),
+ * or packed into one of the .gitlet/packs/pack-[sha1].pack files by repack().
+ * Callers don't need to care, every read looks at the loose file first
+ * and then at the packs.
+ * <p>
+ * A blob is stored verbatim, unless core.compression is set in .gitlet/config,
+ * then new blobs are deflated into .gitlet/blobs/[sha1].enc (see BlobCodec).
+ * Both kinds read the same, and can live side by side in one repository.
+ * <p>
+ * When add() knows the previous version of a file, and the new version is mostly
+ * the same, the new blob is only a delta against the old one (see Delta), also
+ * kept in a .enc file. A delta may be based on another delta, but never more than
+ * MAX_DELTA_DEPTH deep, and the blobs rebuilt on the way are kept in a small cache.
+ * <p>
+ * A file too big for a delta is cut into content-defined chunks instead. Every
+ * chunk is a blob of its own, and the blob of the file is a manifest listing
+ * them, so a small edit to a big file only stores the chunks around the edit.
+ * <p>
+ * Checkout copies a blob that is stored verbatim file to file, which lets the
+ * kernel copy it without the JVM, or share the blocks on file systems that can
+ * (btrfs, XFS). With
+ * core.checkout set to link, it hard-links the blob into the working directory
+ * instead, and makes the blob read-only, since the working file now is the
+ * blob: an editor that saves by writing a new file is fine, writing into the
+ * file in place (after making it writable) would change the blob too.
+ *
+ * @author Linde
+ */
+class ObjectStore {
+
+    /** the type byte of a commit in a pack */
+    static final int COMMIT = 1;
+    /** the type byte of a blob in a pack */
+    static final int BLOB = 2;
+    /** the type byte of a blob in a pack that is encoded by a BlobCodec */
+    static final int ENCODED_BLOB = 3;
+    /** the type byte of a tree in a pack */
+    static final int TREE = 4;
+
+    /** the suffix of a loose blob that is encoded by a BlobCodec */
+    private static final String ENCODED_SUFFIX = ".enc";
+
+    /** smaller files are always stored whole, a delta wouldn't save much */
+    private static final long DELTA_MIN_SIZE = 1 << 10;
+    /** larger files are chunked instead, a delta needs both versions in memory */
+    private static final long DELTA_MAX_SIZE = 8 << 20;
+    /** files at least this big are cut into chunks (see Chunker) */
+    private static final long CHUNKED_MIN_SIZE = DELTA_MAX_SIZE + 1;
+    /**
+     * at most this many deltas are applied to rebuild a blob,
+     * the next version after that is stored whole again
+     */
+    private static final int MAX_DELTA_DEPTH = 10;
+    /** how many bytes of rebuilt blobs we keep around */
+    private static final long CACHE_BYTES = 64 << 20;
+
+    private final File gitletDir;
+    private final File blobsDir;
+    private final File commitsDir;
+    private final File treesDir;
+    private final File packsDir;
+
+    /**
+     * blobs that were rebuilt from deltas, or used as the base of one,
+     * so that checking out the next few versions of a file doesn't
+     * apply the whole chain again, and the blobs read by readBlobCached()
+     */
+    private final BlobCache reconstructed = new BlobCache(CACHE_BYTES);
+
+    /** the compression level of new blobs, read from the config the first time we need it */
+    private int compressionLevel = -1;
+
+    /** whether checkoutBlobTo() links, read from the config the first time we need it */
+    private Boolean linkCheckout;
+
+    /**
+     * the packs of this repository, loaded the first time we need them,
+     * add() may look for blobs from several threads
+     */
+    private List<Pack> packs;
+
+    /**
+     * @param gitletDir the .gitlet directory of the repository
+     */
+    ObjectStore(File gitletDir) {
+        this.gitletDir = gitletDir;
+        this.blobsDir = join(gitletDir, "blobs");
+        this.commitsDir = join(gitletDir, "commits");
+        this.treesDir = join(gitletDir, "trees");
+        this.packsDir = join(gitletDir, "packs");
+    }
+
+    /* COMMITS */
+
+    /**
+     * Writes the encoded commit CONTENTS, whose sha1 is COMMITSHA1,
+     * as a loose object unless we already have it.
+     */
+    void writeCommit(String commitSha1, byte[] contents) {
+        if (hasCommit(commitSha1)) {
+            return;
+        }
+        File commitDir = join(commitsDir, commitSha1.substring(0, 2));
+        if (!commitDir.exists()) {
+            commitDir.mkdir();
+        }
+        writeContentsAtomically(join(commitDir, commitSha1), gitletDir, contents);
+    }
+
+    boolean hasCommit(String commitSha1) {
+        return looseCommitFile(commitSha1).exists() || findPacked(commitSha1) != null;
+    }
+
+    /**
+     * Returns the commit named COMMITSHA1, or null if there is no such commit.
+     */
+    Commit readCommit(String commitSha1) {
+        File file = looseCommitFile(commitSha1);
+        if (file.exists()) {
+            return CommitFormat.read(file).setObjectStore(this);
+        }
+        PackedObject packed = findPacked(commitSha1);
+        if (packed == null) {
+            return null;
+        }
+        try (InputStream in = packed.open()) {
+            return CommitFormat.read(in).setObjectStore(this);
+        } catch (IOException excp) {
+            throw new GitletException(excp.getMessage());
+        }
+    }
+
+    /** Returns the sha1 of every commit in this repository, in no particular order. */
+    List<String> listCommitSha1s() {
+        List<String> result = new ArrayList<>();
+        String[] commitDirNames = commitsDir.list();
+        if (commitDirNames != null) {
+            for (String commitDirName : commitDirNames) {
+                List<String> filenames = plainFilenamesIn(join(commitsDir, commitDirName));
+                if (filenames != null) {
+                    result.addAll(filenames);
+                }
+            }
+        }
+        for (Pack pack : getPacks()) {
+            for (int i = 0; i < pack.size(); i += 1) {
+                if (pack.typeAt(i) == COMMIT && !looseCommitFile(pack.sha1At(i)).exists()) {
+                    result.add(pack.sha1At(i));
+                }
+            }
+        }
+        return result;
+    }
+
+    private File looseCommitFile(String commitSha1) {
+        return join(commitsDir, commitSha1.substring(0, 2), commitSha1);
+    }
+
+    /* TREES */
+
+    /** Writes TREE as a loose object unless we already have it, and returns its sha1. */
+    String writeTree(Tree tree) {
+        byte[] contents = tree.encode();
+        String treeSha1 = sha1(contents);
+        if (!hasTree(treeSha1)) {
+            File treeFile = looseTreeFile(treeSha1);
+            treeFile.getParentFile().mkdirs();
+            writeContentsAtomically(treeFile, gitletDir, contents);
+        }
+        return treeSha1;
+    }
+
+    boolean hasTree(String treeSha1) {
+        return looseTreeFile(treeSha1).exists() || findPacked(treeSha1) != null;
+    }
+
+    /** Returns the tree named TREESHA1. */
+    Tree readTree(String treeSha1) {
+        File file = looseTreeFile(treeSha1);
+        if (file.exists()) {
+            return Tree.decode(readContents(file));
+        }
+        PackedObject packed = findPacked(treeSha1);
+        if (packed == null) {
+            throw error("Tree %s does not exist.", treeSha1);
+        }
+        try (InputStream in = packed.open()) {
+            return Tree.decode(in.readAllBytes());
+        } catch (IOException excp) {
+            throw new GitletException(excp.getMessage());
+        }
+    }
+
+    private File looseTreeFile(String treeSha1) {
+        return join(treesDir, treeSha1.substring(0, 2), treeSha1);
+    }
+
+    /* BLOBS */
+
+    boolean hasBlob(String blobSha1) {
+        return join(blobsDir, blobSha1).exists() || encodedBlobFile(blobSha1).exists()
+                || findPacked(blobSha1) != null;
+    }
+
+    /**
+     * Stores the contents of FILE as a blob unless we already have it, and
+     * returns its sha1. The file is hashed while it is copied, through a
+     * fixed-size buffer, so a file of any size takes the same memory, and the
+     * sha1 is that of what was actually stored even if FILE changes meanwhile.
+     * The blob is compressed if the config asks for it.
+     */
+    String writeBlob(File file) {
+        return writeBlob(file, null);
+    }
+
+    /**
+     * Like writeBlob(FILE), but BASESHA1 is the blob of the previous version of
+     * the same file (or null), and if FILE is just a changed copy of it, we only
+     * store the changes as a delta against it.
+     */
+    String writeBlob(File file, String baseSha1) {
+        long size = file.length();
+        if (size >= CHUNKED_MIN_SIZE) {
+            return writeChunkedBlob(file);
+        }
+        if (baseSha1 != null && size >= DELTA_MIN_SIZE && size <= DELTA_MAX_SIZE
+                && hasBlob(baseSha1) && deltaDepthOf(baseSha1) < MAX_DELTA_DEPTH) {
+            String blobSha1 = writeDeltaBlob(file, baseSha1);
+            if (blobSha1 != null) {
+                return blobSha1;
+            }
+        }
+
+        Path tempFile = null;
+        try {
+            tempFile = Files.createTempFile(gitletDir.toPath(), "blob-", ".tmp");
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            int level = getCompressionLevel();
+            try (InputStream in = new FileInputStream(file);
+                 OutputStream out = new DigestOutputStream(level == 0
+                         ? Files.newOutputStream(tempFile)
+                         : BlobCodec.deflate(Files.newOutputStream(tempFile), level), md)) {
+                in.transferTo(out);
+            }
+            String blobSha1 = toHex(md.digest());
+            install(tempFile, blobSha1, level != 0);
+            return blobSha1;
+        } catch (IOException | NoSuchAlgorithmException excp) {
+            if (tempFile != null) {
+                tempFile.toFile().delete();
+            }
+            throw new GitletException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Stores the contents of FILE as a delta against the blob BASESHA1 and
+     * returns its sha1, or returns null if the delta wouldn't save enough
+     * to be worth it. The new contents are kept in the cache, since they
+     * are the base of the next version.
+     */
+    private String writeDeltaBlob(File file, String baseSha1) {
+        byte[] contents = readContents(file);
+        String blobSha1 = sha1(contents);
+        if (hasBlob(blobSha1)) {
+            return blobSha1;
+        }
+        byte[] base = readBlob(baseSha1);
+        byte[] delta = Delta.encode(base, contents);
+        if (delta.length > contents.length / 2) {
+            return null;
+        }
+        Path tempFile = null;
+        try {
+            tempFile = Files.createTempFile(gitletDir.toPath(), "blob-", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                out.writeByte(BlobCodec.DELTA);
+                out.write(fromHex(baseSha1));
+                out.writeByte(deltaDepthOf(baseSha1) + 1);
+                out.writeInt(contents.length);
+                out.write(delta);
+            }
+            install(tempFile, blobSha1, true);
+        } catch (IOException excp) {
+            if (tempFile != null) {
+                tempFile.toFile().delete();
+            }
+            throw new GitletException(excp.getMessage());
+        }
+        reconstructed.put(blobSha1, contents);
+        return blobSha1;
+    }
+
+    /**
+     * Stores the contents of FILE as chunks plus a manifest, and returns the sha1
+     * of the contents, which names the manifest. Only the chunks we don't have yet
+     * are written, and FILE is read once, one chunk at a time.
+     */
+    private String writeChunkedBlob(File file) {
+        List<String> chunkSha1s = new ArrayList<>();
+        List<Integer> chunkLengths = new ArrayList<>();
+        long length = 0;
+        Path tempFile = null;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            try (InputStream in = new FileInputStream(file)) {
+                Chunker chunker = new Chunker(in);
+                for (byte[] chunk = chunker.next(); chunk != null; chunk = chunker.next()) {
+                    md.update(chunk);
+                    chunkSha1s.add(writeBlobContents(chunk));
+                    chunkLengths.add(chunk.length);
+                    length += chunk.length;
+                }
+            }
+            String blobSha1 = toHex(md.digest());
+            if (hasBlob(blobSha1)) {
+                return blobSha1;
+            }
+            tempFile = Files.createTempFile(gitletDir.toPath(), "blob-", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                out.writeByte(BlobCodec.CHUNKED);
+                out.writeLong(length);
+                out.writeInt(chunkSha1s.size());
+                for (int i = 0; i < chunkSha1s.size(); i += 1) {
+                    out.write(fromHex(chunkSha1s.get(i)));
+                    out.writeInt(chunkLengths.get(i));
+                }
+            }
+            install(tempFile, blobSha1, true);
+            return blobSha1;
+        } catch (IOException | NoSuchAlgorithmException excp) {
+            if (tempFile != null) {
+                tempFile.toFile().delete();
+            }
+            throw new GitletException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Stores CONTENTS as a blob unless we already have it, compressed if the
+     * config asks for it, and returns its sha1.
+     */
+    private String writeBlobContents(byte[] contents) throws IOException {
+        String blobSha1 = sha1(contents);
+        if (hasBlob(blobSha1)) {
+            return blobSha1;
+        }
+        int level = getCompressionLevel();
+        Path tempFile = Files.createTempFile(gitletDir.toPath(), "blob-", ".tmp");
+        try {
+            try (OutputStream out = level == 0
+                    ? Files.newOutputStream(tempFile)
+                    : BlobCodec.deflate(Files.newOutputStream(tempFile), level)) {
+                out.write(contents);
+            }
+            install(tempFile, blobSha1, level != 0);
+        } finally {
+            tempFile.toFile().delete();
+        }
+        return blobSha1;
+    }
+
+    /**
+     * Moves the finished TEMPFILE into place as the blob BLOBSHA1,
+     * ENCODED tells whether it starts with a codec byte.
+     */
+    private void install(Path tempFile, String blobSha1, boolean encoded) throws IOException {
+        if (hasBlob(blobSha1)) {
+            Files.delete(tempFile);
+            return;
+        }
+        File blobFile = encoded ? encodedBlobFile(blobSha1) : join(blobsDir, blobSha1);
+        // the blob must be on disk before its name is, or a crash could leave a name
+        // pointing at nothing, which every later add() would take for the blob
+        fsync(tempFile);
+        try {
+            Files.move(tempFile, blobFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException excp) {
+            // another thread of add() stored the same contents first
+            Files.delete(tempFile);
+        }
+    }
+
+    /** Returns the contents of the blob named BLOBSHA1 as a stream. */
+    InputStream openBlob(String blobSha1) {
+        byte[] cached = reconstructed.get(blobSha1);
+        if (cached != null) {
+            return new ByteArrayInputStream(cached);
+        }
+        try {
+            File file = join(blobsDir, blobSha1);
+            if (file.exists()) {
+                return new BufferedInputStream(new FileInputStream(file));
+            }
+            InputStream in = openEncodedBlob(blobSha1);
+            if (in == null) {
+                PackedObject packed = findPacked(blobSha1);
+                if (packed == null) {
+                    throw error("Blob %s does not exist.", blobSha1);
+                }
+                return packed.open();
+            }
+            return decodeBlob(blobSha1, in);
+        } catch (IOException excp) {
+            throw new GitletException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Returns the contents of the encoded blob BLOBSHA1, whose stored bytes,
+     * codec byte first, are in IN. IN must support mark().
+     */
+    private InputStream decodeBlob(String blobSha1, InputStream in) throws IOException {
+        in.mark(1);
+        int codec = in.read();
+        in.reset();
+        if (codec == BlobCodec.DELTA) {
+            return new ByteArrayInputStream(readDeltaBlob(blobSha1, in));
+        }
+        if (codec == BlobCodec.CHUNKED) {
+            return openChunkedBlob(in);
+        }
+        return BlobCodec.decode(in);
+    }
+
+    /**
+     * Returns the sha1 of the stored object ENTRY, from listLooseObjects() or
+     * listPackedObjects(), computed from what is on disk: over the contents
+     * of a blob, whatever its encoding, and over the encoding of a commit or
+     * a tree. It is streamed through a fixed-size buffer, so any object takes
+     * the same memory, except a delta, which is rebuilt in memory.
+     * For a sound object, it is ENTRY.sha1.
+     */
+    String hashStored(Pack.Entry entry) {
+        if (entry.file != null && entry.type != ENCODED_BLOB) {
+            return sha1(entry.file);
+        }
+        try (InputStream stored = entry.open();
+             InputStream in = entry.type == ENCODED_BLOB
+                     ? decodeBlob(entry.sha1, stored) : stored) {
+            return sha1(in);
+        } catch (IOException excp) {
+            throw new GitletException(excp.getMessage());
+        }
+    }
+
+    /** Returns the contents of the blob named BLOBSHA1. */
+    byte[] readBlob(String blobSha1) {
+        try (InputStream in = openBlob(blobSha1)) {
+            return in.readAllBytes();
+        } catch (IOException excp) {
+            throw new GitletException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Returns the contents of the blob named BLOBSHA1 like readBlob(), and keeps
+     * them in the blob cache, for blobs that are read again soon, e.g. the base
+     * version of a file that merge reads once per side. Safe to call from
+     * several threads at once.
+     */
+    byte[] readBlobCached(String blobSha1) {
+        byte[] cached = reconstructed.get(blobSha1);
+        if (cached != null) {
+            return cached;
+        }
+        byte[] contents = readBlob(blobSha1);
+        reconstructed.put(blobSha1, contents);
+        return contents;
+    }
+
+    /** Writes the contents of the blob named BLOBSHA1 to DEST, overwriting it. */
+    void copyBlobTo(String blobSha1, Path dest) {
+        try (InputStream in = openBlob(blobSha1)) {
+            Files.copy(in, dest, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            throw new GitletException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Puts the contents of the blob BLOBSHA1 at DEST, replacing DEST, for checkout.
+     * A blob stored verbatim is hard-linked if core.checkout says so, otherwise
+     * copied file to file; any other blob has to be decoded, so it is copied
+     * through copyBlobTo().
+     */
+    void checkoutBlobTo(String blobSha1, Path dest) {
+        File looseFile = join(blobsDir, blobSha1);
+        if (!looseFile.exists()) {
+            copyBlobTo(blobSha1, dest);
+            return;
+        }
+        try {
+            // never write into DEST, it may be linked to another blob
+            Files.deleteIfExists(dest);
+            if (isLinkCheckout()) {
+                looseFile.setReadOnly();
+                try {
+                    Files.createLink(dest, looseFile.toPath());
+                    return;
+                } catch (IOException | UnsupportedOperationException excp) {
+                    // another file system, or one without hard links, copy instead
+                }
+            }
+            // channel to channel, the kernel moves the bytes without the JVM seeing them
+            try (FileChannel in = FileChannel.open(looseFile.toPath(), StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(dest,
+                         StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                long size = in.size();
+                for (long position = 0; position < size; ) {
+                    position += in.transferTo(position, size - position, out);
+                }
+            }
+        } catch (IOException excp) {
+            throw new GitletException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Returns the stored bytes of the encoded blob BLOBSHA1, codec byte first,
+     * or null if BLOBSHA1 isn't an encoded blob. The stream supports mark().
+     */
+    private InputStream openEncodedBlob(String blobSha1) throws IOException {
+        File encodedFile = encodedBlobFile(blobSha1);
+        if (encodedFile.exists()) {
+            return new BufferedInputStream(new FileInputStream(encodedFile));
+        }
+        PackedObject packed = findPacked(blobSha1);
+        if (packed != null && packed.type() == ENCODED_BLOB) {
+            return packed.open();
+        }
+        return null;
+    }
+
+    /**
+     * Rebuilds the delta blob BLOBSHA1 stored in IN from its base,
+     * keeping both in the cache for the versions that come after it.
+     */
+    private byte[] readDeltaBlob(String blobSha1, InputStream in) throws IOException {
+        try (DataInputStream delta = new DataInputStream(in)) {
+            delta.readByte();
+            byte[] baseSha1 = new byte[UID_BYTES];
+            delta.readFully(baseSha1);
+            delta.readByte();
+            int length = delta.readInt();
+            String baseName = toHex(baseSha1);
+            byte[] base = readBlob(baseName);
+            reconstructed.put(baseName, base);
+            byte[] contents = Delta.apply(base, delta, length);
+            reconstructed.put(blobSha1, contents);
+            return contents;
+        }
+    }
+
+    /**
+     * Returns the contents of the chunked blob whose manifest is in IN,
+     * as one stream that opens every chunk only when the previous one is done.
+     */
+    private InputStream openChunkedBlob(InputStream in) throws IOException {
+        List<String> chunkSha1s = new ArrayList<>();
+        try (DataInputStream manifest = new DataInputStream(in)) {
+            manifest.readByte();
+            manifest.readLong();
+            int count = manifest.readInt();
+            byte[] chunkSha1 = new byte[UID_BYTES];
+            for (int i = 0; i < count; i += 1) {
+                manifest.readFully(chunkSha1);
+                manifest.readInt();
+                chunkSha1s.add(toHex(chunkSha1));
+            }
+        }
+        Iterator<String> chunks = chunkSha1s.iterator();
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            @Override
+            public boolean hasMoreElements() {
+                return chunks.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                return openBlob(chunks.next());
+            }
+        });
+    }
+
+    /**
+     * Returns how many deltas we have to apply to rebuild the blob BLOBSHA1,
+     * 0 if it isn't a delta at all.
+     */
+    private int deltaDepthOf(String blobSha1) {
+        try (InputStream in = openEncodedBlob(blobSha1)) {
+            if (in == null || in.read() != BlobCodec.DELTA) {
+                return 0;
+            }
+            in.skipNBytes(UID_BYTES);
+            return in.read();
+        } catch (IOException excp) {
+            throw new GitletException(excp.getMessage());
+        }
+    }
+
+    private File encodedBlobFile(String blobSha1) {
+        return join(blobsDir, blobSha1 + ENCODED_SUFFIX);
+    }
+
+    private boolean isLinkCheckout() {
+        if (linkCheckout == null) {
+            linkCheckout = Config.read(join(gitletDir, Config.FILENAME)).isLinkCheckout();
+        }
+        return linkCheckout;
+    }
+
+    private int getCompressionLevel() {
+        if (compressionLevel < 0) {
+            compressionLevel = Config.read(join(gitletDir, Config.FILENAME)).getCompressionLevel();
+        }
+        return compressionLevel;
+    }
+
+    /* PACKS */
+
+    /**
+     * Moves every loose object into a new pack, and returns the number
+     * of objects packed. A pack never gets bigger than Pack.MAX_PACK_SIZE,
+     * if there are more loose objects than that, we write several packs,
+     * and an object that alone would make a pack bigger than that stays loose.
+     */
+    int repack() {
+        List<Pack.Entry> entries = listLooseObjects();
+        entries.removeIf(ObjectStore::tooBigToPack);
+        if (entries.isEmpty()) {
+            return 0;
+        }
+        writePacks(entries);
+
+        // the objects are safely packed now, the loose copies can go
+        for (Pack.Entry entry : entries) {
+            entry.file.delete();
+        }
+        deleteEmptyObjectDirs();
+        packs = null;
+        return entries.size();
+    }
+
+    /** Returns every loose object, as an entry for a pack that holds its file. */
+    List<Pack.Entry> listLooseObjects() {
+        List<Pack.Entry> entries = new ArrayList<>();
+        for (String filename : Objects.requireNonNull(plainFilenamesIn(blobsDir))) {
+            if (filename.endsWith(ENCODED_SUFFIX)) {
+                String blobSha1 = filename.substring(0, filename.length() - ENCODED_SUFFIX.length());
+                entries.add(new Pack.Entry(blobSha1, ENCODED_BLOB, join(blobsDir, filename)));
+            } else {
+                entries.add(new Pack.Entry(filename, BLOB, join(blobsDir, filename)));
+            }
+        }
+        for (String commitDirName : Objects.requireNonNull(commitsDir.list())) {
+            File commitDir = join(commitsDir, commitDirName);
+            for (String commitSha1 : Objects.requireNonNull(plainFilenamesIn(commitDir))) {
+                entries.add(new Pack.Entry(commitSha1, COMMIT, join(commitDir, commitSha1)));
+            }
+        }
+        // a repository made before there were trees has no trees directory
+        String[] treeDirNames = treesDir.list();
+        if (treeDirNames != null) {
+            for (String treeDirName : treeDirNames) {
+                File treeDir = join(treesDir, treeDirName);
+                for (String treeSha1 : Objects.requireNonNull(plainFilenamesIn(treeDir))) {
+                    entries.add(new Pack.Entry(treeSha1, TREE, join(treeDir, treeSha1)));
+                }
+            }
+        }
+        return entries;
+    }
+
+    /** Deletes the [first 2 sha1 digit] directories of commits and trees that are empty. */
+    void deleteEmptyObjectDirs() {
+        for (File dir : new File[]{commitsDir, treesDir}) {
+            String[] subdirNames = dir.list();
+            if (subdirNames != null) {
+                for (String subdirName : subdirNames) {
+                    // only succeeds if it is empty
+                    join(dir, subdirName).delete();
+                }
+            }
+        }
+    }
+
+    /** Returns every packed object, as an entry for a pack that reads it from its pack. */
+    List<Pack.Entry> listPackedObjects() {
+        List<Pack.Entry> entries = new ArrayList<>();
+        for (Pack pack : getPacks()) {
+            for (int i = 0; i < pack.size(); i += 1) {
+                entries.add(packedEntry(pack, i));
+            }
+        }
+        return entries;
+    }
+
+    private static Pack.Entry packedEntry(Pack pack, int position) {
+        PackedObject packed = new PackedObject(pack, position);
+        return new Pack.Entry(pack.sha1At(position), packed.type(), packed.length(), packed::open);
+    }
+
+    /** Returns the packs of this repository. */
+    List<Pack> listPacks() {
+        return new ArrayList<>(getPacks());
+    }
+
+    /**
+     * Replaces PACK with a new pack holding only the objects of it that KEEP
+     * accepts, or just deletes it if KEEP accepts none. The new pack is complete
+     * before the old one goes. Returns how many bytes smaller the packs got.
+     */
+    long rewritePack(Pack pack, Predicate<String> keep) {
+        List<Pack.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < pack.size(); i += 1) {
+            String sha1 = pack.sha1At(i);
+            if (keep.test(sha1)) {
+                entries.add(packedEntry(pack, i));
+            }
+        }
+        if (entries.size() == pack.size()) {
+            return 0;
+        }
+        File packFile = pack.getPackFile();
+        File idxFile = pack.getIdxFile();
+        long freed = packFile.length() + idxFile.length();
+        if (!entries.isEmpty()) {
+            File newIdxFile = Pack.write(packsDir, entries);
+            freed -= newIdxFile.length() + Pack.packFileOf(newIdxFile).length();
+        }
+        // packs are found through their index, so the index goes first
+        idxFile.delete();
+        packFile.delete();
+        synchronized (this) {
+            packs = null;
+        }
+        return freed;
+    }
+
+    /** Returns true if ENTRY alone would make a pack bigger than Pack.MAX_PACK_SIZE. */
+    private static boolean tooBigToPack(Pack.Entry entry) {
+        return Pack.packedSize(entry.length, 1) > Pack.MAX_PACK_SIZE;
+    }
+
+    /**
+     * Writes ENTRIES into new packs, starting a new one before a pack gets
+     * bigger than Pack.MAX_PACK_SIZE. ENTRIES must not be tooBigToPack().
+     */
+    private void writePacks(List<Pack.Entry> entries) {
+        if (!packsDir.exists()) {
+            packsDir.mkdir();
+        }
+        List<Pack.Entry> batch = new ArrayList<>();
+        long batchLength = 0;
+        for (Pack.Entry entry : entries) {
+            if (!batch.isEmpty() && Pack.packedSize(batchLength + entry.length,
+                    batch.size() + 1) > Pack.MAX_PACK_SIZE) {
+                Pack.write(packsDir, batch);
+                batch = new ArrayList<>();
+                batchLength = 0;
+            }
+            batch.add(entry);
+            batchLength += entry.length;
+        }
+        Pack.write(packsDir, batch);
+    }
+
+    /**
+     * Adds ENTRIES, objects of another repository, to this one as a pack.
+     * Their contents are streamed from where that repository stores them into
+     * the new pack, and they are stored the same way, encoded or not.
+     * An object too big for any pack is stored loose instead.
+     */
+    void addPacked(List<Pack.Entry> entries) {
+        List<Pack.Entry> packable = new ArrayList<>();
+        for (Pack.Entry entry : entries) {
+            if (tooBigToPack(entry)) {
+                storeLoose(entry);
+            } else {
+                packable.add(entry);
+            }
+        }
+        if (packable.isEmpty()) {
+            return;
+        }
+        writePacks(packable);
+        synchronized (this) {
+            packs = null;
+        }
+    }
+
+    /** Copies ENTRY into the loose file of its type, unless it is there already. */
+    private void storeLoose(Pack.Entry entry) {
+        File file;
+        if (entry.type == COMMIT) {
+            file = looseCommitFile(entry.sha1);
+        } else if (entry.type == TREE) {
+            file = looseTreeFile(entry.sha1);
+        } else if (entry.type == ENCODED_BLOB) {
+            file = encodedBlobFile(entry.sha1);
+        } else {
+            file = join(blobsDir, entry.sha1);
+        }
+        if (file.exists()) {
+            return;
+        }
+        file.getParentFile().mkdirs();
+        Path tempFile = null;
+        try {
+            tempFile = Files.createTempFile(gitletDir.toPath(), "object-", ".tmp");
+            try (OutputStream out = Files.newOutputStream(tempFile)) {
+                entry.copyTo(out);
+            }
+            Files.move(tempFile, file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            if (tempFile != null) {
+                tempFile.toFile().delete();
+            }
+            throw new GitletException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Returns the object SHA1 (a blob, tree or commit) as this repository
+     * stores it, to copy it into a pack with addPacked(), or null if there is no such object.
+     */
+    Pack.Entry packEntryOf(String sha1) {
+        File blobFile = join(blobsDir, sha1);
+        if (blobFile.exists()) {
+            return new Pack.Entry(sha1, BLOB, blobFile);
+        }
+        File encodedFile = encodedBlobFile(sha1);
+        if (encodedFile.exists()) {
+            return new Pack.Entry(sha1, ENCODED_BLOB, encodedFile);
+        }
+        File commitFile = looseCommitFile(sha1);
+        if (commitFile.exists()) {
+            return new Pack.Entry(sha1, COMMIT, commitFile);
+        }
+        File treeFile = looseTreeFile(sha1);
+        if (treeFile.exists()) {
+            return new Pack.Entry(sha1, TREE, treeFile);
+        }
+        PackedObject packed = findPacked(sha1);
+        if (packed == null) {
+            return null;
+        }
+        return packedEntry(packed.pack, packed.position);
+    }
+
+    /**
+     * Returns the blobs the blob BLOBSHA1 can't be read without: the base of
+     * a delta, or the chunks of a chunked blob. Empty for any other blob.
+     */
+    List<String> blobReferences(String blobSha1) {
+        List<String> result = new ArrayList<>();
+        try (InputStream encoded = openEncodedBlob(blobSha1)) {
+            if (encoded == null) {
+                return result;
+            }
+            DataInputStream in = new DataInputStream(encoded);
+            int codec = in.read();
+            byte[] sha1 = new byte[UID_BYTES];
+            if (codec == BlobCodec.DELTA) {
+                in.readFully(sha1);
+                result.add(toHex(sha1));
+            } else if (codec == BlobCodec.CHUNKED) {
+                in.readLong();
+                int count = in.readInt();
+                for (int i = 0; i < count; i += 1) {
+                    in.readFully(sha1);
+                    in.readInt();
+                    result.add(toHex(sha1));
+                }
+            }
+        } catch (IOException excp) {
+            throw new GitletException(excp.getMessage());
+        }
+        return result;
+    }
+
+    /**
+     * Forgets the packs and the compression level, so that the next read looks
+     * at .gitlet again. The daemon calls this before every command, since another
+     * process may have repacked or changed the config in the meantime.
+     * The blob cache stays, a sha1 always names the same contents.
+     */
+    synchronized void refresh() {
+        packs = null;
+        compressionLevel = -1;
+        linkCheckout = null;
+    }
+
+    private synchronized List<Pack> getPacks() {
+        if (packs == null) {
+            packs = new ArrayList<>();
+            List<String> filenames = plainFilenamesIn(packsDir);
+            if (filenames != null) {
+                for (String filename : filenames) {
+                    if (filename.endsWith(".idx")) {
+                        packs.add(new Pack(join(packsDir, filename)));
+                    }
+                }
+            }
+        }
+        return packs;
+    }
+
+    private PackedObject findPacked(String sha1) {
+        for (Pack pack : getPacks()) {
+            int i = pack.find(sha1);
+            if (i >= 0) {
+                return new PackedObject(pack, i);
+            }
+        }
+        return null;
+    }
+
+    /** A least recently used cache of blob contents that holds at most a given number of bytes. */
+    private static class BlobCache {
+        private final long capacity;
+        private long size;
+        private final LinkedHashMap<String, byte[]> blobs = new LinkedHashMap<>(16, 0.75f, true);
+
+        BlobCache(long capacity) {
+            this.capacity = capacity;
+        }
+
+        synchronized byte[] get(String blobSha1) {
+            return blobs.get(blobSha1);
+        }
+
+        synchronized void put(String blobSha1, byte[] contents) {
+            if (contents.length > capacity) {
+                return;
+            }
+            byte[] old = blobs.put(blobSha1, contents);
+            if (old != null) {
+                size -= old.length;
+            }
+            size += contents.length;
+            Iterator<byte[]> eldest = blobs.values().iterator();
+            while (size > capacity) {
+                size -= eldest.next().length;
+                eldest.remove();
+            }
+        }
+    }
+
+    /** An object found in a pack. */
+    private static class PackedObject {
+        private final Pack pack;
+        private final int position;
+
+        PackedObject(Pack pack, int position) {
+            this.pack = pack;
+            this.position = position;
+        }
+
+        InputStream open() {
+            return pack.open(position);
+        }
+
+        int type() {
+            return pack.typeAt(position);
+        }
+
+        long length() {
+            return pack.lengthAt(position);
+        }
+    }
+}
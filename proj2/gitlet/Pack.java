@@ -0,0 +1,408 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static gitlet.Utils.*;
+
+/**
+ * A pack file together with its index, that is, many objects stored in one file.
+ * <p>
+ * .gitlet/packs/pack-[sha1].pack looks like this:
+ * <pre>
+ *     magic     4 bytes  "GPAK"
+ *     version   4 bytes  1
+ *     count     4 bytes  number of objects
+ *     objects   for every object: 1 byte type, 8 bytes length, the contents
+ *     trailer   20 bytes sha1 of everything above, which also names the pack
+ * </pre>
+ * .gitlet/packs/pack-[sha1].idx looks like this:
+ * <pre>
+ *     magic     4 bytes  "GIDX"
+ *     version   4 bytes  1
+ *     fanout    256 * 4 bytes, fanout[b] is the number of objects whose
+ *               first sha1 byte is less than or equal to b
+ *     sha1s     count * 20 bytes, sorted
+ *     types     count * 1 byte
+ *     offsets   count * 8 bytes, where the object starts in the pack
+ *     trailer   20 bytes, the sha1 of the pack
+ * </pre>
+ * Both files are memory-mapped, so looking up an object is a binary search
+ * inside the fanout bucket of its first byte, and reading it is a slice of
+ * the mapped pack, nothing is copied until the caller reads the stream.
+ * <p>
+ * Each file is mapped as one buffer, and a buffer is indexed by int, so
+ * offsets and lengths are only good below 2GB. Packs are written no bigger
+ * than MAX_PACK_SIZE, and an object that would not fit in such a pack on its
+ * own stays a loose file; a pack bigger than 2GB is refused when it is opened.
+ *
+ * @author Linde
+ */
+class Pack {
+
+    private static final byte[] PACK_MAGIC = {'G', 'P', 'A', 'K'};
+    private static final byte[] IDX_MAGIC = {'G', 'I', 'D', 'X'};
+    private static final int VERSION = 1;
+
+    /** bytes before the first object in a pack */
+    private static final int PACK_HEADER_LEN = 12;
+    /** 1 byte type and 8 bytes length in front of every object */
+    private static final int OBJECT_HEADER_LEN = 9;
+    /** bytes before the fanout table in an index */
+    private static final int IDX_HEADER_LEN = 8;
+    private static final int FANOUT_LEN = 256 * 4;
+
+    /**
+     * A single mapped buffer can not be larger than 2GB,
+     * so repack() starts a new pack before one gets bigger than this,
+     * and keeps an object loose that alone would make a pack bigger.
+     */
+    static final long MAX_PACK_SIZE = 1L << 30;
+
+    private final File idxFile;
+    private final File packFile;
+    private final ByteBuffer pack;
+    private final ByteBuffer idx;
+    private final int count;
+    private final int sha1sStart;
+    private final int typesStart;
+    private final int offsetsStart;
+
+    /**
+     * Maps the pack named by IDXFILE, pack-[sha1].idx, and its .pack file.
+     */
+    Pack(File idxFile) {
+        this.idxFile = idxFile;
+        this.packFile = packFileOf(idxFile);
+        this.idx = map(idxFile);
+        this.pack = map(packFile);
+        for (int i = 0; i < IDX_MAGIC.length; i += 1) {
+            if (idx.get(i) != IDX_MAGIC[i]) {
+                throw error("%s is not a pack index.", idxFile);
+            }
+        }
+        if (idx.getInt(IDX_MAGIC.length) != VERSION) {
+            throw error("Unsupported pack index version in %s.", idxFile);
+        }
+        this.count = fanout(255);
+        this.sha1sStart = IDX_HEADER_LEN + FANOUT_LEN;
+        this.typesStart = sha1sStart + count * UID_BYTES;
+        this.offsetsStart = typesStart + count;
+    }
+
+    /** Returns the .pack file that goes with IDXFILE. */
+    static File packFileOf(File idxFile) {
+        String name = idxFile.getName();
+        return join(idxFile.getParentFile(),
+                name.substring(0, name.length() - ".idx".length()) + ".pack");
+    }
+
+    File getIdxFile() {
+        return idxFile;
+    }
+
+    File getPackFile() {
+        return packFile;
+    }
+
+    /** Returns the number of objects in this pack. */
+    int size() {
+        return count;
+    }
+
+    /** Returns the sha1 of the Ith object in sorted order. */
+    String sha1At(int i) {
+        byte[] bytes = new byte[UID_BYTES];
+        idx.get(sha1sStart + i * UID_BYTES, bytes);
+        return toHex(bytes);
+    }
+
+    /** Returns the type of the Ith object in sorted order. */
+    int typeAt(int i) {
+        return idx.get(typesStart + i);
+    }
+
+    /** Returns the position of the object named SHA1, or -1 if it is not here. */
+    int find(String sha1) {
+        byte[] key = fromHex(sha1);
+        int first = key[0] & 0xff;
+        int lo = first == 0 ? 0 : fanout(first - 1);
+        int hi = fanout(first) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareSha1At(mid, key);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns the contents of the Ith object as a stream over the mapped pack. */
+    InputStream open(int i) {
+        int offset = (int) idx.getLong(offsetsStart + i * 8);
+        long length = pack.getLong(offset + 1);
+        ByteBuffer slice = pack.duplicate();
+        slice.position(offset + OBJECT_HEADER_LEN);
+        slice.limit(offset + OBJECT_HEADER_LEN + (int) length);
+        return new ByteBufferInputStream(slice.slice());
+    }
+
+    /** Returns the length of the contents of the Ith object. */
+    long lengthAt(int i) {
+        int offset = (int) idx.getLong(offsetsStart + i * 8);
+        return pack.getLong(offset + 1);
+    }
+
+    private int fanout(int b) {
+        return idx.getInt(IDX_HEADER_LEN + b * 4);
+    }
+
+    private int compareSha1At(int i, byte[] key) {
+        int start = sha1sStart + i * UID_BYTES;
+        for (int k = 0; k < UID_BYTES; k += 1) {
+            int cmp = Integer.compare(idx.get(start + k) & 0xff, key[k] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    private static MappedByteBuffer map(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw error("%s is too big to be mapped.", file);
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException excp) {
+            throw new GitletException(excp.getMessage());
+        }
+    }
+
+    /** An object that is about to be written into a pack. */
+    static class Entry {
+        final String sha1;
+        final int type;
+        /** the loose file holding the contents of the object, or null */
+        final File file;
+        final long length;
+        /** where the contents come from if there is no loose file */
+        private final Supplier<InputStream> contents;
+
+        /**
+         * @param sha1 the name of the object
+         * @param type one of the ObjectStore type constants
+         * @param file the loose file holding the contents of the object
+         */
+        Entry(String sha1, int type, File file) {
+            this(sha1, type, file, file.length(), null);
+        }
+
+        /**
+         * An object of LENGTH bytes that is read from CONTENTS when the pack
+         * is written, e.g. an object in a pack of another repository.
+         */
+        Entry(String sha1, int type, long length, Supplier<InputStream> contents) {
+            this(sha1, type, null, length, contents);
+        }
+
+        private Entry(String sha1, int type, File file, long length,
+                      Supplier<InputStream> contents) {
+            this.sha1 = sha1;
+            this.type = type;
+            this.file = file;
+            this.length = length;
+            this.contents = contents;
+        }
+
+        /** Returns the contents of the object as a stream that supports mark(). */
+        InputStream open() throws IOException {
+            if (file != null) {
+                return new BufferedInputStream(new FileInputStream(file));
+            }
+            return contents.get();
+        }
+
+        void copyTo(OutputStream out) throws IOException {
+            if (file != null) {
+                Files.copy(file.toPath(), out);
+                return;
+            }
+            try (InputStream in = contents.get()) {
+                in.transferTo(out);
+            }
+        }
+    }
+
+    /**
+     * Writes ENTRIES into a new pack and index in PACKSDIR and returns the
+     * index file. The pack is only renamed into place once it is complete,
+     * and the index after it, so a crash in the middle never leaves a pack
+     * that can be found but not read.
+     */
+    static File write(File packsDir, List<Entry> entries) {
+        List<Entry> sorted = new ArrayList<>(entries);
+        sorted.sort(Comparator.comparing(e -> e.sha1));
+        long[] offsets = new long[sorted.size()];
+
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+        File tempPack = null;
+        try {
+            // a name of our own, two repacks at once each write a whole pack
+            tempPack = Files.createTempFile(packsDir.toPath(), "pack-", ".tmp").toFile();
+        } catch (IOException excp) {
+            throw new GitletException(excp.getMessage());
+        }
+        try (FileOutputStream fileOut = new FileOutputStream(tempPack)) {
+            DataOutputStream out = new DataOutputStream(new DigestOutputStream(
+                    new BufferedOutputStream(fileOut), md));
+            out.write(PACK_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(sorted.size());
+            long offset = PACK_HEADER_LEN;
+            for (int i = 0; i < sorted.size(); i += 1) {
+                Entry entry = sorted.get(i);
+                offsets[i] = offset;
+                out.writeByte(entry.type);
+                out.writeLong(entry.length);
+                entry.copyTo(out);
+                offset += OBJECT_HEADER_LEN + entry.length;
+            }
+            out.flush();
+            byte[] packSha1 = md.digest();
+            out.write(packSha1);
+            out.flush();
+            fileOut.getFD().sync();
+
+            String name = "pack-" + toHex(packSha1);
+            File packFile = join(packsDir, name + ".pack");
+            File idxFile = join(packsDir, name + ".idx");
+            // packs are found through their index, so the index goes last
+            Files.move(tempPack.toPath(), packFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            writeIndex(idxFile, sorted, offsets, packSha1);
+            return idxFile;
+        } catch (IOException excp) {
+            tempPack.delete();
+            throw new GitletException(excp.getMessage());
+        }
+    }
+
+    private static void writeIndex(File idxFile, List<Entry> sorted, long[] offsets,
+                                   byte[] packSha1) throws IOException {
+        int[] fanout = new int[256];
+        for (Entry entry : sorted) {
+            fanout[Integer.parseInt(entry.sha1.substring(0, 2), 16)] += 1;
+        }
+        for (int b = 1; b < 256; b += 1) {
+            fanout[b] += fanout[b - 1];
+        }
+
+        File tempIdx = Files.createTempFile(idxFile.getParentFile().toPath(),
+                "idx-", ".tmp").toFile();
+        try (FileOutputStream fileOut = new FileOutputStream(tempIdx)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.write(IDX_MAGIC);
+            out.writeInt(VERSION);
+            for (int count : fanout) {
+                out.writeInt(count);
+            }
+            for (Entry entry : sorted) {
+                out.write(fromHex(entry.sha1));
+            }
+            for (Entry entry : sorted) {
+                out.writeByte(entry.type);
+            }
+            for (long offset : offsets) {
+                out.writeLong(offset);
+            }
+            out.write(packSha1);
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        Files.move(tempIdx.toPath(), idxFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Returns the size a pack holding objects of the given TOTAL length would have. */
+    static long packedSize(long total, int count) {
+        return PACK_HEADER_LEN + (long) count * OBJECT_HEADER_LEN + total + UID_BYTES;
+    }
+
+    /** An InputStream reading the remaining bytes of a ByteBuffer. */
+    static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            buffer.mark();
+        }
+
+        @Override
+        public synchronized void reset() {
+            buffer.reset();
+        }
+    }
+}
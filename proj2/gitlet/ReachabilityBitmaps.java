@@ -0,0 +1,203 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import static gitlet.Utils.*;
+
+/**
+ * For some commits, usually the branch tips, the set of commit-graph positions
+ * they reach, kept as CompressedBitmaps in .gitlet/commit-graph-bitmaps.
+ * <p>
+ * With the bitmap of a tip, asking whether a commit is one of its ancestors is
+ * one lookup, and the common ancestors of two tips are the AND of their bitmaps.
+ * A bitmap that is missing is built by walking down from the commit, and the
+ * walk stops at every commit that has a bitmap already and takes all of it: a
+ * branch tip is usually a few commits ahead of the tip it had when the bitmaps
+ * were last written, so only those few commits are walked.
+ * <p>
+ * The file looks like this, all integers are big-endian:
+ * <pre>
+ *     magic      4 bytes  "GLRB"
+ *     version    4 bytes  1
+ *     count      4 bytes  number of bitmaps
+ *     bitmaps    for every commit: 20 bytes sha1, 4 bytes position,
+ *                and its CompressedBitmap
+ * </pre>
+ * Positions only mean something in the graph they came from. A commit is never
+ * moved, except by gc() taking commits out of the graph, which then deletes the
+ * file, so a bitmap whose commit is still at its position is still right.
+ * The file is only a cache: if it can't be read, the bitmaps are built again.
+ *
+ * @author Linde
+ */
+class ReachabilityBitmaps {
+
+    private static final byte[] MAGIC = {'G', 'L', 'R', 'B'};
+    private static final int VERSION = 1;
+
+    private final File bitmapsFile;
+    private final CommitGraph graph;
+    /** the bitmap of every commit that has one, by position */
+    private final Map<Integer, CompressedBitmap> bitmaps = new HashMap<>();
+    /** whether the bitmaps differ from the file */
+    private boolean changed;
+
+    private ReachabilityBitmaps(File bitmapsFile, CommitGraph graph) {
+        this.bitmapsFile = bitmapsFile;
+        this.graph = graph;
+    }
+
+    /**
+     * Reads the bitmaps of GRAPH from BITMAPSFILE, leaving out the ones
+     * whose commits are not at their positions in GRAPH.
+     */
+    static ReachabilityBitmaps read(File bitmapsFile, CommitGraph graph) {
+        ReachabilityBitmaps result = new ReachabilityBitmaps(bitmapsFile, graph);
+        if (!bitmapsFile.exists()) {
+            return result;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(bitmapsFile)))) {
+            for (byte b : MAGIC) {
+                if (in.readByte() != b) {
+                    return result;
+                }
+            }
+            if (in.readInt() != VERSION) {
+                return result;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i += 1) {
+                byte[] sha1 = new byte[UID_BYTES];
+                in.readFully(sha1);
+                int position = in.readInt();
+                CompressedBitmap bitmap = CompressedBitmap.read(in);
+                if (graph.positionOf(toHex(sha1)) == position) {
+                    result.bitmaps.put(position, bitmap);
+                } else {
+                    result.changed = true;
+                }
+            }
+        } catch (IOException excp) {
+            result.bitmaps.clear();
+            result.changed = true;
+        }
+        return result;
+    }
+
+    /** Returns true if the commit at ANCESTOR is DESCENDANT or one of its ancestors. */
+    boolean isAncestor(int ancestor, int descendant) {
+        return bitmapOf(descendant).contains(ancestor);
+    }
+
+    /**
+     * Returns the position of a latest common ancestor of the commits at A and B,
+     * or -1 if they have none: the common ancestor with the largest generation,
+     * ties broken by the largest position, the same one CommitGraph.mergeBase()
+     * finds. The common ancestors are looked at from the largest position down,
+     * and a commit's generation is never larger than its position plus one,
+     * so the look stops as soon as no commit left can beat the best one.
+     */
+    int mergeBase(int a, int b) {
+        int[] best = {-1};
+        bitmapOf(a).and(bitmapOf(b)).forEachDescending(position -> {
+            if (best[0] >= 0 && position + 1 <= graph.generationOf(best[0])) {
+                return false;
+            }
+            if (best[0] < 0 || graph.generationOf(position) > graph.generationOf(best[0])) {
+                best[0] = position;
+            }
+            return true;
+        });
+        return best[0];
+    }
+
+    /** Returns the bitmap of the commit at POSITION, building it if there is none. */
+    CompressedBitmap bitmapOf(int position) {
+        CompressedBitmap bitmap = bitmaps.get(position);
+        if (bitmap != null) {
+            return bitmap;
+        }
+        BitSet reached = new BitSet(position + 1);
+        Deque<Integer> stack = new ArrayDeque<>();
+        reached.set(position);
+        stack.push(position);
+        while (!stack.isEmpty()) {
+            int p = stack.pop();
+            for (int parent : new int[]{graph.firstParentOf(p), graph.secondParentOf(p)}) {
+                if (parent == CommitGraph.NO_PARENT || reached.get(parent)) {
+                    continue;
+                }
+                CompressedBitmap known = bitmaps.get(parent);
+                if (known != null) {
+                    reached.or(known.toBitSet());
+                } else {
+                    reached.set(parent);
+                    stack.push(parent);
+                }
+            }
+        }
+        bitmap = CompressedBitmap.of(reached);
+        bitmaps.put(position, bitmap);
+        changed = true;
+        return bitmap;
+    }
+
+    /**
+     * Keeps only the bitmaps of the commits KEPTSHA1S, the branch tips, and
+     * replaces the file with them if they differ from it.
+     */
+    void write(Set<String> keptSha1s) {
+        for (Iterator<Integer> it = bitmaps.keySet().iterator(); it.hasNext(); ) {
+            if (!keptSha1s.contains(graph.sha1At(it.next()))) {
+                it.remove();
+                changed = true;
+            }
+        }
+        if (!changed) {
+            return;
+        }
+        File tempFile = null;
+        try {
+            tempFile = Files.createTempFile(bitmapsFile.getParentFile().toPath(),
+                    bitmapsFile.getName() + "-", ".tmp").toFile();
+            try (FileOutputStream fileOut = new FileOutputStream(tempFile)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(bitmaps.size());
+                for (Map.Entry<Integer, CompressedBitmap> entry : bitmaps.entrySet()) {
+                    out.write(fromHex(graph.sha1At(entry.getKey())));
+                    out.writeInt(entry.getKey());
+                    entry.getValue().write(out);
+                }
+                out.flush();
+                fileOut.getFD().sync();
+            }
+            Files.move(tempFile.toPath(), bitmapsFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            changed = false;
+        } catch (IOException excp) {
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+            throw new GitletException(excp.getMessage());
+        }
+    }
+}
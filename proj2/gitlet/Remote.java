@@ -0,0 +1,155 @@
+package gitlet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static gitlet.Utils.*;
+
+/**
+ * Another repository on this machine, named by the path of its .gitlet
+ * directory, which fetch copies history from and push copies history to.
+ * <p>
+ * A transfer never copies what the receiving side already has. The sending
+ * side wants its branch tip, the receiving side has every commit in its commit
+ * graph, so CommitGraph.missingFrom() walks back from the tip and stops at the
+ * first commit the receiver has. For the commits that are left, only the trees
+ * and blobs the receiver lacks are collected: a tree the receiver has is not
+ * opened, since it has everything below it too. The objects are then streamed,
+ * as they are stored (deltas stay deltas), into one new pack of the receiver,
+ * so the work done is proportional to the new history, not to the repository.
+ * The pack goes first, then the commit graph, then the branch, so a transfer
+ * that is cut off never leaves a branch pointing at a commit that isn't there.
+ *
+ * @author Linde
+ */
+class Remote {
+
+    private final File gitletDir;
+    private final ObjectStore store;
+    private final File branchesDir;
+
+    private Remote(File gitletDir) {
+        this.gitletDir = gitletDir;
+        this.store = new ObjectStore(gitletDir);
+        this.branchesDir = join(gitletDir, "branches");
+    }
+
+    /**
+     * Returns the repository whose .gitlet directory is GITLETDIR,
+     * or throws a GitletException if there is none.
+     */
+    static Remote open(File gitletDir) {
+        if (!gitletDir.isDirectory() || !join(gitletDir, "branches").isDirectory()) {
+            throw new GitletException("Remote directory not found.");
+        }
+        return new Remote(gitletDir);
+    }
+
+    ObjectStore getObjectStore() {
+        return store;
+    }
+
+    File getCommitGraphFile() {
+        return join(gitletDir, "commit-graph");
+    }
+
+    /** Returns the commit graph of this repository, which holds TIPSHA1. */
+    CommitGraph readCommitGraph(String tipSha1) {
+        CommitGraph graph = CommitGraph.readOrBuild(getCommitGraphFile(), store);
+        // an older version may have made the commit without adding it to the graph
+        graph.addWithAncestors(tipSha1, store);
+        return graph;
+    }
+
+    /** Returns the commit BRANCHNAME points at, or null if there is no such branch. */
+    String getBranchSha1(String branchName) {
+        File branchFile = join(branchesDir, branchName);
+        if (branchName.endsWith(LockFile.SUFFIX) || !branchFile.isFile()) {
+            return null;
+        }
+        return readContentsAsString(branchFile);
+    }
+
+    /**
+     * Points BRANCHNAME at NEWSHA1 if it still points at OLDSHA1 ("" for a new
+     * branch), and HEAD too if it is the active branch. The working directory
+     * of this repository is left alone, it shows the pushed changes as
+     * changes to be made until its owner checks them out.
+     */
+    void moveBranch(String branchName, String oldSha1, String newSha1) {
+        try (LockFile activeBranchLock = LockFile.acquire(join(branchesDir, "activeBranch"));
+             LockFile branchLock = LockFile.acquire(join(branchesDir, branchName));
+             LockFile headLock = LockFile.acquire(join(branchesDir, "HEAD"))) {
+            branchLock.checkUnchanged(oldSha1);
+            boolean active = activeBranchLock.read().equals(branchName);
+            branchLock.commit(newSha1);
+            if (active) {
+                headLock.commit(newSha1);
+            }
+        }
+    }
+
+    /**
+     * Copies the commits COMMITSHA1S, and every tree and blob of theirs that
+     * TO doesn't have, from FROM into one new pack of TO.
+     * Returns the number of objects copied.
+     */
+    static int copyObjects(ObjectStore from, List<String> commitSha1s, ObjectStore to) {
+        List<Pack.Entry> entries = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (String commitSha1 : commitSha1s) {
+            if (!to.hasCommit(commitSha1)) {
+                entries.add(packEntryOf(from, commitSha1));
+            }
+            Commit commit = from.readCommit(commitSha1);
+            if (commit.getTreeSha1() != null) {
+                collectTree(from, commit.getTreeSha1(), to, seen, entries);
+            } else {
+                // a commit written before there were trees
+                for (String blobSha1 : commit.getMap().values()) {
+                    collectBlob(from, blobSha1, to, seen, entries);
+                }
+            }
+        }
+        to.addPacked(entries);
+        return entries.size();
+    }
+
+    private static void collectTree(ObjectStore from, String treeSha1, ObjectStore to,
+                                    Set<String> seen, List<Pack.Entry> entries) {
+        if (!seen.add(treeSha1) || to.hasTree(treeSha1)) {
+            return;
+        }
+        entries.add(packEntryOf(from, treeSha1));
+        for (Tree.Entry entry : from.readTree(treeSha1).getEntries()) {
+            if (entry.type == Tree.TREE) {
+                collectTree(from, entry.sha1, to, seen, entries);
+            } else {
+                collectBlob(from, entry.sha1, to, seen, entries);
+            }
+        }
+    }
+
+    private static void collectBlob(ObjectStore from, String blobSha1, ObjectStore to,
+                                    Set<String> seen, List<Pack.Entry> entries) {
+        if (!seen.add(blobSha1) || to.hasBlob(blobSha1)) {
+            return;
+        }
+        entries.add(packEntryOf(from, blobSha1));
+        // the base of a delta, or the chunks of a big file, have to come along
+        for (String referenced : from.blobReferences(blobSha1)) {
+            collectBlob(from, referenced, to, seen, entries);
+        }
+    }
+
+    private static Pack.Entry packEntryOf(ObjectStore store, String sha1) {
+        Pack.Entry entry = store.packEntryOf(sha1);
+        if (entry == null) {
+            throw error("Object %s does not exist.", sha1);
+        }
+        return entry;
+    }
+}
@@ -1,11 +1,24 @@
 package gitlet;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static gitlet.Utils.*;
 
@@ -28,12 +41,42 @@ public class Repository {
     public static final File GITLET_DIR = join(CWD, ".gitlet");
 
     /**
-     * The .gitlet/stageForAdd directory, where store the files readied for commit
+     * The .gitlet/index file, the staging area, see Index
+     */
+    public static final File GITLET_INDEX_FILE = join(GITLET_DIR, "index");
+
+    /**
+     * The .gitlet/stat-cache file, the sha1s of the files in CWD, see StatCache
+     */
+    public static final File GITLET_STAT_CACHE_FILE = join(GITLET_DIR, "stat-cache");
+
+    /**
+     * The .gitlet/commit-graph file, the parents and generation numbers
+     * of every commit, see CommitGraph
+     */
+    public static final File GITLET_COMMIT_GRAPH_FILE = join(GITLET_DIR, "commit-graph");
+
+    /**
+     * The .gitlet/commit-graph-bitmaps file, the commits the branch tips reach,
+     * see ReachabilityBitmaps
+     */
+    public static final File GITLET_COMMIT_GRAPH_BITMAPS_FILE =
+            join(GITLET_DIR, "commit-graph-bitmaps");
+
+    /**
+     * The .gitlet/config file, the settings of the repository, see Config
+     */
+    public static final File GITLET_CONFIG_FILE = join(GITLET_DIR, Config.FILENAME);
+
+    /**
+     * The .gitlet/stageForAdd directory, where older versions stored the files
+     * readied for commit. It is only read to move them into the index.
      */
     public static final File GITLET_STAGE_FOR_ADD_DIR = join(GITLET_DIR, "stageForAdd");
 
     /**
-     * The .gitlet/stageForRemove directory, where store the files readied for remove
+     * The .gitlet/stageForRemove directory, where older versions stored the files
+     * readied for remove. It is only read to move them into the index.
      */
     public static final File GITLET_STAGE_FOR_REMOVE_DIR = join(GITLET_DIR, "stageForRemove");
 
@@ -47,6 +90,23 @@ public class Repository {
      */
     public static final File GITLET_COMMITS_DIR = join(GITLET_DIR, "commits");
 
+    /**
+     * The .gitlet/trees directory, where store the Trees,
+     * one for every directory of every commit, shared between commits
+     */
+    public static final File GITLET_TREES_DIR = join(GITLET_DIR, "trees");
+
+    /**
+     * The .gitlet/packs directory, where repack() puts the objects
+     * that used to be in GITLET_BLOBS_DIR and GITLET_COMMITS_DIR
+     */
+    public static final File GITLET_PACKS_DIR = join(GITLET_DIR, "packs");
+
+    /**
+     * Reads and writes the blobs and commits, whether they are loose or packed
+     */
+    private static final ObjectStore OBJECT_STORE = new ObjectStore(GITLET_DIR);
+
     /**
      * The .gitlet/branches directory, where store the master, HEAD files
      */
@@ -73,6 +133,50 @@ public class Repository {
      */
     private static final int PARENT_SHA1_LEN = 7;
 
+    /**
+     * the staging area, read from GITLET_INDEX_FILE the first time a command needs it
+     */
+    private static Index index;
+
+    /**
+     * the known sha1s of the files in CWD, read the first time a command needs it
+     */
+    private static StatCache statCache;
+
+    /**
+     * the shape of the history, read the first time a command needs it
+     */
+    private static CommitGraph commitGraph;
+
+    /**
+     * every commit in the order they were made, with an index of their messages,
+     * read the first time a command needs it
+     */
+    private static CommitJournal commitJournal;
+
+    /**
+     * how many milliseconds a command waits for another to finish adding its
+     * commit to the commit graph, which only takes a moment
+     */
+    private static final long COMMIT_GRAPH_LOCK_TIMEOUT = 10_000;
+
+    /**
+     * how many milliseconds a command waits for another to finish changing
+     * the staging area
+     */
+    private static final long INDEX_LOCK_TIMEOUT = 10_000;
+
+    /**
+     * how many bytes of commits COMMIT_CACHE may hold
+     */
+    private static final long COMMIT_CACHE_BYTES = 32L << 20;
+
+    /**
+     * the commits read so far, so that walking the history
+     * reads every commit only once, see getCommitBySha1()
+     */
+    private static final CommitCache COMMIT_CACHE = new CommitCache(COMMIT_CACHE_BYTES);
+
     /**
      * notice that we won't call add() then call commit(),
      * we will call setUpCommit() instead.
@@ -81,14 +185,13 @@ public class Repository {
         if (!GITLET_DIR.exists()) {
             GITLET_DIR.mkdir();
         } else {
-            System.out.println(
+            throw new GitletException(
                     "A Gitlet version-control system already exists in the current directory.");
-            System.exit(0);
         }
-        GITLET_STAGE_FOR_ADD_DIR.mkdir();
-        GITLET_STAGE_FOR_REMOVE_DIR.mkdir();
         GITLET_BLOBS_DIR.mkdir();
         GITLET_COMMITS_DIR.mkdir();
+        GITLET_TREES_DIR.mkdir();
+        GITLET_PACKS_DIR.mkdir();
         GITLET_BRANCHES_DIR.mkdir();
         try {
             GITLET_ACTIVE_BRANCH_FILE.createNewFile();
@@ -104,55 +207,232 @@ public class Repository {
 
     private static void setUpFirstCommit() {
         String message = "initial commit";
-        Commit commit = new Commit(message);
+        Commit commit = new Commit(message, OBJECT_STORE);
         String commitSha1 = serializeCommit(commit);
-        setupBranch(commitSha1);
+        setupBranch("", commitSha1);
 
     }
 
     /**
-     * add file to stagedForAddDir
+     * stage files for addition, their contents go straight into the object store
+     * and the index only remembers the sha1 of each blob.
+     * <p>
+     * A path can also be a directory (e.g. "." or "docs"),
+     * which adds every file under it.
+     * Files are tracked by their path in the working directory, e.g. "docs/a.txt".
+     * The files are hashed and written into the store in parallel,
+     * then the index is updated one file at a time in sorted order,
+     * so the result doesn't depend on which thread finished first.
+     * The index is only locked once the hashing is done.
      *
-     * @param CWDFileName the file we want to add
+     * @param paths the files we want to add
      */
-    public static void add(String CWDFileName) {
-        File CWDFile = join(CWD, CWDFileName);
-        if (!CWDFile.exists()) {
-            System.out.println("File does not exist.");
-            System.exit(0);
+    public static void add(List<String> paths) {
+        TreeSet<String> CWDFilenames = new TreeSet<>();
+        for (String path : paths) {
+            String trackedName = toTrackedName(path);
+            File file = trackedName == null ? null : join(CWD, trackedName);
+            if (file != null && file.isDirectory()) {
+                CWDFilenames.addAll(getWorkingFilenames(file));
+            } else if (file != null && file.isFile()) {
+                CWDFilenames.add(trackedName);
+            } else {
+                throw new GitletException("File does not exist.");
+            }
         }
 
-        String CWDFileSha1 = sha1(readContents(CWDFile));
+        List<String> filenames = new ArrayList<>(CWDFilenames);
         Commit currentCommit = getCommitBySha1(getHeadCommitSha1());
         TreeMap<String, String> map = currentCommit.getMap();
-        // If the current working version of the file is identical to the
-        // version in the current commit, do not stage it to be added,
-        if (map.containsKey(CWDFileName) && map.get(CWDFileName).equals(CWDFileSha1)) {
-            // and remove it from the staging area if it is already
-            // there (as can happen when a file is changed, added,
-            // and then changed back to it’s original version).
-            File fileInStagedForAdd = join(GITLET_STAGE_FOR_ADD_DIR, CWDFileName);
-            if (fileInStagedForAdd.exists()) {
-                fileInStagedForAdd.delete();
+        List<String> sha1s = hashAndStore(filenames, map);
+        try (LockFile indexLock = lockIndex()) {
+            stage(filenames, sha1s, map);
+            getIndex().write(indexLock);
+        }
+        getStatCache().write();
+    }
+
+    /**
+     * Stages the files FILENAMES, whose sha1s are SHA1S, in the index of this
+     * command, for addition unless MAP, the files of the current commit, has
+     * the same version. The caller holds the lock of the index and writes it.
+     */
+    private static void stage(List<String> filenames, List<String> sha1s,
+                              Map<String, String> map) {
+        Index stagingArea = getIndex();
+        for (int i = 0; i < filenames.size(); i += 1) {
+            String CWDFileName = filenames.get(i);
+            String CWDFileSha1 = sha1s.get(i);
+            File CWDFile = join(CWD, CWDFileName);
+            // If the current working version of the file is identical to the
+            // version in the current commit, do not stage it to be added,
+            if (map.containsKey(CWDFileName) && map.get(CWDFileName).equals(CWDFileSha1)) {
+                // and remove it from the staging area if it is already
+                // there (as can happen when a file is changed, added,
+                // and then changed back to it’s original version).
+                // The file will no longer be staged for removal (see gitlet rm),
+                // if it was at the time of the command.
+                stagingArea.unstage(CWDFileName);
+            } else {
+                // if a file haven't been tracked
+                // or a file is tracked, but it has been modified
+                // we need to add it to staging area
+                stagingArea.stageForAdd(CWDFileName, CWDFileSha1,
+                        CWDFile.length(), CWDFile.lastModified());
             }
+        }
+    }
+
+    /**
+     * stage a single file for addition
+     *
+     * @param CWDFileName the file we want to add
+     */
+    public static void add(String CWDFileName) {
+        add(List.of(CWDFileName));
+    }
 
-            // The file will no longer be staged for removal (see gitlet rm),
-            // if it was at the time of the command.
-            File fileInStagedForRemove = join(GITLET_STAGE_FOR_REMOVE_DIR, CWDFileName);
-            if (fileInStagedForRemove.exists()) {
-                fileInStagedForRemove.delete();
+    /**
+     * at most this many files are hashed by add(), or written by checkout, at the same time,
+     * more than the number of cores, since most of the time is spent waiting for the disk
+     */
+    private static final int MAX_IO_THREADS =
+            Math.min(4 * Runtime.getRuntime().availableProcessors(), 32);
+
+    /**
+     * Returns the sha1 of every file in CWDFILENAMES, in the same order,
+     * and makes sure the object store has a blob for each of them.
+     * The version of a file in COMMITMAP is handed to the store,
+     * which may keep a new blob as a delta against it.
+     */
+    private static List<String> hashAndStore(List<String> CWDFilenames,
+                                             Map<String, String> commitMap) {
+        // if a file didn't change since we last hashed it, we don't read it at all,
+        // otherwise it is read once, and hashed while it is stored
+        StatCache cache = getStatCache();
+        Function<String, String> task = CWDFileName -> {
+            File CWDFile = join(CWD, CWDFileName);
+            String baseSha1 = commitMap.get(CWDFileName);
+            boolean[] stored = {false};
+            String CWDFileSha1 = cache.sha1Of(CWDFileName, CWDFile, file -> {
+                stored[0] = true;
+                return OBJECT_STORE.writeBlob(file, baseSha1);
+            });
+            if (!stored[0] && !OBJECT_STORE.hasBlob(CWDFileSha1)) {
+                CWDFileSha1 = OBJECT_STORE.writeBlob(CWDFile, baseSha1);
             }
-        } else {
-            // if a file haven't been tracked
-            // or a file is tracked, but it has been modified
-            // we need to add it to staging area
-            Path src = CWDFile.toPath();
-            Path dest = join(GITLET_STAGE_FOR_ADD_DIR, CWDFile.getName()).toPath();
-            try {
-                Files.copy(src, dest, StandardCopyOption.REPLACE_EXISTING);
-            } catch (IOException excp) {
-                throw new GitletException(excp.getMessage());
+            return CWDFileSha1;
+        };
+        return inParallel(CWDFilenames, task);
+    }
+
+    /**
+     * Returns TASK applied to every item of ITEMS, in the same order.
+     * A single item is done right here, more are spread over a bounded pool.
+     */
+    private static <T, R> List<R> inParallel(List<T> items, Function<T, R> task) {
+        if (items.size() <= 1) {
+            return items.stream().map(task).collect(Collectors.toList());
+        }
+        ForkJoinPool pool = new ForkJoinPool(Math.min(MAX_IO_THREADS, items.size()));
+        try {
+            // an ordered stream collects the results in the order of ITEMS
+            return pool.submit(() -> items.parallelStream()
+                    .map(task).collect(Collectors.toList())).get();
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw new GitletException(excp.getMessage());
+        } catch (ExecutionException excp) {
+            if (excp.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) excp.getCause();
             }
+            throw new GitletException(excp.getCause().getMessage());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Returns PATH the way gitlet tracks it: relative to the working directory,
+     * with '/' between directories, e.g. "docs/a.txt", or "" for the working
+     * directory itself. Returns null if PATH is outside of the working directory
+     * or inside .gitlet.
+     */
+    private static String toTrackedName(String path) {
+        Path workingDir = CWD.toPath().toAbsolutePath().normalize();
+        Path resolved = workingDir.resolve(path).normalize();
+        if (!resolved.startsWith(workingDir)) {
+            return null;
+        }
+        Path relative = workingDir.relativize(resolved);
+        if (relative.startsWith(GITLET_DIR.getName())) {
+            return null;
+        }
+        return relative.toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Returns the tracked names of all files under DIR (the whole working
+     * directory if DIR is CWD), sorted, without looking into .gitlet.
+     */
+    private static List<String> getWorkingFilenames(File dir) {
+        Path workingDir = CWD.toPath();
+        Path gitletDir = GITLET_DIR.toPath();
+        List<String> filenames = new ArrayList<>();
+        try {
+            Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attrs) {
+                    return path.equals(gitletDir)
+                            ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile()) {
+                        filenames.add(workingDir.relativize(path).toString()
+                                .replace(File.separatorChar, '/'));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException excp) {
+            throw new GitletException(excp.getMessage());
+        }
+        Collections.sort(filenames);
+        return filenames;
+    }
+
+    private static List<String> getWorkingFilenames() {
+        return getWorkingFilenames(CWD);
+    }
+
+    /**
+     * Puts the contents of the blob BLOBSHA1 into the working directory as FILENAME,
+     * creating the directories on its path if they don't exist yet.
+     */
+    private static void writeWorkingFile(String filename, String blobSha1) {
+        File file = join(CWD, filename);
+        StatCache cache = getStatCache();
+        // a file the stat cache knows to hold the blob already is left alone
+        if (blobSha1.equals(cache.knownSha1(filename, file))) {
+            return;
+        }
+        file.getParentFile().mkdirs();
+        OBJECT_STORE.checkoutBlobTo(blobSha1, file.toPath());
+        cache.rememberWritten(filename, file, blobSha1);
+    }
+
+    /**
+     * Deletes FILENAME from the working directory,
+     * and then every directory on its path that this leaves empty.
+     */
+    private static void deleteWorkingFile(String filename) {
+        File file = join(CWD, filename);
+        file.delete();
+        File dir = file.getParentFile();
+        while (dir != null && !dir.equals(CWD) && dir.delete()) {
+            dir = dir.getParentFile();
         }
     }
 
@@ -161,20 +441,23 @@ public class Repository {
      */
     public static void setUpCommit(String message) {
         if (message == null || message.equals("")) {
-            System.out.println("Please enter a commit message.");
-            System.exit(0);
+            throw new GitletException("Please enter a commit message.");
+        }
+        // from reading the staging area until it is cleared,
+        // so that nothing added meanwhile is lost
+        try (LockFile indexLock = lockIndex()) {
+            checkIfStagedDirsAreAllEmpty();
+            String HEADSha1 = getHeadCommitSha1();
+            List<String> parentSha1List = new ArrayList<>();
+            parentSha1List.add(HEADSha1);
+            setUpCommit(message, parentSha1List, indexLock);
         }
-        checkIfStagedDirsAreAllEmpty();
-        String HEADSha1 = getHeadCommitSha1();
-        List<String> parentSha1List = new ArrayList<>();
-        parentSha1List.add(HEADSha1);
-        setUpCommit(message, parentSha1List);
     }
 
     /**
      * if it is the first commit, we will call commit constructor,
      * otherwise we will copy a commit then modify it.
-     * Then delete files in stageForAdd directory.
+     * Then clear the staging area.
      * After that, we will serialize it and put it in commitsDir,
      * and set HEAD point to active branch.
      * <p>
@@ -182,16 +465,19 @@ public class Repository {
      * We initialize a Commit, whose sha1 value is a154ccd,
      * then we will serialize this commit, this serialized file
      * will be named after a154ccd, then we put it in .gitlet/commits
+     * <p>
+     * The first parent is the HEAD the command started from, if another command
+     * moved HEAD since, the commit is not made. INDEXLOCK is the lock of the index.
      */
-    private static void setUpCommit(String message, List<String> parentSha1List) {
-        // clone a commit then modify it
-        Commit commit = getCommitBySha1(getHeadCommitSha1());
-        commit.modifyCommit(message, parentSha1List,
-                GITLET_STAGE_FOR_ADD_DIR, GITLET_BLOBS_DIR, GITLET_STAGE_FOR_REMOVE_DIR);
+    private static void setUpCommit(String message, List<String> parentSha1List,
+                                    LockFile indexLock) {
+        // clone a commit then modify it,
+        // read it ourselves since the commits in COMMIT_CACHE must not change
+        Commit commit = OBJECT_STORE.readCommit(parentSha1List.get(0));
+        commit.modifyCommit(message, parentSha1List, getIndex(), OBJECT_STORE);
         String commitSha1 = serializeCommit(commit);
-        setupBranch(commitSha1);
-        deleteAllFilesInDir(GITLET_STAGE_FOR_ADD_DIR);
-        deleteAllFilesInDir(GITLET_STAGE_FOR_REMOVE_DIR);
+        setupBranch(parentSha1List.get(0), commitSha1);
+        clearIndex(indexLock);
     }
 
     /**
@@ -201,44 +487,80 @@ public class Repository {
      * for example:
      * We serialize a Commit class, and get its sha1: a1fb321c,
      * this file's path will be .gitlet/commits/a1/a1fb321c
+     * <p>
+     * the commit is encoded by CommitFormat in memory, so we can hash it
+     * before it touches the disk, and then write it exactly once.
      *
      * @param commit the commit we want to serialize
      * @return the sha1 of the commit
      */
     private static String serializeCommit(Commit commit) {
-        File commitFile = join(GITLET_COMMITS_DIR, "tempCommitName");
-        writeObject(commitFile, commit);
-        String commitSha1 = sha1(readContents(commitFile));
-
-        File commitDir = join(GITLET_COMMITS_DIR, commitSha1.substring(0, 2));
-        if (!commitDir.exists()) {
-            commitDir.mkdir();
-        }
-        Path src = commitFile.toPath();
-        Path dest = join(commitDir, commitSha1).toPath();
-        try {
-            Files.copy(src, dest, StandardCopyOption.REPLACE_EXISTING);
-            commitFile.delete();
-        } catch (IOException excp) {
-            throw new GitletException(excp.getMessage());
+        byte[] contents = CommitFormat.encode(commit);
+        String commitSha1 = sha1(contents);
+        // a commit file is named after its contents,
+        // if it is already there (loose or packed), it is already right.
+        OBJECT_STORE.writeCommit(commitSha1, contents);
+
+        if (!getCommitGraph().contains(commitSha1)) {
+            try (LockFile lock = lockCommitGraph()) {
+                CommitGraph graph = getCommitGraph();
+                if (!graph.contains(commitSha1)) {
+                    // in step with the graph before the commit is added to either
+                    CommitJournal journal = getCommitJournal();
+                    graph.add(commitSha1, commit.getParentSha1List(),
+                            commit.getTimeStamp().getTime());
+                    // the journal goes first, writing the graph releases the lock;
+                    // a journal longer than the graph is written again
+                    journal.append(commitSha1, commit);
+                    graph.write(lock);
+                }
+            }
         }
-
         return commitSha1;
     }
 
     /**
-     * set HEAD and active branch point to the newest commit.
+     * set HEAD and active branch point to the newest commit,
+     * unless another command moved them away from OLDHEADSHA1 meanwhile.
      * recall that GITLET_ACTIVE_BRANCH_FILE store the name of the active branch.
      */
-    private static void setupBranch(String theNewestCommitSha1) {
+    private static void setupBranch(String oldHeadSha1, String theNewestCommitSha1) {
         String theNameOfTheActiveBranch = readContentsAsString(GITLET_ACTIVE_BRANCH_FILE);
-        File activeBranchFile = join(GITLET_BRANCHES_DIR, theNameOfTheActiveBranch);
-        writeContents(activeBranchFile, theNewestCommitSha1);
-        writeContents(HEAD_FILE, theNewestCommitSha1);
+        moveHead(theNameOfTheActiveBranch, oldHeadSha1,
+                theNameOfTheActiveBranch, oldHeadSha1, theNewestCommitSha1);
+    }
+
+    /**
+     * Makes BRANCHNAME the active branch and points it and HEAD at NEWSHA1.
+     * <p>
+     * The refs are compared and set: all three files are locked, and only if
+     * the active branch is still OLDBRANCHNAME, HEAD still OLDHEADSHA1 and the
+     * branch still OLDBRANCHSHA1 ("" for a new one), the values this command
+     * started from, is any of them changed. Otherwise another command got there
+     * first, and we fail rather than undo its work. Each file is replaced
+     * by a rename, so none of them is ever half written.
+     */
+    private static void moveHead(String oldBranchName, String oldHeadSha1,
+                                 String branchName, String oldBranchSha1, String newSha1) {
+        try (LockFile activeBranchLock = LockFile.acquire(GITLET_ACTIVE_BRANCH_FILE);
+             LockFile branchLock = LockFile.acquire(join(GITLET_BRANCHES_DIR, branchName));
+             LockFile headLock = LockFile.acquire(HEAD_FILE)) {
+            activeBranchLock.checkUnchanged(oldBranchName);
+            headLock.checkUnchanged(oldHeadSha1);
+            branchLock.checkUnchanged(oldBranchSha1);
+            if (!branchName.equals(oldBranchName)) {
+                activeBranchLock.commit(branchName);
+            }
+            if (!newSha1.equals(oldBranchSha1)) {
+                branchLock.commit(newSha1);
+            }
+            // HEAD goes last, it is what the next command reads first
+            headLock.commit(newSha1);
+        }
     }
 
     /**
-     * If the file exists in GITLET_STAGE_FOR_ADD_DIR, we remove it.
+     * If the file is staged for addition, we unstage it.
      * If the file is tracked in the current commit, stage it for removal
      * and remove the file from working directory if the user has not already done so
      * (do not remove it unless it is tracked in the current commit).
@@ -246,14 +568,27 @@ public class Repository {
      * @param targetFilename the name of the file that we want to remove
      */
     public static void remove(String targetFilename) {
-        boolean findFileInStageForAddDir = false;
-        // if filesInStageForAddDir is empty, it is ok, we don't need to do anything,
+        String trackedName = toTrackedName(targetFilename);
+        if (trackedName != null) {
+            targetFilename = trackedName;
+        }
+        try (LockFile indexLock = lockIndex()) {
+            unstageOrRemove(targetFilename);
+            getIndex().write(indexLock);
+        }
+    }
+
+    /**
+     * Does what remove() does to TARGETFILENAME, in the index of this command.
+     * The caller holds the lock of the index and writes it.
+     */
+    private static void unstageOrRemove(String targetFilename) {
+        Index stagingArea = getIndex();
+        // if the file is not staged, it is ok, we don't need to do anything,
         // and then we move down to check if we need to delete file from current commit.
-        for (String filename : Objects.requireNonNull(plainFilenamesIn(GITLET_STAGE_FOR_ADD_DIR))) {
-            if (targetFilename.equals(filename)) {
-                findFileInStageForAddDir = true;
-                join(GITLET_STAGE_FOR_ADD_DIR, filename).delete();
-            }
+        boolean findFileInStageForAdd = stagingArea.isStagedForAdd(targetFilename);
+        if (findFileInStageForAdd) {
+            stagingArea.unstage(targetFilename);
         }
 
         boolean findFileInCurrentCommit = false;
@@ -261,116 +596,181 @@ public class Repository {
         List<String> filenamesList = getFilenamesInCommit(currentCommit);
         if (filenamesList.contains(targetFilename)) {
             findFileInCurrentCommit = true;
-            String blobSha1 = currentCommit.getMap().get(targetFilename);
-            File blob = getBlob(blobSha1);
-            Path src = blob.toPath();
-            Path dest = join(GITLET_STAGE_FOR_REMOVE_DIR, targetFilename).toPath();
-            try {
-                Files.copy(src, dest, StandardCopyOption.REPLACE_EXISTING);
-            } catch (IOException excp) {
-                throw new GitletException(excp.getMessage());
-            }
-
+            stagingArea.stageForRemove(targetFilename);
             if (join(CWD, targetFilename).exists()) {
-                join(CWD, targetFilename).delete();
+                deleteWorkingFile(targetFilename);
             }
         }
 
-        if (!findFileInStageForAddDir && !findFileInCurrentCommit) {
-            System.out.println("No reason to remove the file.");
-            System.exit(0);
+        if (!findFileInStageForAdd && !findFileInCurrentCommit) {
+            throw new GitletException("No reason to remove the file.");
         }
     }
 
     public static void log() {
-        String commitSha1 = getHeadCommitSha1();
-        while (commitSha1 != null) {
-            Commit commit = getCommitBySha1(commitSha1);
-            List<String> parentSha1List = commit.getParentSha1List();
-            printLogInfo(commitSha1, commit);
-            // in log(), if a commit have multiple parents,
-            // we only print the first parent
-            if (!parentSha1List.isEmpty()) {
-                commitSha1 = parentSha1List.get(0);
-            } else {
-                commitSha1 = null;
+        log(Integer.MAX_VALUE, null);
+    }
+
+    /**
+     * prints the history from the head commit back along first parents,
+     * at most LIMIT commits, and only those made at SINCE or later
+     * (any time if SINCE is null), e.g. "2024-05-01" or "2024-05-01T09:30".
+     * <p>
+     * the commits are read one at a time as they are printed, and the walk
+     * stops at the first commit that is not shown, so showing the top of a
+     * long history costs the same as showing the top of a short one. Every
+     * entry goes through one BufferedWriter, flushed once at the end.
+     */
+    public static void log(int limit, String since) {
+        long sinceMillis = since == null ? Long.MIN_VALUE : parseDate(since);
+        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(System.out));
+        Iterator<String> history = firstParentHistory(getHeadCommitSha1());
+        try {
+            for (int shown = 0; shown < limit && history.hasNext(); shown += 1) {
+                String commitSha1 = history.next();
+                Commit commit = getCommitBySha1(commitSha1);
+                // in the first-parent history, a parent is older than its child,
+                // unless a clock was wrong, so nothing older can follow
+                if (commit.getTimeStamp().getTime() < sinceMillis) {
+                    break;
+                }
+                printLogInfo(out, commitSha1, commit);
             }
+        } finally {
+            // what was printed before a missing commit still shows
+            flush(out);
         }
+    }
 
+    /**
+     * Returns the commits from STARTSHA1 back along first parents, in log() order.
+     * in log(), if a commit have multiple parents, we only follow the first parent.
+     * A commit is only read when the iterator gets to it, so a caller that
+     * stops early never reads the rest of the history.
+     */
+    private static Iterator<String> firstParentHistory(String startSha1) {
+        return new Iterator<>() {
+            private String next = startSha1;
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public String next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                String current = next;
+                List<String> parentSha1List = getCommitBySha1(current).getParentSha1List();
+                next = parentSha1List.isEmpty() ? null : parentSha1List.get(0);
+                return current;
+            }
+        };
     }
 
-    private static void printLogInfo(String commitSha1, Commit commit) {
-        Date date = commit.getTimeStamp();
-        List<String> parentSha1List = commit.getParentSha1List();
-        String formattedDateString = formatDate(date);
-        System.out.println("===");
-        System.out.println("commit " + commitSha1);
-        if (parentSha1List.size() == 2) {
-            System.out.println("Merge: " + parentSha1List.get(0).substring(0, PARENT_SHA1_LEN)
-                    + " " + parentSha1List.get(1).substring(0, PARENT_SHA1_LEN));
-        }
-        System.out.println("Date: " + formattedDateString);
-        System.out.println(commit.getMessage());
-        System.out.println();
+    /**
+     * Returns the time of DATE, a date or a date and time in ISO format
+     * (2024-05-01, 2024-05-01T09:30:00), in the local time zone.
+     */
+    private static long parseDate(String date) {
+        try {
+            LocalDateTime dateTime = date.contains("T")
+                    ? LocalDateTime.parse(date) : LocalDate.parse(date).atStartOfDay();
+            return dateTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException excp) {
+            throw new GitletException("Invalid date: " + date);
+        }
     }
 
-    public static void globalLog() {
-        // since we don't care the order here, we can use File.list()
-        for (String commitDirName : Objects.requireNonNull(GITLET_COMMITS_DIR.list())) {
-            for (String commitSha1 : Objects.requireNonNull(plainFilenamesIn(join(GITLET_COMMITS_DIR, commitDirName)))) {
-                Commit commit = getCommitBySha1(commitSha1);
-                printLogInfo(commitSha1, commit);
+    private static void printLogInfo(BufferedWriter out, String commitSha1, Commit commit) {
+        printLogInfo(out, commitSha1, commit.getParentSha1List(), commit.getTimeStamp(),
+                commit.getMessage());
+    }
+
+    private static void printLogInfo(BufferedWriter out, String commitSha1,
+                                     List<String> parentSha1List, Date date, String message) {
+        String formattedDateString = formatDate(date);
+        try {
+            out.write("===");
+            out.newLine();
+            out.write("commit " + commitSha1);
+            out.newLine();
+            if (parentSha1List.size() == 2) {
+                out.write("Merge: " + parentSha1List.get(0).substring(0, PARENT_SHA1_LEN)
+                        + " " + parentSha1List.get(1).substring(0, PARENT_SHA1_LEN));
+                out.newLine();
             }
+            out.write("Date: " + formattedDateString);
+            out.newLine();
+            out.write(message);
+            out.newLine();
+            out.newLine();
+        } catch (IOException excp) {
+            throw new GitletException(excp.getMessage());
+        }
+    }
+
+    private static void flush(BufferedWriter out) {
+        try {
+            out.flush();
+        } catch (IOException excp) {
+            throw new GitletException(excp.getMessage());
         }
+    }
 
+    public static void globalLog() {
+        // since we don't care the order here, the journal gives us the commits
+        // in the order they were made, reading one file from start to end
+        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(System.out));
+        try {
+            getCommitJournal().forEach(entry -> printLogInfo(out, entry.sha1,
+                    entry.parentSha1List, entry.timeStamp, entry.message));
+        } finally {
+            flush(out);
+        }
     }
 
     public static void find(String targetMessage) {
-        boolean findCommitWithTargetMessage = false;
-        for (String commitDirName : Objects.requireNonNull(GITLET_COMMITS_DIR.list())) {
-            for (String commitSha1 : Objects.requireNonNull(plainFilenamesIn(join(GITLET_COMMITS_DIR, commitDirName)))) {
-                Commit commit = getCommitBySha1(commitSha1);
-                if (commit.getMessage().equals(targetMessage)) {
-                    findCommitWithTargetMessage = true;
-                    System.out.println(commitSha1);
-                }
-            }
+        // the journal only reads the commits that have every word of the message
+        List<String> found = getCommitJournal().find(targetMessage);
+        for (String commitSha1 : found) {
+            System.out.println(commitSha1);
         }
 
-        if (!findCommitWithTargetMessage) {
+        if (found.isEmpty()) {
             System.out.println("Found no commit with that message.");
         }
     }
 
     public static void branch(String branchName) {
+        if (branchName.endsWith(LockFile.SUFFIX)) {
+            throw new GitletException("A branch name can't end in " + LockFile.SUFFIX + ".");
+        }
         File branchFile = join(GITLET_BRANCHES_DIR, branchName);
-        if (!branchFile.exists()) {
-            try {
-                branchFile.createNewFile();
-            } catch (IOException excp) {
-                throw new GitletException(excp.getMessage());
+        // under the lock, so that two commands can't both create the branch
+        try (LockFile lock = LockFile.acquire(branchFile)) {
+            if (branchFile.exists()) {
+                throw new GitletException("A branch with that name already exists.");
             }
-        } else {
-            System.out.println("A branch with that name already exists.");
-            System.exit(0);
+            String currentCommitSha1 = getHeadCommitSha1();
+            lock.commit(currentCommitSha1);
         }
-
-        String currentCommitSha1 = getHeadCommitSha1();
-        writeContents(branchFile, currentCommitSha1);
     }
 
     public static void removeBranch(String branchName) {
         if (readContentsAsString(GITLET_ACTIVE_BRANCH_FILE).equals(branchName)) {
-            System.out.println("Cannot remove the current branch.");
-            System.exit(0);
+            throw new GitletException("Cannot remove the current branch.");
         }
 
         File branchFile = join(GITLET_BRANCHES_DIR, branchName);
-        if (branchFile.exists()) {
-            branchFile.delete();
-        } else {
-            System.out.println("A branch with that name does not exist.");
-            System.exit(0);
+        try (LockFile lock = LockFile.acquire(branchFile)) {
+            if (branchFile.exists()) {
+                lock.delete();
+            } else {
+                throw new GitletException("A branch with that name does not exist.");
+            }
         }
     }
 
@@ -388,27 +788,22 @@ public class Repository {
 
     private static void checkoutCommitAndFilename(Commit targetCommit, String targetFilename) {
         if (targetCommit == null) {
-            System.out.println("No commit with that id exists.");
-            System.exit(0);
+            throw new GitletException("No commit with that id exists.");
         }
 
-        List<String> filenamesList = getFilenamesInCommit(targetCommit);
-        if (!filenamesList.contains(targetFilename)) {
-            System.out.println("File does not exist in that commit.");
-            System.exit(0);
+        // the same spelling of a path add accepted, e.g. ./docs/a.txt, finds it here
+        String trackedName = toTrackedName(targetFilename);
+        if (trackedName != null) {
+            targetFilename = trackedName;
         }
-
-        TreeMap<String, String> map = targetCommit.getMap();
-        String blobSha1 = map.get(targetFilename);
-        File blob = getBlob(blobSha1);
-        Path src = blob.toPath();
-        Path dest = join(CWD, targetFilename).toPath();
-        try {
-            Files.copy(src, dest, StandardCopyOption.REPLACE_EXISTING);
-        } catch (IOException excp) {
-            throw new GitletException(excp.getMessage());
+        String blobSha1 = targetCommit.getMap().get(targetFilename);
+        if (blobSha1 == null) {
+            throw new GitletException("File does not exist in that commit.");
         }
 
+        writeWorkingFile(targetFilename, blobSha1);
+        getStatCache().write();
+
     }
 
     /**
@@ -435,80 +830,104 @@ public class Repository {
      * branch is the current branch
      */
     public static void checkoutBranchName(String targetBranchName) {
+        try (LockFile indexLock = lockIndex()) {
+            checkoutBranchName(targetBranchName, indexLock);
+        }
+    }
+
+    /** Checks out TARGETBRANCHNAME, INDEXLOCK is the lock of the index. */
+    private static void checkoutBranchName(String targetBranchName, LockFile indexLock) {
         File targetBranchFile = join(GITLET_BRANCHES_DIR, targetBranchName);
         if (!targetBranchFile.exists()) {
-            System.out.println("No such branch exists.");
-            System.exit(0);
+            throw new GitletException("No such branch exists.");
         }
 
         String theNameOfTheActiveBranch = readContentsAsString(GITLET_ACTIVE_BRANCH_FILE);
         if (targetBranchName.equals(theNameOfTheActiveBranch)) {
-            System.out.println("No need to checkout the current branch.");
-            System.exit(0);
+            throw new GitletException("No need to checkout the current branch.");
         }
 
         String targetCommitSha1 = readContentsAsString(targetBranchFile);
         Commit targetCommit = getCommitBySha1(targetCommitSha1);
+        String currentCommitSha1 = getHeadCommitSha1();
 
-        checkoutAllFilesInCommit(targetCommit);
+        checkoutAllFilesInCommit(targetCommit, false);
 
-        writeContents(GITLET_ACTIVE_BRANCH_FILE, targetBranchName);
-        writeContents(HEAD_FILE, targetCommitSha1);
-        deleteAllFilesInDir(GITLET_STAGE_FOR_ADD_DIR);
-        deleteAllFilesInDir(GITLET_STAGE_FOR_REMOVE_DIR);
+        moveHead(theNameOfTheActiveBranch, currentCommitSha1,
+                targetBranchName, targetCommitSha1, targetCommitSha1);
+        clearIndex(indexLock);
     }
 
-    private static void checkoutAllFilesInCommit(Commit targetCommit) {
+    /**
+     * Makes the working directory hold the files of TARGETCOMMIT instead of
+     * those of the current commit. Only the files that differ between the two
+     * commits are deleted or written, the others are not even looked at, so
+     * a change to one of them in the working directory stays, as it does in git.
+     * If HARD, as for reset, the files both commits share are put back too,
+     * except the ones the stat cache knows to be right without reading them.
+     * The deletes go first, since they may remove empty directories, then the
+     * writes are spread over a bounded pool.
+     */
+    private static void checkoutAllFilesInCommit(Commit targetCommit, boolean hard) {
         checkIfUntrackedFileWillBeOverwrittenByCommit(targetCommit);
 
         // Any files that are tracked in the current branch
         // but are not present in the checked-out branch are deleted.
+        // the diff of the two commits only looks into the directories that differ
         Commit currentCommit = getCommitBySha1(getHeadCommitSha1());
-        List<String> filenamesInCurrCommit = getFilenamesInCommit(currentCommit);
-        List<String> filenamesInTargetCommit = getFilenamesInCommit(targetCommit);
-        for (String filenameInCurrCommit : filenamesInCurrCommit) {
-            if (!filenamesInTargetCommit.contains(filenameInCurrCommit)) {
-                join(CWD, filenameInCurrCommit).delete();
+        List<String> deleted = new ArrayList<>();
+        List<TreeDiff.Change> changed = new ArrayList<>();
+        for (TreeDiff.Change change : diffCommits(currentCommit, targetCommit)) {
+            if (change.newSha1 == null) {
+                deleted.add(change.path);
+            } else {
+                changed.add(change);
             }
         }
 
-        TreeMap<String, String> map = targetCommit.getMap();
-        for (String filename : map.keySet()) {
-            String fileSha1 = map.get(filename);
-            File blob = getBlob(fileSha1);
-            Path src = blob.toPath();
-            Path dest = join(CWD, filename).toPath();
-            try {
-                Files.copy(src, dest, StandardCopyOption.REPLACE_EXISTING);
-            } catch (IOException excp) {
-                throw new GitletException(excp.getMessage());
+        inParallel(deleted, filename -> {
+            deleteWorkingFile(filename);
+            return null;
+        });
+        if (hard) {
+            changed.clear();
+            for (Map.Entry<String, String> entry : targetCommit.getMap().entrySet()) {
+                changed.add(new TreeDiff.Change(entry.getKey(), null, entry.getValue()));
             }
         }
-
+        inParallel(changed, change -> {
+            writeWorkingFile(change.path, change.newSha1);
+            return null;
+        });
+        getStatCache().write();
     }
 
     public static void status() {
         String theNameOfTheActiveBranch = readContentsAsString(GITLET_ACTIVE_BRANCH_FILE);
         System.out.println("=== Branches ===");
         System.out.println("*" + theNameOfTheActiveBranch);
-        for (String filename : Objects.requireNonNull(plainFilenamesIn(GITLET_BRANCHES_DIR))) {
-            if (filename.equals(theNameOfTheActiveBranch)
-                    || filename.equals("HEAD") || filename.equals("activeBranch")) {
-                continue;
+        for (String branchName : getBranchNames()) {
+            if (!branchName.equals(theNameOfTheActiveBranch)) {
+                System.out.println(branchName);
             }
-            System.out.println(filename);
         }
         System.out.println();
 
+        // the entries of the index are sorted by filename
+        Index stagingArea = getIndex();
         System.out.println("=== Staged Files ===");
-        for (String filename : Objects.requireNonNull(plainFilenamesIn(GITLET_STAGE_FOR_ADD_DIR))) {
-            System.out.println(filename);
+        for (Index.Entry entry : stagingArea.getEntries()) {
+            if (entry.state == Index.STAGED_FOR_ADD) {
+                System.out.println(entry.filename);
+            }
         }
         System.out.println();
 
         System.out.println("=== Removed Files ===");
-        for (String filename : Objects.requireNonNull(plainFilenamesIn(GITLET_STAGE_FOR_REMOVE_DIR))) {
-            System.out.println(filename);
+        for (Index.Entry entry : stagingArea.getEntries()) {
+            if (entry.state == Index.STAGED_FOR_REMOVE) {
+                System.out.println(entry.filename);
+            }
         }
         System.out.println();
 
@@ -527,19 +946,24 @@ public class Repository {
         // but then re-created without Gitlet’s knowledge.
         Commit currentCommit = getCommitBySha1(getHeadCommitSha1());
         List<String> filenamesInCommit = getFilenamesInCommit(currentCommit);
+        List<String> CWDFilenames = getWorkingFilenames();
         System.out.println("=== Untracked Files ===");
-        for (String CWDFilename : Objects.requireNonNull(plainFilenamesIn(CWD))) {
-            // if a file is present in the CWD but neither stagedForAddDir nor tracked
+        for (String CWDFilename : CWDFilenames) {
+            // if a file is present in the CWD but neither staged for addition nor tracked
             boolean condition1 = !filenamesInCommit.contains(CWDFilename)
-                    && !join(GITLET_STAGE_FOR_ADD_DIR, CWDFilename).exists();
-            // if there is a file both exist in CWD and stagedForRemoveDir
-            boolean condition2 = join(GITLET_STAGE_FOR_REMOVE_DIR, CWDFilename).exists();
+                    && !stagingArea.isStagedForAdd(CWDFilename);
+            // if there is a file both exist in CWD and staged for removal
+            boolean condition2 = stagingArea.isStagedForRemove(CWDFilename);
             if (condition1 || condition2) {
                 System.out.println(CWDFilename);
             }
         }
         System.out.println();
 
+        // files that are gone from CWD don't need to be remembered
+        StatCache cache = getStatCache();
+        cache.retainAll(CWDFilenames);
+        cache.write();
     }
 
     /**
@@ -558,20 +982,21 @@ public class Repository {
     private static void resetWithCompletedCommitId(String targetCommitId) {
         Commit targetCommit = getCommitBySha1(targetCommitId);
         if (targetCommit == null) {
-            System.out.println("No commit with that id exists.");
-            System.exit(0);
+            throw new GitletException("No commit with that id exists.");
         }
 
-        checkoutAllFilesInCommit(targetCommit);
+        try (LockFile indexLock = lockIndex()) {
+            String currentCommitSha1 = getHeadCommitSha1();
+            String theNameOfActiveBranch = readContentsAsString(GITLET_ACTIVE_BRANCH_FILE);
 
-        deleteAllFilesInDir(GITLET_STAGE_FOR_ADD_DIR);
-        deleteAllFilesInDir(GITLET_STAGE_FOR_REMOVE_DIR);
+            checkoutAllFilesInCommit(targetCommit, true);
 
-        // Also moves the current branch’s head to that commit node.
-        writeContents(HEAD_FILE, targetCommitId);
-        String theNameOfActiveBranch = readContentsAsString(GITLET_ACTIVE_BRANCH_FILE);
-        File activeBranchFile = join(GITLET_BRANCHES_DIR, theNameOfActiveBranch);
-        writeContents(activeBranchFile, targetCommitId);
+            clearIndex(indexLock);
+
+            // Also moves the current branch’s head to that commit node.
+            moveHead(theNameOfActiveBranch, currentCommitSha1,
+                    theNameOfActiveBranch, currentCommitSha1, targetCommitId);
+        }
         // you may ask here we modify HEAD_FILE, but why we don't modify ACTIVE_BRANCH_FILE?
         // recall that if HEAD is in branch_A, and then it points to branch_B, in this case we
         // need to modify ACTIVE_BRANCH_FILE,
@@ -588,36 +1013,52 @@ public class Repository {
         Commit currentCommit = getCommitBySha1(getHeadCommitSha1());
         List<String> filenamesInCurrCommit = getFilenamesInCommit(currentCommit);
 
-        for (String CWDFilename : Objects.requireNonNull(plainFilenamesIn(CWD))) {
+        for (String CWDFilename : getWorkingFilenames()) {
             boolean condition1 = !filenamesInCurrCommit.contains(CWDFilename);
             boolean condition2 = filenamesInTargetCommit.contains(CWDFilename);
             // if a CWDFile is untracked by current commit
             // and the target commit will overwrite the CWDFile
             if (condition1 && condition2) {
-                System.out.println("There is an untracked file in the way; delete it, or add and commit it first.");
-                System.exit(0);
+                throw new GitletException("There is an untracked file in the way; delete it, or add and commit it first.");
             }
         }
     }
 
     public static void merge(String targetBranchName) {
+        // the staging area must stay empty until the merge commit is made
+        try (LockFile indexLock = lockIndex()) {
+            merge(targetBranchName, indexLock);
+        }
+    }
+
+    /** Merges TARGETBRANCHNAME into the current branch, INDEXLOCK is the lock of the index. */
+    private static void merge(String targetBranchName, LockFile indexLock) {
         checkMergeFailureCases(targetBranchName);
-        Commit targetCommit = getCommitAtTargetBranch(targetBranchName);
-        Commit currentCommit = getCommitBySha1(getHeadCommitSha1());
-        List<String> ancestorsListOfCurrCommit = getAncestorsOfCommit(currentCommit);
-        List<String> ancestorsListOfTarCommit = getAncestorsOfCommit(targetCommit);
-        if (ancestorsListOfCurrCommit.contains(getCommitSha1(targetCommit))) {
-            System.out.println("Given branch is an ancestor of the current branch.");
-            System.exit(0);
-        }
-        if (ancestorsListOfTarCommit.contains(getCommitSha1(currentCommit))) {
-            checkoutBranchName(targetBranchName);
+        String targetCommitSha1 = getCommitSha1AtTargetBranch(targetBranchName);
+        String currentCommitSha1 = getHeadCommitSha1();
+        Commit targetCommit = getCommitBySha1(targetCommitSha1);
+        Commit currentCommit = getCommitBySha1(currentCommitSha1);
+        // the bitmaps of the two tips answer these without reading any more commits
+        int targetPosition = getGraphPosition(targetCommitSha1);
+        int currentPosition = getGraphPosition(currentCommitSha1);
+        ReachabilityBitmaps bitmaps = readReachabilityBitmaps();
+        boolean givenIsAncestor = bitmaps.isAncestor(targetPosition, currentPosition);
+        boolean fastForward = !givenIsAncestor
+                && bitmaps.isAncestor(currentPosition, targetPosition);
+        int spiltPointPosition = givenIsAncestor || fastForward
+                ? -1 : bitmaps.mergeBase(currentPosition, targetPosition);
+        writeReachabilityBitmaps(bitmaps);
+        if (givenIsAncestor) {
+            throw new GitletException("Given branch is an ancestor of the current branch.");
+        }
+        if (fastForward) {
+            checkoutBranchName(targetBranchName, indexLock);
             System.out.println("Current branch fast-forwarded.");
-            System.exit(0);
+            return;
         }
 
-        Commit spiltPointCommit =
-                getTheLatestCommonAncestorCommit(ancestorsListOfCurrCommit, ancestorsListOfTarCommit);
+        CommitGraph graph = getCommitGraph();
+        Commit spiltPointCommit = getCommitBySha1(graph.sha1At(spiltPointPosition));
         boolean hasMergeConflict =
                 checkMergeCases(spiltPointCommit, currentCommit, targetCommit);
         /*
@@ -631,9 +1072,10 @@ public class Repository {
         }
          */
         String theNameOfTheActiveBranch = readContentsAsString(GITLET_ACTIVE_BRANCH_FILE);
+        // the HEAD the merge started from, another command may have moved it since
         setUpMergeConflictCommit("Merged " + targetBranchName
                         + " into " + theNameOfTheActiveBranch + ".",
-                getCommitSha1AtTargetBranch(targetBranchName));
+                currentCommitSha1, targetCommitSha1, indexLock);
         if (hasMergeConflict) {
             System.out.println("Encountered a merge conflict.");
         }
@@ -644,65 +1086,157 @@ public class Repository {
      * Merge commits differ from other commits: they record as parents both the head
      * of the current branch (called the first parent) and the head of the branch
      * given on the command line to be merged in.
+     * FIRSTPARENTSHA1 is the HEAD the merge started from, the commit is only made
+     * if HEAD still points at it.
      */
-    private static void setUpMergeConflictCommit(String message, String secondParentSha1) {
+    private static void setUpMergeConflictCommit(String message, String firstParentSha1,
+                                                 String secondParentSha1, LockFile indexLock) {
         List<String> parentSha1List = new ArrayList<>();
-        parentSha1List.add(getHeadCommitSha1());
+        parentSha1List.add(firstParentSha1);
         parentSha1List.add(secondParentSha1);
-        setUpCommit(message, parentSha1List);
+        setUpCommit(message, parentSha1List, indexLock);
     }
 
+    /**
+     * Merges every file, and returns whether any of them conflicted.
+     * <p>
+     * Only the files that changed on either side since the split point can need
+     * anything, the tree diffs find them without looking at the others. What to
+     * do with each of them is decided in parallel, conflicts and their merged
+     * contents included, with the blobs read through the blob cache of the
+     * store. The results are then applied in filename order: the files are written
+     * in parallel, and staged all at once in the index of this command, which
+     * the merge commit then clears, so the index is written once.
+     */
     private static boolean checkMergeCases(Commit spiltPointCommit,
                                            Commit currentCommit, Commit targetCommit) {
+        TreeSet<String> changedFilenames = new TreeSet<>();
+        for (TreeDiff.Change change : diffCommits(spiltPointCommit, currentCommit)) {
+            changedFilenames.add(change.path);
+        }
+        for (TreeDiff.Change change : diffCommits(spiltPointCommit, targetCommit)) {
+            changedFilenames.add(change.path);
+        }
+        // the maps are built here, the threads below only read them
+        TreeMap<String, String> spiltMap = spiltPointCommit.getMap();
+        TreeMap<String, String> currMap = currentCommit.getMap();
+        TreeMap<String, String> targetMap = targetCommit.getMap();
+        List<MergeAction> actions = inParallel(new ArrayList<>(changedFilenames),
+                filename -> decideMerge(filename, spiltMap, currMap, targetMap));
+
         boolean hasMergeConflict = false;
-        List<String> filenamesAtSpiltPoint = getFilenamesInCommit(spiltPointCommit);
-        List<String> filenamesAtCurrCommit = getFilenamesInCommit(currentCommit);
-        List<String> filenamesAtTargetCommit = getFilenamesInCommit(targetCommit);
-        List<String> allFilenamesList = mergeThreeListIntoOne(filenamesAtSpiltPoint,
-                filenamesAtCurrCommit, filenamesAtTargetCommit);
-
-        for (String filename : allFilenamesList) {
-            boolean targetFileIsSameAsSpiltFile =
-                    compareTwoCommit(filename, targetCommit, spiltPointCommit);
-            boolean currFileIsSameAsSpiltFile =
-                    compareTwoCommit(filename, currentCommit, spiltPointCommit);
-            boolean targetFileIsSameAsCurrFile =
-                    compareTwoCommit(filename, targetCommit, currentCommit);
-
-            // if targetFileIsSameAsSpiltFile is false, then we know
-            // targetCommit contain the newest version of file
-            if (!targetFileIsSameAsSpiltFile && currFileIsSameAsSpiltFile) {
-                updateContentsAndStage(targetCommit, filename);
-            } else if (!currFileIsSameAsSpiltFile && targetFileIsSameAsSpiltFile) {
-                updateContentsAndStage(currentCommit, filename);
-            } else if (!currFileIsSameAsSpiltFile && !targetFileIsSameAsCurrFile) {
-                // if currCommit and targetCommit both contain the newest version of file,
-                // and their content are different from each other, that means we meet conflict.
-
-                // why we need to check if they have different content?
-                // let's say at spiltPointCommit, A.txt content is "hello"
-                // at targetCommit, A.txt is removed, at currCommit, A.txt is also removed
-                // in this case, both targetCommit and currCommit are the
-                // newest(be modified since spiltPoint), but they are both modified to the
-                // same way (both be removed), in this case, we can't say we meet merge conflict
-                hasMergeConflict = true;
-                String contentsOfTargetFile = getContentsOfFile(targetCommit, filename);
-                String contentsOfCurrFile = getContentsOfFile(currentCommit, filename);
-                String resultContent = "<<<<<<< HEAD\n" + contentsOfCurrFile
-                        + "=======\n" + contentsOfTargetFile + ">>>>>>>\n";
-                File resultFile = join(CWD, filename);
-                writeContents(resultFile, resultContent);
-                add(filename);
+        List<MergeAction> writes = new ArrayList<>();
+        List<String> filenamesToStage = new ArrayList<>();
+        for (MergeAction action : actions) {
+            if (action != null && !action.remove) {
+                writes.add(action);
+                filenamesToStage.add(action.filename);
+            }
+            hasMergeConflict |= action != null && action.conflict;
+        }
+        inParallel(writes, action -> {
+            if (action.blobSha1 != null) {
+                writeWorkingFile(action.filename, action.blobSha1);
+            } else {
+                File resultFile = join(CWD, action.filename);
+                resultFile.getParentFile().mkdirs();
+                // a new file, the old one may be linked to its blob
+                resultFile.delete();
+                writeContents(resultFile, action.contents);
+            }
+            return null;
+        });
+        if (!filenamesToStage.isEmpty()) {
+            stage(filenamesToStage, hashAndStore(filenamesToStage, currMap), currMap);
+            getStatCache().write();
+        }
+        for (MergeAction action : actions) {
+            // let's say currentCommit is the only commit that has the newest version of file,
+            // and the file is null,
+            // in this case the file does not exist in currentCommit,
+            // we don't need to call remove()
+            if (action != null && action.remove && join(CWD, action.filename).exists()) {
+                unstageOrRemove(action.filename);
             }
         }
-
         return hasMergeConflict;
     }
 
+    /** What merge does with one file, see decideMerge(). */
+    private static class MergeAction {
+        final String filename;
+        /** the version to check out, or null */
+        final String blobSha1;
+        /** the merged contents to write instead, or null */
+        final String contents;
+        /** whether the file is removed */
+        final boolean remove;
+        final boolean conflict;
+
+        MergeAction(String filename, String blobSha1, String contents,
+                    boolean remove, boolean conflict) {
+            this.filename = filename;
+            this.blobSha1 = blobSha1;
+            this.contents = contents;
+            this.remove = remove;
+            this.conflict = conflict;
+        }
+    }
+
+    /**
+     * Returns what merge does with FILENAME, given its blob at the split point,
+     * in the current and in the target commit, or null if nothing needs doing.
+     * Runs on several threads at once, so it only reads.
+     */
+    private static MergeAction decideMerge(String filename, Map<String, String> spiltMap,
+                                           Map<String, String> currMap,
+                                           Map<String, String> targetMap) {
+        String spiltSha1 = spiltMap.get(filename);
+        String currSha1 = currMap.get(filename);
+        String targetSha1 = targetMap.get(filename);
+        boolean targetFileIsSameAsSpiltFile = Objects.equals(targetSha1, spiltSha1);
+        boolean currFileIsSameAsSpiltFile = Objects.equals(currSha1, spiltSha1);
+        boolean targetFileIsSameAsCurrFile = Objects.equals(targetSha1, currSha1);
+
+        // if targetFileIsSameAsSpiltFile is false, then we know
+        // targetCommit contain the newest version of file
+        if (!targetFileIsSameAsSpiltFile && currFileIsSameAsSpiltFile) {
+            return newestVersion(filename, targetSha1);
+        } else if (!currFileIsSameAsSpiltFile && targetFileIsSameAsSpiltFile) {
+            return newestVersion(filename, currSha1);
+        } else if (!currFileIsSameAsSpiltFile && !targetFileIsSameAsCurrFile) {
+            // if currCommit and targetCommit both contain the newest version of file,
+            // and their content are different from each other, that means we meet conflict.
+
+            // why we need to check if they have different content?
+            // let's say at spiltPointCommit, A.txt content is "hello"
+            // at targetCommit, A.txt is removed, at currCommit, A.txt is also removed
+            // in this case, both targetCommit and currCommit are the
+            // newest(be modified since spiltPoint), but they are both modified to the
+            // same way (both be removed), in this case, we can't say we meet merge conflict
+            String contentsOfTargetFile = getContentsOfBlob(targetSha1);
+            String contentsOfCurrFile = getContentsOfBlob(currSha1);
+            if (currSha1 != null && targetSha1 != null) {
+                // both sides still have the file, so their changes are merged
+                // hunk by hunk, and only the hunks that touch each other conflict
+                Diff.MergeResult result = Diff.merge(
+                        Diff.splitLines(getContentsOfBlob(spiltSha1)),
+                        Diff.splitLines(contentsOfCurrFile),
+                        Diff.splitLines(contentsOfTargetFile), Diff.Algorithm.MYERS);
+                return new MergeAction(filename, null, result.text, false, result.conflict);
+            }
+            String resultContent = "<<<<<<< HEAD\n" + contentsOfCurrFile
+                    + "=======\n" + contentsOfTargetFile + ">>>>>>>\n";
+            return new MergeAction(filename, null, resultContent, false, true);
+        }
+        return null;
+    }
+
     /**
-     * @param commit should be the only commit that contain the newest version of file
+     * @param blobSha1 the newest version of the file, which only one of the commits has,
+     *                 null if that commit removed it
      */
-    private static void updateContentsAndStage(Commit commit, String filename) {
+    private static MergeAction newestVersion(String filename, String blobSha1) {
         // let's say a file with name "A" exist in spiltPointCommit,
         // meanwhile a file name "A" is absent in targetCommit,
         // and a file name "A" exist in currentCommit,
@@ -710,85 +1244,37 @@ public class Repository {
         // newest version of the file.
         // since the newest version of the file is null,
         // we should remove the file with name "A"
-        TreeMap<String, String> commitMap = commit.getMap();
-        if (commitMap.containsKey(filename)) {
-            File theNewestVersionOfFile = getBlob(commitMap.get(filename));
-            writeContents(join(CWD, filename), readContentsAsString(theNewestVersionOfFile));
-            add(filename);
-        } else {
-            // let's say currentCommit is the only commit that has the newest version of file,
-            // and the file is null,
-            // in this case the file does not exist in currentCommit,
-            // we don't need to call remove()
-            if (join(CWD, filename).exists()) {
-                remove(filename);
-            }
+        if (blobSha1 == null) {
+            return new MergeAction(filename, null, null, true, false);
         }
+        return new MergeAction(filename, blobSha1, null, false, false);
     }
 
     /**
-     * get the content of the file in a commit.
-     * if the file does not exist in that commit, return empty string.
+     * get the content of a blob, through the blob cache, since merge reads
+     * the same blobs from several threads.
+     * if BLOBSHA1 is null, i.e. the file does not exist in that commit, return empty string.
      */
-    private static String getContentsOfFile(Commit commit, String filename) {
-        TreeMap<String, String> commitMap = commit.getMap();
-        if (!commitMap.containsKey(filename)) {
+    private static String getContentsOfBlob(String blobSha1) {
+        if (blobSha1 == null) {
             return "";
-        } else {
-            String sha1 = commitMap.get(filename);
-            return readContentsAsString(getBlob(sha1));
         }
-    }
-
-    /**
-     * with no duplicate element
-     */
-    private static List<String> mergeThreeListIntoOne(List<String> list1,
-                                                      List<String> list2, List<String> list3) {
-        Set<String> set = new HashSet<>();
-        set.addAll(list1);
-        set.addAll(list2);
-        set.addAll(list3);
-        return new ArrayList<>(set);
-    }
-
-    // we compare givenCommit and benchmarkCommit,
-    // if the content of B.txt in givenCommit is NOT the same as
-    // the content of B.txt in benchmarkCommit, return false,
-    // otherwise return true
-    private static boolean compareTwoCommit(String filename, Commit givenCommit, Commit benchmarkCommit) {
-        TreeMap<String, String> givenMap = givenCommit.getMap();
-        TreeMap<String, String> spiltMap = benchmarkCommit.getMap();
-        if (!givenMap.containsKey(filename) && !spiltMap.containsKey(filename)) {
-            return true;
-        }
-
-        if (givenMap.containsKey(filename) && spiltMap.containsKey(filename)) {
-            String givenFileSha1 = givenMap.get(filename);
-            String spiltFileSha1 = spiltMap.get(filename);
-            return givenFileSha1.equals(spiltFileSha1);
-        }
-
-        return false;
+        return new String(OBJECT_STORE.readBlobCached(blobSha1), StandardCharsets.UTF_8);
     }
 
     private static void checkMergeFailureCases(String targetBranchName) {
-        if (Objects.requireNonNull(GITLET_STAGE_FOR_ADD_DIR.list()).length != 0
-                || Objects.requireNonNull(GITLET_STAGE_FOR_REMOVE_DIR.list()).length != 0) {
-            System.out.println("You have uncommitted changes.");
-            System.exit(0);
+        if (!getIndex().isEmpty()) {
+            throw new GitletException("You have uncommitted changes.");
         }
 
         File targetBranchFile = join(GITLET_BRANCHES_DIR, targetBranchName);
         if (!targetBranchFile.exists()) {
-            System.out.println("A branch with that name does not exist.");
-            System.exit(0);
+            throw new GitletException("A branch with that name does not exist.");
         }
 
         String theNameOfActiveBranch = readContentsAsString(GITLET_ACTIVE_BRANCH_FILE);
         if (targetBranchName.equals(theNameOfActiveBranch)) {
-            System.out.println("Cannot merge a branch with itself.");
-            System.exit(0);
+            throw new GitletException("Cannot merge a branch with itself.");
         }
 
         //checkIfStagedDirsAreAllEmpty();
@@ -798,6 +1284,31 @@ public class Repository {
 
     }
 
+    /**
+     * Returns the names of all branches, sorted, the branches fetched
+     * from a remote included, e.g. R1/master.
+     */
+    private static List<String> getBranchNames() {
+        List<String> branchNames = new ArrayList<>();
+        // a lock file, of a command that is running or crashed, is not a branch
+        for (String filename : Objects.requireNonNull(plainFilenamesIn(GITLET_BRANCHES_DIR))) {
+            if (!filename.equals("HEAD") && !filename.equals("activeBranch")
+                    && !filename.endsWith(LockFile.SUFFIX)) {
+                branchNames.add(filename);
+            }
+        }
+        File[] remoteDirs = GITLET_BRANCHES_DIR.listFiles(File::isDirectory);
+        for (File remoteDir : Objects.requireNonNull(remoteDirs)) {
+            for (String filename : Objects.requireNonNull(plainFilenamesIn(remoteDir))) {
+                if (!filename.endsWith(LockFile.SUFFIX)) {
+                    branchNames.add(remoteDir.getName() + "/" + filename);
+                }
+            }
+        }
+        Collections.sort(branchNames);
+        return branchNames;
+    }
+
     private static Commit getCommitAtTargetBranch(String targetBranchName) {
         return getCommitBySha1(getCommitSha1AtTargetBranch(targetBranchName));
     }
@@ -808,73 +1319,14 @@ public class Repository {
     }
 
     /**
-     * This NOT is similar to find the latest common ancestor of two linked-list.
-     * merge() let a merged commit to have two parents, this will make the linked-list
-     * into Graph.
-     * <p>
-     * Do notice that the value of parameter will be changed after this function is executed
-     */
-    private static Commit getTheLatestCommonAncestorCommit(List<String> ancestorsListOfCommit1,
-                                                           List<String> ancestorsListOfCommit2) {
-
-        // if you haven't called merge() before, the commit1 and commit2 will
-        // only have one common ancestor: "initial commit".
-        // but if have call merge(), they may have multiple common ancestor
-        ancestorsListOfCommit1.retainAll(ancestorsListOfCommit2);
-        List<String> commonAncestors = ancestorsListOfCommit1;
-
-        // find the latest common ancestors
-        // let's say there is ancestor A and ancestor B in commonAncestors,
-        // if A has no ancestor, then we know A is not the latest ancestor,
-        // then we remove A from commonAncestors
-        while (commonAncestors.size() > 1) {
-            // The later an element is added to the list,
-            // the closer it is to the initial commit.
-            // test36a-merge-parent2.in is a good example, try to
-            // use this function to find the latest common ancestor
-            // in that test
-            String ancestorCommitSha1 = commonAncestors.get(commonAncestors.size() - 1);
-            Commit ancestorCommit = getCommitBySha1(ancestorCommitSha1);
-            List<String> ancestorsList = getAncestorsOfCommit(ancestorCommit);
-            if (ancestorsList.size() == 0) {
-                commonAncestors.remove(ancestorCommitSha1);
-            }
-
-        }
-        String ancestorCommitSha1 = commonAncestors.get(0);
-        return getCommitBySha1(ancestorCommitSha1);
-    }
-
-    private static List<String> getAncestorsOfCommit(Commit commit) {
-        Set<String> set = new HashSet<>();
-        getAncestorsOfCommit(commit, set);
-        return new ArrayList<>(set);
-    }
-
-    private static void getAncestorsOfCommit(Commit commit, Set<String> set) {
-        List<String> parentSha1List = commit.getParentSha1List();
-        if (parentSha1List.size() == 0) {
-            return;
-        }
-        String firstParentSha1 = parentSha1List.get(0);
-        set.add(firstParentSha1);
-        Commit firstParentCommit = getCommitBySha1(firstParentSha1);
-        getAncestorsOfCommit(firstParentCommit, set);
-        if (parentSha1List.size() == 2) {
-            String secondParentSha1 = parentSha1List.get(1);
-            set.add(secondParentSha1);
-            Commit secondParentCommit = getCommitBySha1(secondParentSha1);
-            getAncestorsOfCommit(secondParentCommit, set);
-        }
-        /*
-        old version:
-        List<String> parentSha1List = commit.getParentSha1List();
-        for (String parentSha1 : parentSha1List) {
-            set.add(parentSha1);
-            commit = getCommitBySha1(parentSha1);
-            getAncestorsOfCommit(commit, set);
+     * Returns the files that differ between the commits FROM and TO,
+     * comparing their trees when both have them.
+     */
+    private static List<TreeDiff.Change> diffCommits(Commit from, Commit to) {
+        if (from.getTreeSha1() != null && to.getTreeSha1() != null) {
+            return TreeDiff.diff(OBJECT_STORE, from.getTreeSha1(), to.getTreeSha1());
         }
-         */
+        return TreeDiff.diff(from.getMap(), to.getMap());
     }
 
     private static List<String> getFilenamesInCommit(Commit commit) {
@@ -899,6 +1351,10 @@ public class Repository {
 
         Commit currentCommit = getCommitBySha1(getHeadCommitSha1());
 
+        Index stagingArea = getIndex();
+        // only the files that changed since we last hashed them are read
+        StatCache cache = getStatCache();
+
         // Tracked in the current commit, changed in the working directory, but not staged
         List<String> filenamesList = getFilenamesInCommit(currentCommit);
         TreeMap<String, String> commitMap = currentCommit.getMap();
@@ -908,34 +1364,37 @@ public class Repository {
                 continue;
             }
             String trackedFileSha1 = commitMap.get(filename);
-            String CWDFileSha1 = sha1(readContents(join(CWD, filename)));
+            String CWDFileSha1 = cache.sha1Of(filename, CWDFile);
             if (!CWDFileSha1.equals(trackedFileSha1)) {
-                if (!join(GITLET_STAGE_FOR_ADD_DIR, filename).exists()) {
+                if (!stagingArea.isStagedForAdd(filename)) {
                     fileStateMap.put(filename, "modified");
                 }
             }
         }
 
-        for (String filename : Objects.requireNonNull(plainFilenamesIn(GITLET_STAGE_FOR_ADD_DIR))) {
-            if (join(CWD, filename).exists()) {
+        for (Index.Entry entry : stagingArea.getEntries()) {
+            if (entry.state != Index.STAGED_FOR_ADD) {
+                continue;
+            }
+            File CWDFile = join(CWD, entry.filename);
+            if (CWDFile.exists()) {
                 // if the file is staged for addition,
-                // but with different contents than in the working directory
-                if (!sha1(readContents(join(GITLET_STAGE_FOR_ADD_DIR, filename)))
-                        .equals(sha1(readContents(join(CWD, filename))))) {
-
-                    fileStateMap.put(filename, "modified");
+                // but with different contents than in the working directory,
+                // the index already knows the sha1 of the staged version
+                if (!entry.blobSha1.equals(cache.sha1Of(entry.filename, CWDFile))) {
+                    fileStateMap.put(entry.filename, "modified");
                 }
             } else {
                 // Staged for addition, but deleted in the working directory
-                fileStateMap.put(filename, "deleted");
+                fileStateMap.put(entry.filename, "deleted");
             }
         }
 
         // there is a file tracked in current commit, but it disappears in CWD,
-        // and it is not in stageForRemoveDir
+        // and it is not staged for removal
         for (String filename : filenamesList) {
             if (!join(CWD, filename).exists()
-                    && !join(GITLET_STAGE_FOR_REMOVE_DIR, filename).exists()) {
+                    && !stagingArea.isStagedForRemove(filename)) {
                 fileStateMap.put(filename, "deleted");
             }
         }
@@ -943,6 +1402,175 @@ public class Repository {
         return fileStateMap;
     }
 
+    /**
+     * Returns the staging area of this command, it is read only once.
+     * A repository made by an older version may still have the
+     * stageForAdd and stageForRemove directories, their files are moved
+     * into the index the first time we read it.
+     */
+    private static Index getIndex() {
+        if (index == null) {
+            migrateStagingDirs();
+            index = Index.read(GITLET_INDEX_FILE);
+        }
+        return index;
+    }
+
+    /**
+     * Takes the lock of the index, and forgets the staging area, so that it is
+     * read again under the lock. A command that changes the staging area holds
+     * the lock from before it reads the index until it writes it, so another
+     * add or commit waits for it instead of losing what it staged.
+     */
+    private static LockFile lockIndex() {
+        // before we hold the lock, it takes the lock itself
+        migrateStagingDirs();
+        LockFile lock = LockFile.acquire(GITLET_INDEX_FILE, INDEX_LOCK_TIMEOUT);
+        index = null;
+        return lock;
+    }
+
+    /**
+     * Moves the files of the stageForAdd and stageForRemove directories, which an
+     * older version kept the staging area in, into the index, under its lock.
+     */
+    private static void migrateStagingDirs() {
+        if (!GITLET_STAGE_FOR_ADD_DIR.exists() && !GITLET_STAGE_FOR_REMOVE_DIR.exists()) {
+            return;
+        }
+        try (LockFile indexLock = LockFile.acquire(GITLET_INDEX_FILE, INDEX_LOCK_TIMEOUT)) {
+            Index stagingArea = Index.read(GITLET_INDEX_FILE);
+            List<String> stagedForAdd = plainFilenamesIn(GITLET_STAGE_FOR_ADD_DIR);
+            if (stagedForAdd != null) {
+                for (String filename : stagedForAdd) {
+                    File stagedFile = join(GITLET_STAGE_FOR_ADD_DIR, filename);
+                    String blobSha1 = OBJECT_STORE.writeBlob(stagedFile);
+                    stagingArea.stageForAdd(filename, blobSha1,
+                            stagedFile.length(), stagedFile.lastModified());
+                }
+            }
+            List<String> stagedForRemove = plainFilenamesIn(GITLET_STAGE_FOR_REMOVE_DIR);
+            if (stagedForRemove != null) {
+                for (String filename : stagedForRemove) {
+                    stagingArea.stageForRemove(filename);
+                }
+            }
+            stagingArea.write(indexLock);
+            for (File dir : new File[]{GITLET_STAGE_FOR_ADD_DIR, GITLET_STAGE_FOR_REMOVE_DIR}) {
+                if (dir.exists()) {
+                    deleteAllFilesInDir(dir);
+                    dir.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets the staging area, the stat cache, the commit graph and the packs
+     * the last command read, so that the next command of the daemon reads them
+     * again, in case some other process changed them. The cached commits stay,
+     * a commit never changes once it is written.
+     */
+    static void forgetCommandState() {
+        index = null;
+        statCache = null;
+        commitGraph = null;
+        commitJournal = null;
+        OBJECT_STORE.refresh();
+    }
+
+    private static StatCache getStatCache() {
+        if (statCache == null) {
+            statCache = StatCache.read(GITLET_STAT_CACHE_FILE);
+        }
+        return statCache;
+    }
+
+    /**
+     * Returns the commit graph of this command. A repository made by an older
+     * version doesn't have one, so we build it from every commit once.
+     */
+    private static CommitGraph getCommitGraph() {
+        if (commitGraph == null) {
+            commitGraph = CommitGraph.readOrBuild(GITLET_COMMIT_GRAPH_FILE, OBJECT_STORE);
+        }
+        return commitGraph;
+    }
+
+    /**
+     * Returns the commit journal of this command. Record i of the journal is
+     * position i of the commit graph, so the commits that are in the graph but
+     * not yet in the journal, because an older version made them, are added
+     * first. A journal longer than the graph doesn't match it, so it is written again.
+     */
+    private static CommitJournal getCommitJournal() {
+        if (commitJournal == null) {
+            CommitGraph graph = getCommitGraph();
+            commitJournal = CommitJournal.open(GITLET_DIR);
+            if (commitJournal.size() > graph.size()) {
+                commitJournal.clear();
+            }
+            for (int i = commitJournal.size(); i < graph.size(); i += 1) {
+                String commitSha1 = graph.sha1At(i);
+                commitJournal.append(commitSha1, getCommitBySha1(commitSha1));
+            }
+        }
+        return commitJournal;
+    }
+
+    /**
+     * Returns the position of COMMITSHA1 in the commit graph,
+     * adding it first if an older version wrote it without updating the graph.
+     */
+    private static int getGraphPosition(String commitSha1) {
+        if (!getCommitGraph().contains(commitSha1)) {
+            try (LockFile lock = lockCommitGraph()) {
+                if (getCommitGraph().addWithAncestors(commitSha1, OBJECT_STORE)) {
+                    getCommitGraph().write(lock);
+                }
+            }
+        }
+        return getCommitGraph().positionOf(commitSha1);
+    }
+
+    /** Returns the reachability bitmaps of the commit graph of this command. */
+    private static ReachabilityBitmaps readReachabilityBitmaps() {
+        return ReachabilityBitmaps.read(GITLET_COMMIT_GRAPH_BITMAPS_FILE, getCommitGraph());
+    }
+
+    /**
+     * Writes the bitmaps BITMAPS built, keeping only those of the branch tips
+     * and HEAD, the commits the next merge or push will ask about or start from.
+     */
+    private static void writeReachabilityBitmaps(ReachabilityBitmaps bitmaps) {
+        Set<String> tipSha1s = new HashSet<>();
+        for (String branchName : getBranchNames()) {
+            tipSha1s.add(readContentsAsString(join(GITLET_BRANCHES_DIR, branchName)));
+        }
+        tipSha1s.add(getHeadCommitSha1());
+        bitmaps.write(tipSha1s);
+    }
+
+    /**
+     * Takes the lock of the commit graph, which also guards the journal, and
+     * forgets both, so that they are read again under the lock. Another command
+     * may have added commits since we read them, and writing what we had
+     * would drop those.
+     */
+    private static LockFile lockCommitGraph() {
+        LockFile lock = LockFile.acquire(GITLET_COMMIT_GRAPH_FILE, COMMIT_GRAPH_LOCK_TIMEOUT);
+        commitGraph = null;
+        commitJournal = null;
+        return lock;
+    }
+
+    /** Empties the staging area, INDEXLOCK is the lock of the index. */
+    private static void clearIndex(LockFile indexLock) {
+        Index stagingArea = getIndex();
+        stagingArea.clear();
+        stagingArea.write(indexLock);
+    }
+
     private static String getHeadCommitSha1() {
         return readContentsAsString(HEAD_FILE);
     }
@@ -957,27 +1585,481 @@ public class Repository {
         }
 
         if (commitSha1.length() < 40) {
-            System.out.println("No commit with that id exists.");
-            System.exit(0);
+            throw new GitletException("No commit with that id exists.");
         }
-        File file = join(GITLET_COMMITS_DIR, commitSha1.substring(0, 2), commitSha1);
-        if (!file.exists()) {
-            System.out.println("No commit with that id exists.");
-            System.exit(0);
+        Commit commit = COMMIT_CACHE.get(commitSha1);
+        if (commit != null) {
+            return commit;
         }
-        return readObject(file, Commit.class);
+        commit = OBJECT_STORE.readCommit(commitSha1);
+        if (commit == null) {
+            throw new GitletException("No commit with that id exists.");
+        }
+        COMMIT_CACHE.put(commitSha1, commit);
+        return commit;
     }
 
-    private static File getBlob(String blobSha1) {
-        return join(GITLET_BLOBS_DIR, blobSha1);
+    /**
+     * Returns the hits and misses of the commit cache so far,
+     * Main prints it when run with -Dgitlet.cacheStats=true.
+     */
+    public static String getCommitCacheStats() {
+        return COMMIT_CACHE.stats();
     }
 
     private static void checkIfStagedDirsAreAllEmpty() {
-        if (Objects.requireNonNull(GITLET_STAGE_FOR_ADD_DIR.list()).length == 0
-                && Objects.requireNonNull(GITLET_STAGE_FOR_REMOVE_DIR.list()).length == 0) {
-            System.out.println("No changes added to the commit.");
-            System.exit(0);
+        if (getIndex().isEmpty()) {
+            throw new GitletException("No changes added to the commit.");
+        }
+    }
+
+    /**
+     * the number of unchanged lines diff() prints around every change
+     */
+    private static final int DIFF_CONTEXT = 3;
+
+    /**
+     * prints a unified diff of every file that differs from the commit FROMID
+     * (the head commit if null) to the commit TOID, or to the working directory
+     * if TOID is null. In the working directory, the files of FROMID and the files
+     * staged for addition are compared, a missing one counts as deleted.
+     *
+     * @param patience whether to use the patience diff instead of Myers
+     */
+    public static void diff(String fromId, String toId, boolean patience) {
+        Diff.Algorithm algorithm = patience ? Diff.Algorithm.PATIENCE : Diff.Algorithm.MYERS;
+        Commit fromCommit = getCommitBySha1(
+                fromId == null ? getHeadCommitSha1() : getCompletedSha1(fromId));
+        List<TreeDiff.Change> changes;
+        if (toId != null) {
+            changes = diffCommits(fromCommit, getCommitBySha1(getCompletedSha1(toId)));
+        } else {
+            changes = diffWorkingFiles(fromCommit);
+        }
+        for (TreeDiff.Change change : changes) {
+            byte[] oldContents = change.oldSha1 == null
+                    ? new byte[0] : OBJECT_STORE.readBlob(change.oldSha1);
+            byte[] newContents;
+            if (change.newSha1 == null) {
+                newContents = new byte[0];
+            } else if (toId == null) {
+                newContents = readContents(join(CWD, change.path));
+            } else {
+                newContents = OBJECT_STORE.readBlob(change.newSha1);
+            }
+            String oldName = change.oldSha1 == null ? "/dev/null" : "a/" + change.path;
+            String newName = change.newSha1 == null ? "/dev/null" : "b/" + change.path;
+            System.out.println("diff --gitlet a/" + change.path + " b/" + change.path);
+            if (isBinary(oldContents) || isBinary(newContents)) {
+                System.out.println("Binary files " + oldName + " and " + newName + " differ");
+                continue;
+            }
+            List<String> oldLines = Diff.splitLines(new String(oldContents, StandardCharsets.UTF_8));
+            List<String> newLines = Diff.splitLines(new String(newContents, StandardCharsets.UTF_8));
+            System.out.print(Diff.unified(oldName, newName, oldLines, newLines,
+                    Diff.diff(oldLines, newLines, algorithm), DIFF_CONTEXT));
+        }
+        getStatCache().write();
+    }
+
+    /**
+     * Returns the changes from COMMIT to the working directory, sorted by path,
+     * newSha1 being the sha1 of the working file. Only the files of COMMIT and the
+     * files staged for addition are looked at.
+     */
+    private static List<TreeDiff.Change> diffWorkingFiles(Commit commit) {
+        TreeMap<String, String> commitMap = commit.getMap();
+        TreeSet<String> paths = new TreeSet<>(commitMap.keySet());
+        for (Index.Entry entry : getIndex().getEntries()) {
+            if (entry.state == Index.STAGED_FOR_ADD) {
+                paths.add(entry.filename);
+            }
+        }
+        StatCache cache = getStatCache();
+        List<TreeDiff.Change> changes = new ArrayList<>();
+        for (String path : paths) {
+            File file = join(CWD, path);
+            String oldSha1 = commitMap.get(path);
+            String newSha1 = file.isFile() ? cache.sha1Of(path, file) : null;
+            if (!Objects.equals(oldSha1, newSha1)) {
+                changes.add(new TreeDiff.Change(path, oldSha1, newSha1));
+            }
+        }
+        return changes;
+    }
+
+    /** Returns whether CONTENTS look like a binary file, i.e. have a 0 byte. */
+    private static boolean isBinary(byte[] contents) {
+        for (byte b : contents) {
+            if (b == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * moves the loose blobs and commits into a pack file, so that a repository
+     * with many objects doesn't need one file per object.
+     */
+    public static void repack() {
+        int packedCount = OBJECT_STORE.repack();
+        System.out.println("Packed " + packedCount + " objects.");
+    }
+
+    /**
+     * deletes the blobs, trees and commits that no branch, HEAD or staged file
+     * can reach, e.g. those of a removed branch, and prints how many bytes that
+     * reclaimed. Objects younger than GarbageCollector.GRACE_PERIOD_MILLIS are
+     * kept, another command may be about to refer to them, unless NOW is true.
+     */
+    public static void gc(boolean now) {
+        GarbageCollector collector = new GarbageCollector(OBJECT_STORE);
+        if (!now) {
+            collector.markNewerThan(System.currentTimeMillis()
+                    - GarbageCollector.GRACE_PERIOD_MILLIS);
+        }
+        for (String branchName : getBranchNames()) {
+            collector.mark(readContentsAsString(join(GITLET_BRANCHES_DIR, branchName)));
+        }
+        collector.mark(getHeadCommitSha1());
+        for (Index.Entry entry : getIndex().getEntries()) {
+            if (entry.state == Index.STAGED_FOR_ADD) {
+                collector.mark(entry.blobSha1);
+            }
         }
+
+        // the commits leave the graph before their files go, a graph that
+        // lacks a commit is fixed by getGraphPosition(), one that names a
+        // missing commit is not
+        Set<String> removedCommits = collector.unmarkedCommits();
+        if (!removedCommits.isEmpty()) {
+            try (LockFile lock = lockCommitGraph()) {
+                CommitGraph graph = getCommitGraph().without(removedCommits);
+                // the positions of the commits that stay may move
+                GITLET_COMMIT_GRAPH_BITMAPS_FILE.delete();
+                // record i of the journal has to be position i of the graph again
+                CommitJournal.open(GITLET_DIR).clear();
+                graph.write(lock);
+                commitGraph = null;
+            }
+            // the daemon would still find them here
+            COMMIT_CACHE.clear();
+        }
+        int removedCount = collector.unmarkedCount();
+        long freed = collector.sweep();
+        System.out.println("Removed " + removedCount + " unreachable objects, reclaimed "
+                + freed + " bytes.");
+    }
+
+    /**
+     * checks the integrity of the repository and prints every problem found:
+     * every stored copy of every object is hashed again, in parallel, and must
+     * hash to its name; every parent, tree and blob a commit, tree or encoded
+     * blob refers to must exist; and every branch and HEAD must point at a commit.
+     */
+    public static void fsck() {
+        List<Pack.Entry> objects = OBJECT_STORE.listLooseObjects();
+        objects.addAll(OBJECT_STORE.listPackedObjects());
+        List<String> problems = new ArrayList<>();
+        // the hashing is bound by the disk, so the bounded pool of inParallel()
+        // keeps more reads going than there are cores
+        for (String problem : inParallel(objects, Repository::checkStoredObject)) {
+            if (problem != null) {
+                problems.add(problem);
+            }
+        }
+
+        // each object once, sorted, so the problems come out in the same order every time
+        TreeMap<String, Integer> types = new TreeMap<>();
+        for (Pack.Entry entry : objects) {
+            types.putIfAbsent(entry.sha1, entry.type);
+        }
+        List<Map.Entry<String, Integer>> referring = new ArrayList<>();
+        for (Map.Entry<String, Integer> object : types.entrySet()) {
+            if (object.getValue() != ObjectStore.BLOB) {
+                referring.add(object);
+            }
+        }
+        for (List<String> missing : inParallel(referring, Repository::checkReferences)) {
+            problems.addAll(missing);
+        }
+
+        for (String branchName : getBranchNames()) {
+            String problem = checkRef("Branch " + branchName,
+                    readContentsAsString(join(GITLET_BRANCHES_DIR, branchName)));
+            if (problem != null) {
+                problems.add(problem);
+            }
+        }
+        String headProblem = checkRef("HEAD", getHeadCommitSha1());
+        if (headProblem != null) {
+            problems.add(headProblem);
+        }
+        String activeBranchName = readContentsAsString(GITLET_ACTIVE_BRANCH_FILE);
+        if (!join(GITLET_BRANCHES_DIR, activeBranchName).isFile()) {
+            problems.add("The current branch " + activeBranchName + " does not exist.");
+        }
+
+        for (String problem : problems) {
+            System.out.println(problem);
+        }
+        if (problems.isEmpty()) {
+            System.out.println("No problems found.");
+        } else {
+            System.out.println(problems.size()
+                    + (problems.size() == 1 ? " problem found." : " problems found."));
+        }
+    }
+
+    /**
+     * Returns what is wrong with the stored object ENTRY, or null if it
+     * hashes to its name. Runs on several threads at once.
+     */
+    private static String checkStoredObject(Pack.Entry entry) {
+        String where = entry.file != null ? "loose" : "packed";
+        try {
+            String actualSha1 = OBJECT_STORE.hashStored(entry);
+            if (!actualSha1.equals(entry.sha1)) {
+                return "Corrupt " + where + " " + typeName(entry.type) + " " + entry.sha1
+                        + ": its contents hash to " + actualSha1 + ".";
+            }
+            return null;
+        } catch (RuntimeException excp) {
+            return "Unreadable " + where + " " + typeName(entry.type) + " " + entry.sha1
+                    + ": " + excp.getMessage();
+        }
+    }
+
+    /**
+     * Returns a problem for every object the commit, tree or encoded blob
+     * OBJECT (its sha1 and its type) refers to that doesn't exist.
+     * Runs on several threads at once.
+     */
+    private static List<String> checkReferences(Map.Entry<String, Integer> object) {
+        String sha1 = object.getKey();
+        List<String> problems = new ArrayList<>();
+        try {
+            if (object.getValue() == ObjectStore.COMMIT) {
+                Commit commit = OBJECT_STORE.readCommit(sha1);
+                for (String parentSha1 : commit.getParentSha1List()) {
+                    if (!OBJECT_STORE.hasCommit(parentSha1)) {
+                        problems.add("Missing commit " + parentSha1 + ", a parent of commit "
+                                + sha1 + ".");
+                    }
+                }
+                if (commit.getTreeSha1() != null) {
+                    if (!OBJECT_STORE.hasTree(commit.getTreeSha1())) {
+                        problems.add("Missing tree " + commit.getTreeSha1()
+                                + ", the tree of commit " + sha1 + ".");
+                    }
+                } else {
+                    // a commit written before there were trees
+                    for (String blobSha1 : commit.getMap().values()) {
+                        if (!OBJECT_STORE.hasBlob(blobSha1)) {
+                            problems.add("Missing blob " + blobSha1 + " in commit " + sha1 + ".");
+                        }
+                    }
+                }
+            } else if (object.getValue() == ObjectStore.TREE) {
+                for (Tree.Entry entry : OBJECT_STORE.readTree(sha1).getEntries()) {
+                    boolean exists = entry.type == Tree.TREE
+                            ? OBJECT_STORE.hasTree(entry.sha1) : OBJECT_STORE.hasBlob(entry.sha1);
+                    if (!exists) {
+                        problems.add("Missing " + (entry.type == Tree.TREE ? "tree " : "blob ")
+                                + entry.sha1 + " in tree " + sha1 + ".");
+                    }
+                }
+            } else {
+                for (String blobSha1 : OBJECT_STORE.blobReferences(sha1)) {
+                    if (!OBJECT_STORE.hasBlob(blobSha1)) {
+                        problems.add("Missing blob " + blobSha1 + ", needed by blob " + sha1 + ".");
+                    }
+                }
+            }
+        } catch (RuntimeException excp) {
+            // checkStoredObject() reports why it can't be read
+        }
+        return problems;
+    }
+
+    private static String typeName(int type) {
+        switch (type) {
+            case ObjectStore.COMMIT:
+                return "commit";
+            case ObjectStore.TREE:
+                return "tree";
+            default:
+                return "blob";
+        }
+    }
+
+    /** Returns what is wrong with the ref NAME holding VALUE, or null if it names a commit. */
+    private static String checkRef(String name, String value) {
+        if (!value.matches("[0-9a-f]{40}")) {
+            return name + " does not hold a commit id.";
+        }
+        if (!OBJECT_STORE.hasCommit(value)) {
+            return name + " points at missing commit " + value + ".";
+        }
+        return null;
+    }
+
+    /**
+     * prints the value of a setting, or changes it if a value is given,
+     * e.g. "config core.compression 6" deflates the blobs added from now on,
+     * "config core.checkout link" hard-links blobs into place on checkout
+     *
+     * @param value null to print the current value
+     */
+    public static void config(String key, String value) {
+        if (value == null) {
+            String current = Config.read(GITLET_CONFIG_FILE).get(key);
+            if (current != null) {
+                System.out.println(current);
+            }
+            return;
+        }
+        if (key.equals(Config.COMPRESSION)) {
+            if (!value.matches("[0-9]")) {
+                throw new GitletException("Compression level must be between 0 and 9.");
+            }
+        } else if (key.equals(Config.CHECKOUT)) {
+            if (!value.equals("copy") && !value.equals("link")) {
+                throw new GitletException("Checkout mode must be copy or link.");
+            }
+        } else {
+            throw new GitletException("No setting with that name exists.");
+        }
+        try (LockFile lock = LockFile.acquire(GITLET_CONFIG_FILE)) {
+            Config config = Config.read(GITLET_CONFIG_FILE);
+            config.set(key, value);
+            config.write(lock);
+        }
+    }
+
+    /**
+     * saves the path of the .gitlet directory of another repository on this
+     * machine as the remote REMOTENAME. The path uses / as separator,
+     * and a relative path is relative to the working directory.
+     */
+    public static void addRemote(String remoteName, String remotePath) {
+        try (LockFile lock = LockFile.acquire(GITLET_CONFIG_FILE)) {
+            Config config = Config.read(GITLET_CONFIG_FILE);
+            String key = Config.remotePathKey(remoteName);
+            if (config.get(key) != null) {
+                throw new GitletException("A remote with that name already exists.");
+            }
+            config.set(key, remotePath.replace("/", File.separator));
+            config.write(lock);
+        }
+    }
+
+    public static void removeRemote(String remoteName) {
+        try (LockFile lock = LockFile.acquire(GITLET_CONFIG_FILE)) {
+            Config config = Config.read(GITLET_CONFIG_FILE);
+            String key = Config.remotePathKey(remoteName);
+            if (config.get(key) == null) {
+                throw new GitletException("A remote with that name does not exist.");
+            }
+            config.remove(key);
+            config.write(lock);
+        }
+    }
+
+    /**
+     * Copied from gitlet spec:
+     * Brings down commits from the remote Gitlet repository into the local
+     * Gitlet repository. Copies all commits and blobs from the given branch in
+     * the remote repository (that are not already in the current repository)
+     * into a branch named [remote name]/[remote branch name] in the local .gitlet
+     * <p>
+     * only what we don't have is copied, see Remote.
+     */
+    public static void fetch(String remoteName, String remoteBranchName) {
+        Remote remote = openRemote(remoteName);
+        String branchName = remoteName + "/" + remoteBranchName;
+        if (readContentsAsString(GITLET_ACTIVE_BRANCH_FILE).equals(branchName)) {
+            // moving it would leave HEAD and the working directory behind
+            throw new GitletException("Cannot fetch into the current branch.");
+        }
+        String remoteSha1 = remote.getBranchSha1(remoteBranchName);
+        if (remoteSha1 == null) {
+            throw new GitletException("That remote does not have that branch.");
+        }
+        CommitGraph remoteGraph = remote.readCommitGraph(remoteSha1);
+        try (LockFile lock = lockCommitGraph()) {
+            CommitGraph graph = getCommitGraph();
+            List<String> newCommits = remoteGraph.missingFrom(graph, remoteSha1);
+            if (!newCommits.isEmpty()) {
+                Remote.copyObjects(remote.getObjectStore(), newCommits, OBJECT_STORE);
+                graph.addFrom(remoteGraph, newCommits);
+                graph.write(lock);
+            }
+        }
+        File branchFile = join(GITLET_BRANCHES_DIR, remoteName, remoteBranchName);
+        branchFile.getParentFile().mkdirs();
+        try (LockFile lock = LockFile.acquire(branchFile)) {
+            lock.commit(remoteSha1);
+        }
+    }
+
+    /**
+     * Copied from gitlet spec:
+     * Attempts to append the current branch's commits to the end of the given
+     * branch at the given remote. This command only works if the remote branch's
+     * head is in the history of the current local head.
+     * <p>
+     * a branch the remote doesn't have yet is created.
+     */
+    public static void push(String remoteName, String remoteBranchName) {
+        Remote remote = openRemote(remoteName);
+        String headSha1 = getHeadCommitSha1();
+        int headPosition = getGraphPosition(headSha1);
+        String remoteSha1 = remote.getBranchSha1(remoteBranchName);
+        if (remoteSha1 != null) {
+            CommitGraph graph = getCommitGraph();
+            if (!graph.contains(remoteSha1)) {
+                throw new GitletException("Please pull down remote changes before pushing.");
+            }
+            ReachabilityBitmaps bitmaps = readReachabilityBitmaps();
+            boolean fastForward = bitmaps.isAncestor(graph.positionOf(remoteSha1), headPosition);
+            writeReachabilityBitmaps(bitmaps);
+            if (!fastForward) {
+                throw new GitletException("Please pull down remote changes before pushing.");
+            }
+        }
+        try (LockFile lock = LockFile.acquire(remote.getCommitGraphFile(),
+                COMMIT_GRAPH_LOCK_TIMEOUT)) {
+            CommitGraph remoteGraph = CommitGraph.readOrBuild(
+                    remote.getCommitGraphFile(), remote.getObjectStore());
+            List<String> newCommits = getCommitGraph().missingFrom(remoteGraph, headSha1);
+            if (!newCommits.isEmpty()) {
+                Remote.copyObjects(OBJECT_STORE, newCommits, remote.getObjectStore());
+                remoteGraph.addFrom(getCommitGraph(), newCommits);
+                remoteGraph.write(lock);
+            }
+        }
+        remote.moveBranch(remoteBranchName, remoteSha1 == null ? "" : remoteSha1, headSha1);
+    }
+
+    /**
+     * Copied from gitlet spec:
+     * Fetches branch [remote name]/[remote branch name] as for the fetch command,
+     * and then merges that fetch into the current branch.
+     */
+    public static void pull(String remoteName, String remoteBranchName) {
+        fetch(remoteName, remoteBranchName);
+        merge(remoteName + "/" + remoteBranchName);
+    }
+
+    private static Remote openRemote(String remoteName) {
+        String remotePath = Config.read(GITLET_CONFIG_FILE).get(Config.remotePathKey(remoteName));
+        if (remotePath == null) {
+            throw new GitletException("A remote with that name does not exist.");
+        }
+        File remoteDir = new File(remotePath);
+        return Remote.open(remoteDir.isAbsolute() ? remoteDir : join(CWD, remotePath));
     }
 
     private static String formatDate(Date date) {
@@ -1004,51 +2086,31 @@ public class Repository {
     }
 
     /**
+     * Resolves an abbreviated commit id of any length with a binary search
+     * in the sorted lookup table of the commit graph.
+     *
      * @param incompleteCommitId the abbreviated commit sha1
      */
     private static String getCompletedSha1(String incompleteCommitId) {
-        String completedSha1 = null;
-        int len = incompleteCommitId.length();
-        if (len < 2) {
-            System.out.println("No commit with that id exists.");
-            System.exit(0);
-        }
-        String firstTwoSha1 = incompleteCommitId.substring(0, 2);
-        File commitDir = join(GITLET_COMMITS_DIR, firstTwoSha1);
-        List<String> filenamesInCommitDir = plainFilenamesIn(commitDir);
-        if (filenamesInCommitDir == null) {
-            System.out.println("No commit with that id exists.");
-            System.exit(0);
+        String prefix = incompleteCommitId.toLowerCase();
+        if (!prefix.matches("[0-9a-f]{1,40}")) {
+            throw new GitletException("No commit with that id exists.");
         }
-
         /*
         let's say commitId is 3ac
-        and in the .gitlet/commits/3a/ directory
-        there are two files: 3acb12 and 3ac891
-        3ac is not long enough to distinguish the two files,
+        and there are two commits: 3acb12 and 3ac891
+        3ac is not long enough to distinguish the two commits,
         we don't know what commit should we pick.
+        so we ask the graph for at most 2 candidates.
          */
-        boolean foundAFileSimilarToCommitId = false;
-        for (String filename : filenamesInCommitDir) {
-            if (filename.substring(0, len).equals(incompleteCommitId)) {
-                // if it has already found a file similar to commit id,
-                // and now it found again, that means there are at least
-                // two files that are similar to commit id
-                if (foundAFileSimilarToCommitId) {
-                    System.out.println("No commit with that id exists.");
-                    System.exit(0);
-                } else {
-                    foundAFileSimilarToCommitId = true;
-                    completedSha1 = filename;
-                }
-            }
+        List<String> candidates = getCommitGraph().findByPrefix(prefix, 2);
+        if (candidates.isEmpty()) {
+            throw new GitletException("No commit with that id exists.");
         }
-
-        return completedSha1;
-    }
-
-    private static String getCommitSha1(Commit commit) {
-        return serializeCommit(commit);
+        if (candidates.size() > 1) {
+            throw new GitletException("Commit id " + incompleteCommitId + " is ambiguous.");
+        }
+        return candidates.get(0);
     }
 
 }
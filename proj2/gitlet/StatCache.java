@@ -0,0 +1,284 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static gitlet.Utils.*;
+
+/**
+ * Remembers the sha1 of the files in the working directory, kept in .gitlet/stat-cache.
+ * <p>
+ * For every file we hashed, we store its size, last modified time (in nanoseconds)
+ * and inode next to its sha1. Next time, if the file still has the same size,
+ * last modified time and inode, we know its contents without reading it.
+ * <p>
+ * The catch is a file that is modified again within the same tick of the file
+ * system clock right after we hashed it, it would keep all three values.
+ * To avoid trusting such a "racy" entry, every entry also records when it was
+ * hashed, and it is only used if the file was last modified at least
+ * RACY_WINDOW_MILLIS before that. A file that was just written is simply
+ * hashed again, until it has been left alone for a moment.
+ * <p>
+ * The file looks like this, all integers are big-endian:
+ * <pre>
+ *     magic     4 bytes  "GLSC"
+ *     version   4 bytes  1
+ *     count     4 bytes  number of entries
+ *     entries   for every entry: 4 bytes length + UTF-8 name, 8 bytes size,
+ *               8 bytes last modified time in nanoseconds, 8 bytes inode,
+ *               8 bytes hashed time in milliseconds, 20 bytes sha1
+ * </pre>
+ *
+ * @author Linde
+ */
+class StatCache {
+
+    private static final byte[] MAGIC = {'G', 'L', 'S', 'C'};
+    private static final int VERSION = 1;
+
+    /**
+     * The coarsest file system clock we care about (FAT) ticks every 2 seconds.
+     */
+    private static final long RACY_WINDOW_MILLIS = 2000;
+
+    /** What we know about one file. */
+    private static class Entry {
+        final long size;
+        final long lastModified;
+        final long inode;
+        final long hashedAt;
+        final String sha1;
+
+        Entry(long size, long lastModified, long inode, long hashedAt, String sha1) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.inode = inode;
+            this.hashedAt = hashedAt;
+            this.sha1 = sha1;
+        }
+    }
+
+    private final File cacheFile;
+
+    /** filename->entry, add() may hash files from several threads */
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /** whether entries differ from cacheFile */
+    private volatile boolean dirty;
+
+    private StatCache(File cacheFile) {
+        this.cacheFile = cacheFile;
+    }
+
+    /**
+     * Reads CACHEFILE. A missing or unreadable cache is just an empty one,
+     * everything in it can be computed again.
+     */
+    static StatCache read(File cacheFile) {
+        StatCache cache = new StatCache(cacheFile);
+        if (!cacheFile.exists()) {
+            return cache;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(cacheFile)))) {
+            for (byte b : MAGIC) {
+                if (in.readByte() != b) {
+                    return cache;
+                }
+            }
+            if (in.readInt() != VERSION) {
+                return cache;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i += 1) {
+                byte[] name = new byte[in.readInt()];
+                in.readFully(name);
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                long inode = in.readLong();
+                long hashedAt = in.readLong();
+                byte[] sha1 = new byte[UID_BYTES];
+                in.readFully(sha1);
+                cache.entries.put(new String(name, StandardCharsets.UTF_8),
+                        new Entry(size, lastModified, inode, hashedAt, toHex(sha1)));
+            }
+        } catch (IOException excp) {
+            cache.entries.clear();
+        }
+        return cache;
+    }
+
+    /**
+     * Returns the sha1 of the contents of FILE, whose name in the working
+     * directory is FILENAME. FILE is only read if it changed since we last saw it.
+     */
+    String sha1Of(String filename, File file) {
+        return sha1Of(filename, file, Utils::sha1);
+    }
+
+    /**
+     * Like sha1Of(FILENAME, FILE), but if FILE has to be read, HASH reads it
+     * and returns its sha1, so a caller that copies the file anyway can hash
+     * it on the way instead of reading it twice.
+     */
+    String sha1Of(String filename, File file, Function<File, String> hash) {
+        FileStat stat = FileStat.of(file);
+        String sha1 = lookup(filename, stat);
+        if (sha1 != null) {
+            return sha1;
+        }
+        long hashedAt = System.currentTimeMillis();
+        sha1 = hash.apply(file);
+        remember(filename, stat, hashedAt, sha1);
+        return sha1;
+    }
+
+    /**
+     * Returns the sha1 of FILE, whose name in the working directory is FILENAME,
+     * if we know it without reading FILE, or null.
+     */
+    String knownSha1(String filename, File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        return lookup(filename, FileStat.of(file));
+    }
+
+    /**
+     * Remembers that FILE, whose name in the working directory is FILENAME,
+     * was just written with the contents of the blob SHA1. A file linked to
+     * its blob keeps the blob's old modified time, so it can be trusted at once.
+     */
+    void rememberWritten(String filename, File file, String sha1) {
+        remember(filename, FileStat.of(file), System.currentTimeMillis(), sha1);
+    }
+
+    private String lookup(String filename, FileStat stat) {
+        Entry entry = entries.get(filename);
+        if (entry != null && stat.matches(entry)
+                && millis(entry.lastModified) + RACY_WINDOW_MILLIS <= entry.hashedAt) {
+            return entry.sha1;
+        }
+        return null;
+    }
+
+    /** Forgets every file that is not in FILENAMES. */
+    void retainAll(Collection<String> filenames) {
+        if (entries.keySet().retainAll(filenames)) {
+            dirty = true;
+        }
+    }
+
+    /** Writes the cache back to its file if anything changed. */
+    void write() {
+        if (!dirty) {
+            return;
+        }
+        File tempFile = null;
+        try {
+            tempFile = Files.createTempFile(cacheFile.getParentFile().toPath(),
+                    cacheFile.getName() + "-", ".tmp").toFile();
+            try (FileOutputStream fileOut = new FileOutputStream(tempFile)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, Entry> pair : entries.entrySet()) {
+                    byte[] name = pair.getKey().getBytes(StandardCharsets.UTF_8);
+                    Entry entry = pair.getValue();
+                    out.writeInt(name.length);
+                    out.write(name);
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.lastModified);
+                    out.writeLong(entry.inode);
+                    out.writeLong(entry.hashedAt);
+                    out.write(fromHex(entry.sha1));
+                }
+                // no sync, a cache lost in a crash is only rebuilt
+                out.flush();
+            }
+            Files.move(tempFile.toPath(), cacheFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+        } catch (IOException excp) {
+            // the cache is only an optimization, losing it is fine
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    private void remember(String filename, FileStat stat, long hashedAt, String sha1) {
+        entries.put(filename,
+                new Entry(stat.size, stat.lastModified, stat.inode, hashedAt, sha1));
+        dirty = true;
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    /** The size, last modified time and inode of a file. */
+    private static class FileStat {
+        final long size;
+        final long lastModified;
+        final long inode;
+
+        private FileStat(long size, long lastModified, long inode) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.inode = inode;
+        }
+
+        static FileStat of(File file) {
+            Path path = file.toPath();
+            try {
+                Map<String, Object> attributes =
+                        Files.readAttributes(path, "unix:size,lastModifiedTime,ino");
+                return new FileStat((Long) attributes.get("size"),
+                        nanos((FileTime) attributes.get("lastModifiedTime")),
+                        (Long) attributes.get("ino"));
+            } catch (UnsupportedOperationException | IllegalArgumentException excp) {
+                // not a unix file system, the file key (if any) has to do as the inode
+                try {
+                    BasicFileAttributes attributes =
+                            Files.readAttributes(path, BasicFileAttributes.class);
+                    Object fileKey = attributes.fileKey();
+                    return new FileStat(attributes.size(),
+                            nanos(attributes.lastModifiedTime()),
+                            fileKey == null ? 0 : fileKey.hashCode());
+                } catch (IOException e) {
+                    throw new GitletException(e.getMessage());
+                }
+            } catch (IOException excp) {
+                throw new GitletException(excp.getMessage());
+            }
+        }
+
+        boolean matches(Entry entry) {
+            return size == entry.size && lastModified == entry.lastModified
+                    && inode == entry.inode;
+        }
+
+        private static long nanos(FileTime time) {
+            return time.to(TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Times storing and reading back a text blob at every core.compression level
+ * we care about, and reports how big the stored blob is.
+ * <p>
+ * The text is made of random words drawn from a small vocabulary, with a few
+ * common words much more likely than the rest, which compresses roughly like
+ * source code or prose does.
+ * <p>
+ * Usage: java gitlet.TimeCompression [size in MB]
+ *
+ * @author Linde
+ */
+public class TimeCompression {
+
+    private static final int[] LEVELS = {0, 1, 6, 9};
+
+    private static void printTimingTable(List<Integer> levels, List<Long> sizes,
+                                         List<Double> writeTimes, List<Double> readTimes,
+                                         long plainSize) {
+        System.out.printf("%8s %14s %10s %14s %14s\n",
+                "level", "stored (KB)", "ratio", "write (ms)", "read (ms)");
+        System.out.printf("--------------------------------------------------------------\n");
+        for (int i = 0; i < levels.size(); i += 1) {
+            System.out.printf("%8d %14d %10.2f %14.3f %14.3f\n", levels.get(i),
+                    sizes.get(i) >> 10, (double) sizes.get(i) / plainSize,
+                    writeTimes.get(i), readTimes.get(i));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        File text = Files.createTempFile("text", "").toFile();
+        writeText(text, (long) megabytes << 20);
+
+        List<Integer> levels = new ArrayList<>();
+        List<Long> sizes = new ArrayList<>();
+        List<Double> writeTimes = new ArrayList<>();
+        List<Double> readTimes = new ArrayList<>();
+        for (int level : LEVELS) {
+            File gitletDir = Files.createTempDirectory("gitlet").toFile();
+            File blobsDir = Utils.join(gitletDir, "blobs");
+            blobsDir.mkdir();
+            File configFile = Utils.join(gitletDir, Config.FILENAME);
+            try (LockFile lock = LockFile.acquire(configFile)) {
+                Config config = Config.read(configFile);
+                config.set(Config.COMPRESSION, Integer.toString(level));
+                config.write(lock);
+            }
+
+            // every run writes into an empty store, otherwise the blob is already there
+            String[] blobSha1 = new String[1];
+            double writeTime = Double.MAX_VALUE;
+            for (int run = 0; run < 5; run += 1) {
+                for (File blob : blobsDir.listFiles()) {
+                    blob.delete();
+                }
+                ObjectStore store = new ObjectStore(gitletDir);
+                long start = System.nanoTime();
+                blobSha1[0] = store.writeBlob(text);
+                writeTime = Math.min(writeTime, (System.nanoTime() - start) / 1e6);
+            }
+            ObjectStore store = new ObjectStore(gitletDir);
+            double readTime = best(() -> drain(store.openBlob(blobSha1[0])));
+
+            levels.add(level);
+            sizes.add(blobsDir.listFiles()[0].length());
+            writeTimes.add(writeTime);
+            readTimes.add(readTime);
+            deleteRecursively(gitletDir);
+        }
+        printTimingTable(levels, sizes, writeTimes, readTimes, text.length());
+        text.delete();
+    }
+
+    private static void writeText(File file, long size) throws IOException {
+        Random random = new Random(61);
+        String[] words = new String[2000];
+        for (int i = 0; i < words.length; i += 1) {
+            StringBuilder word = new StringBuilder();
+            int length = 2 + random.nextInt(8);
+            for (int k = 0; k < length; k += 1) {
+                word.append((char) ('a' + random.nextInt(26)));
+            }
+            words[i] = word.toString();
+        }
+        try (Writer out = Files.newBufferedWriter(file.toPath())) {
+            long written = 0;
+            int column = 0;
+            while (written < size) {
+                // squaring a uniform number favours the first words, like real text
+                double r = random.nextDouble();
+                String word = words[(int) (r * r * words.length)];
+                out.write(word);
+                column += word.length() + 1;
+                written += word.length() + 1;
+                if (column > 72) {
+                    out.write('\n');
+                    column = 0;
+                } else {
+                    out.write(' ');
+                }
+            }
+        }
+    }
+
+    private static void drain(InputStream in) {
+        try (in) {
+            in.transferTo(OutputStream.nullOutputStream());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static void deleteRecursively(File dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /** Returns the fastest of a few runs of TASK in milliseconds. */
+    private static double best(Runnable task) {
+        double best = Double.MAX_VALUE;
+        for (int run = 0; run < 5; run += 1) {
+            long start = System.nanoTime();
+            task.run();
+            best = Math.min(best, (System.nanoTime() - start) / 1e6);
+        }
+        return best;
+    }
+}
@@ -0,0 +1,111 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Times Diff on big files with a few small edits, the usual case for a
+ * diff or a merge: Myers and patience, and a three-way merge of two edited
+ * copies. Every diff is checked by applying its hunks to the old lines.
+ * <p>
+ * Usage: java gitlet.TimeDiff [largest number of lines] [number of edits]
+ *
+ * @author Linde
+ */
+public class TimeDiff {
+
+    private static void printTimingTable(List<String> sizes, List<Double> myersTimes,
+                                         List<Double> patienceTimes, List<Double> mergeTimes) {
+        System.out.printf("%12s %14s %14s %14s\n", "lines", "myers (ms)", "patience (ms)",
+                "merge (ms)");
+        System.out.printf("---------------------------------------------------------\n");
+        for (int i = 0; i < sizes.size(); i += 1) {
+            System.out.printf("%12s %14.3f %14.3f %14.3f\n", sizes.get(i),
+                    myersTimes.get(i), patienceTimes.get(i), mergeTimes.get(i));
+        }
+    }
+
+    public static void main(String[] args) {
+        int maxLines = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int edits = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        List<String> sizes = new ArrayList<>();
+        List<Double> myersTimes = new ArrayList<>();
+        List<Double> patienceTimes = new ArrayList<>();
+        List<Double> mergeTimes = new ArrayList<>();
+        for (int lines = 1000; lines <= maxLines; lines *= 10) {
+            Random random = new Random(lines);
+            List<String> base = text(lines, random);
+            List<String> ours = edit(base, edits, random);
+            List<String> theirs = edit(base, edits, random);
+            for (Diff.Algorithm algorithm : Diff.Algorithm.values()) {
+                if (!apply(base, Diff.diff(base, ours, algorithm), ours).equals(ours)) {
+                    throw new IllegalStateException(algorithm + " got the diff wrong");
+                }
+            }
+            sizes.add(lines >= 1000000 ? (lines / 1000000) + "M" : (lines / 1000) + "K");
+            myersTimes.add(best(() -> Diff.diff(base, ours, Diff.Algorithm.MYERS)));
+            patienceTimes.add(best(() -> Diff.diff(base, ours, Diff.Algorithm.PATIENCE)));
+            mergeTimes.add(best(() -> Diff.merge(base, ours, theirs, Diff.Algorithm.MYERS)));
+        }
+        printTimingTable(sizes, myersTimes, patienceTimes, mergeTimes);
+    }
+
+    /** Returns LINES lines that look like code, many of them repeated. */
+    private static List<String> text(int lines, Random random) {
+        String[] common = {"}\n", "\n", "    return result;\n", "        }\n", "    }\n"};
+        List<String> result = new ArrayList<>(lines);
+        for (int i = 0; i < lines; i += 1) {
+            if (random.nextInt(4) == 0) {
+                result.add(common[random.nextInt(common.length)]);
+            } else {
+                result.add("    int value" + i + " = compute(" + random.nextInt(1000) + ");\n");
+            }
+        }
+        return result;
+    }
+
+    /** Returns a copy of LINES with EDITS lines changed, inserted or removed at random. */
+    private static List<String> edit(List<String> lines, int edits, Random random) {
+        List<String> result = new ArrayList<>(lines);
+        for (int e = 0; e < edits; e += 1) {
+            int at = random.nextInt(result.size());
+            switch (random.nextInt(3)) {
+                case 0:
+                    result.set(at, "    changed(" + e + ");\n");
+                    break;
+                case 1:
+                    result.add(at, "    inserted(" + e + ");\n");
+                    break;
+                default:
+                    result.remove(at);
+                    break;
+            }
+        }
+        return result;
+    }
+
+    /** Returns A with HUNKS applied, taking the new lines from B. */
+    private static List<String> apply(List<String> a, List<Diff.Hunk> hunks, List<String> b) {
+        List<String> result = new ArrayList<>();
+        int pos = 0;
+        for (Diff.Hunk hunk : hunks) {
+            result.addAll(a.subList(pos, hunk.aStart));
+            result.addAll(b.subList(hunk.bStart, hunk.bEnd));
+            pos = hunk.aEnd;
+        }
+        result.addAll(a.subList(pos, a.size()));
+        return result;
+    }
+
+    /** Returns the fastest of a few runs of TASK, in milliseconds. */
+    private static double best(Runnable task) {
+        double best = Double.MAX_VALUE;
+        for (int run = 0; run < 5; run += 1) {
+            long start = System.nanoTime();
+            task.run();
+            best = Math.min(best, (System.nanoTime() - start) / 1e6);
+        }
+        return best;
+    }
+}
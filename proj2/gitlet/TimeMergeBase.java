@@ -0,0 +1,195 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Times CommitGraph.mergeBase() against the old way of finding a split point
+ * (collect every ancestor of both commits, intersect them) on a synthetic history,
+ * and ReachabilityBitmaps.mergeBase() once the bitmaps of both commits exist.
+ * <p>
+ * The history is a master line of N commits, with a side branch forking off
+ * every 100 commits and merged back 50 commits later. The two commits we merge
+ * fork off master DIVERGENCE commits below its head, like a topic branch.
+ * The old way is timed on the graph as well, so the numbers below don't even
+ * include reading the commits from disk, which it also had to do. Building
+ * the bitmaps the first time walks the history once and is timed separately.
+ * The last two columns ask whether the first commit is an ancestor of a head,
+ * the question merge asks about a branch that was merged long ago, which makes
+ * the graph walk the whole history.
+ * <p>
+ * Usage: java gitlet.TimeMergeBase [N]
+ *
+ * @author Linde
+ */
+public class TimeMergeBase {
+
+    private static final int DIVERGENCE = 20;
+
+    private static void printTimingTable(List<Integer> Ns, List<Double> oldTimes,
+                                         List<Double> graphTimes, List<Double> loadTimes,
+                                         List<Double> buildTimes, List<Double> bitmapTimes,
+                                         List<Double> graphMergedTimes,
+                                         List<Double> bitmapMergedTimes) {
+        System.out.printf("%10s %10s %10s %12s %14s %12s %14s %16s\n", "N", "old (ms)",
+                "graph (ms)", "load (ms)", "build bm (ms)", "bitmaps (ms)",
+                "merged? graph", "merged? bitmaps");
+        System.out.printf("----------------------------------------------------------------"
+                + "------------------------------------------\n");
+        for (int i = 0; i < Ns.size(); i += 1) {
+            System.out.printf("%10d %10.3f %10.3f %12.3f %14.3f %12.3f %14.3f %16.3f\n",
+                    Ns.get(i), oldTimes.get(i), graphTimes.get(i), loadTimes.get(i),
+                    buildTimes.get(i), bitmapTimes.get(i), graphMergedTimes.get(i),
+                    bitmapMergedTimes.get(i));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int maxN = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        List<Integer> Ns = new ArrayList<>();
+        List<Double> oldTimes = new ArrayList<>();
+        List<Double> graphTimes = new ArrayList<>();
+        List<Double> loadTimes = new ArrayList<>();
+        List<Double> buildTimes = new ArrayList<>();
+        List<Double> bitmapTimes = new ArrayList<>();
+        List<Double> graphMergedTimes = new ArrayList<>();
+        List<Double> bitmapMergedTimes = new ArrayList<>();
+        for (int N = 1000; N <= maxN; N *= 10) {
+            File graphFile = Files.createTempFile("commit-graph", "").toFile();
+            graphFile.delete();
+            CommitGraph graph = buildHistory(graphFile, N);
+            int current = graph.size() - 1;
+            int target = graph.size() - 2;
+
+            // warm up both, then take the best of a few runs
+            int expected = graph.mergeBase(current, target);
+            if (oldMergeBase(graph, current, target) != expected) {
+                throw new IllegalStateException("the two ways disagree");
+            }
+            Ns.add(N);
+            oldTimes.add(best(() -> oldMergeBase(graph, current, target)));
+            graphTimes.add(best(() -> graph.mergeBase(current, target)));
+
+            File bitmapsFile = new File(graphFile.getPath() + "-bitmaps");
+            buildTimes.add(best(() -> {
+                ReachabilityBitmaps fresh = ReachabilityBitmaps.read(bitmapsFile, graph);
+                fresh.bitmapOf(current);
+                fresh.bitmapOf(target);
+            }));
+            ReachabilityBitmaps bitmaps = ReachabilityBitmaps.read(bitmapsFile, graph);
+            if (bitmaps.mergeBase(current, target) != expected) {
+                throw new IllegalStateException("the bitmaps disagree");
+            }
+            bitmapTimes.add(best(() -> bitmaps.mergeBase(current, target)));
+            if (!graph.isAncestor(0, current) || !bitmaps.isAncestor(0, current)) {
+                throw new IllegalStateException("the first commit is not an ancestor");
+            }
+            graphMergedTimes.add(best(() -> graph.isAncestor(0, current)));
+            bitmapMergedTimes.add(best(() -> bitmaps.isAncestor(0, current)));
+
+            try (LockFile lock = LockFile.acquire(graphFile)) {
+                graph.write(lock);
+            }
+            loadTimes.add(best(() -> CommitGraph.read(graphFile).size()));
+            graphFile.delete();
+        }
+        printTimingTable(Ns, oldTimes, graphTimes, loadTimes, buildTimes, bitmapTimes,
+                graphMergedTimes, bitmapMergedTimes);
+    }
+
+    /**
+     * Builds the history described above and adds two branches, each DIVERGENCE
+     * commits long, that fork off master DIVERGENCE commits below its head.
+     * The last two positions of the graph are the heads of the two branches.
+     */
+    private static CommitGraph buildHistory(File graphFile, int N) {
+        CommitGraph graph = CommitGraph.read(graphFile);
+        List<String> master = new ArrayList<>();
+        String side = null;
+        int made = 0;
+        master.add(fakeSha1(made++));
+        graph.add(master.get(0), List.of(), 0);
+        while (master.size() < N) {
+            String parent = master.get(master.size() - 1);
+            if (master.size() % 100 == 0) {
+                side = fakeSha1(made++);
+                graph.add(side, List.of(parent), made);
+            } else if (side != null && master.size() % 100 < 50) {
+                String next = fakeSha1(made++);
+                graph.add(next, List.of(side), made);
+                side = next;
+            }
+            String commit = fakeSha1(made++);
+            if (side != null && master.size() % 100 == 50) {
+                graph.add(commit, List.of(parent, side), made);
+                side = null;
+            } else {
+                graph.add(commit, List.of(parent), made);
+            }
+            master.add(commit);
+        }
+        String fork = master.get(master.size() - 1 - DIVERGENCE);
+        String[] heads = {fork, fork};
+        for (int i = 0; i < DIVERGENCE; i += 1) {
+            for (int k = 0; k < 2; k += 1) {
+                String next = fakeSha1(made++);
+                graph.add(next, List.of(heads[k]), made);
+                heads[k] = next;
+            }
+        }
+        return graph;
+    }
+
+    /** The old algorithm: every ancestor of both, intersected, the newest one wins. */
+    private static int oldMergeBase(CommitGraph graph, int a, int b) {
+        Set<Integer> ancestorsOfA = ancestors(graph, a);
+        Set<Integer> ancestorsOfB = ancestors(graph, b);
+        ancestorsOfA.retainAll(ancestorsOfB);
+        int best = -1;
+        for (int position : ancestorsOfA) {
+            if (best < 0 || graph.generationOf(position) > graph.generationOf(best)
+                    || (graph.generationOf(position) == graph.generationOf(best) && position > best)) {
+                best = position;
+            }
+        }
+        return best;
+    }
+
+    private static Set<Integer> ancestors(CommitGraph graph, int position) {
+        Set<Integer> result = new HashSet<>();
+        Deque<Integer> stack = new ArrayDeque<>();
+        stack.push(position);
+        result.add(position);
+        while (!stack.isEmpty()) {
+            int p = stack.pop();
+            for (int parent : new int[]{graph.firstParentOf(p), graph.secondParentOf(p)}) {
+                if (parent != CommitGraph.NO_PARENT && result.add(parent)) {
+                    stack.push(parent);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static String fakeSha1(int i) {
+        return Utils.sha1(Integer.toString(i));
+    }
+
+    /** Returns the fastest of a few runs of TASK in milliseconds. */
+    private static double best(Runnable task) {
+        double best = Double.MAX_VALUE;
+        for (int run = 0; run < 5; run += 1) {
+            long start = System.nanoTime();
+            task.run();
+            best = Math.min(best, (System.nanoTime() - start) / 1e6);
+        }
+        return best;
+    }
+}
@@ -0,0 +1,94 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Formatter;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Times hashing a file the old way (read it all into a byte[], a new
+ * MessageDigest, a Formatter for the hex digits) against Utils.sha1(File),
+ * which streams the file through a reused direct buffer and digest.
+ * <p>
+ * Usage: java gitlet.TimeSha1 [largest size in MB]
+ *
+ * @author Linde
+ */
+public class TimeSha1 {
+
+    private static void printTimingTable(List<String> sizes, List<Double> oldTimes,
+                                         List<Double> newTimes) {
+        System.out.printf("%12s %16s %16s\n", "size", "old (ms)", "streaming (ms)");
+        System.out.printf("------------------------------------------------\n");
+        for (int i = 0; i < sizes.size(); i += 1) {
+            System.out.printf("%12s %16.3f %16.3f\n", sizes.get(i),
+                    oldTimes.get(i), newTimes.get(i));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int maxMegabytes = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        List<String> sizes = new ArrayList<>();
+        List<Double> oldTimes = new ArrayList<>();
+        List<Double> newTimes = new ArrayList<>();
+        for (long size = 1 << 10; size <= ((long) maxMegabytes << 20); size <<= 4) {
+            File file = Files.createTempFile("sha1", "").toFile();
+            fill(file, size);
+            if (!oldSha1(file).equals(Utils.sha1(file))) {
+                throw new IllegalStateException("the two ways disagree");
+            }
+            // small files are hashed many times per run so the clock can see them
+            int repeat = (int) Math.max(1, (1 << 20) / size);
+            sizes.add(size < (1 << 20) ? (size >> 10) + " KB" : (size >> 20) + " MB");
+            oldTimes.add(best(() -> oldSha1(file), repeat));
+            newTimes.add(best(() -> Utils.sha1(file), repeat));
+            file.delete();
+        }
+        printTimingTable(sizes, oldTimes, newTimes);
+    }
+
+    /** The old way, like Utils.sha1(Utils.readContents(FILE)) used to be. */
+    private static String oldSha1(File file) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update(Files.readAllBytes(file.toPath()));
+            Formatter result = new Formatter();
+            for (byte b : md.digest()) {
+                result.format("%02x", b);
+            }
+            return result.toString();
+        } catch (IOException | NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static void fill(File file, long size) throws IOException {
+        Random random = new Random(size);
+        byte[] chunk = new byte[1 << 16];
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            for (long written = 0; written < size; written += chunk.length) {
+                random.nextBytes(chunk);
+                out.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+            }
+        }
+    }
+
+    /** Returns the fastest of a few runs of TASK, REPEAT times each, in milliseconds per call. */
+    private static double best(Runnable task, int repeat) {
+        double best = Double.MAX_VALUE;
+        for (int run = 0; run < 5; run += 1) {
+            long start = System.nanoTime();
+            for (int i = 0; i < repeat; i += 1) {
+                task.run();
+            }
+            best = Math.min(best, (System.nanoTime() - start) / 1e6 / repeat);
+        }
+        return best;
+    }
+}
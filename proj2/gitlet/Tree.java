@@ -0,0 +1,199 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * One directory of a commit: the name of every file and subdirectory in it,
+ * with the sha1 of the blob or of the tree of the subdirectory.
+ * <p>
+ * A tree is named after the sha1 of its encoding, like a commit, so two commits
+ * that have the same directory share its tree, and a commit that changes one
+ * file only writes the trees on the path from the root to that file.
+ * <p>
+ * The encoding looks like this, all integers are big-endian:
+ * <pre>
+ *     magic     4 bytes  "GLTR"
+ *     version   1 byte   1
+ *     count     4 bytes  number of entries
+ *     entries   for every entry, sorted by name:
+ *               1 byte type (FILE or TREE), 4 bytes length + UTF-8 name,
+ *               20 bytes sha1
+ * </pre>
+ *
+ * @author Linde
+ */
+class Tree {
+
+    /** an entry that is a file, its sha1 names a blob */
+    static final int FILE = 1;
+    /** an entry that is a subdirectory, its sha1 names a tree */
+    static final int TREE = 2;
+
+    private static final byte[] MAGIC = {'G', 'L', 'T', 'R'};
+    private static final int VERSION = 1;
+
+    /** One file or subdirectory. */
+    static class Entry {
+        final String name;
+        final int type;
+        final String sha1;
+
+        Entry(String name, int type, String sha1) {
+            this.name = name;
+            this.type = type;
+            this.sha1 = sha1;
+        }
+    }
+
+    /** name->entry, sorted so that encode() is deterministic */
+    private final TreeMap<String, Entry> entries = new TreeMap<>();
+
+    Entry get(String name) {
+        return entries.get(name);
+    }
+
+    void put(String name, int type, String sha1) {
+        entries.put(name, new Entry(name, type, sha1));
+    }
+
+    void remove(String name) {
+        entries.remove(name);
+    }
+
+    /** Returns the entries sorted by name. */
+    Collection<Entry> getEntries() {
+        return entries.values();
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(entries.size());
+            for (Entry entry : entries.values()) {
+                byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+                out.writeByte(entry.type);
+                out.writeInt(name.length);
+                out.write(name);
+                out.write(Utils.fromHex(entry.sha1));
+            }
+        } catch (IOException excp) {
+            throw new GitletException(excp.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    static Tree decode(byte[] bytes) {
+        Tree tree = new Tree();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            for (byte b : MAGIC) {
+                if (in.readByte() != b) {
+                    throw new GitletException("Not a tree.");
+                }
+            }
+            int version = in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new GitletException("Unsupported tree version " + version + ".");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i += 1) {
+                int type = in.readUnsignedByte();
+                byte[] name = new byte[in.readInt()];
+                in.readFully(name);
+                byte[] sha1 = new byte[Utils.UID_BYTES];
+                in.readFully(sha1);
+                tree.put(new String(name, StandardCharsets.UTF_8), type, Utils.toHex(sha1));
+            }
+        } catch (IOException excp) {
+            throw new GitletException(excp.getMessage());
+        }
+        return tree;
+    }
+
+    /**
+     * Returns the sha1 of the tree ROOTSHA1 with CHANGES applied, writing
+     * every new tree into STORE. CHANGES maps a path like "dir/sub/a.txt"
+     * to the sha1 of its new blob, or to null to remove it. Only the trees of
+     * the directories that have a change are read and written again, every
+     * other subdirectory keeps its tree. A directory left empty disappears.
+     *
+     * @param rootSha1 the tree we start from, null for an empty one
+     */
+    static String update(ObjectStore store, String rootSha1, SortedMap<String, String> changes) {
+        String sha1 = updateSubtree(store, rootSha1, changes);
+        return sha1 != null ? sha1 : store.writeTree(new Tree());
+    }
+
+    /** Writes the trees of the flat filename->blob MAP and returns the sha1 of the root. */
+    static String fromMap(ObjectStore store, SortedMap<String, String> map) {
+        return update(store, null, map);
+    }
+
+    /** Returns the path->blob mapping of every file under the tree TREESHA1. */
+    static TreeMap<String, String> flatten(ObjectStore store, String treeSha1) {
+        TreeMap<String, String> map = new TreeMap<>();
+        flatten(store, treeSha1, "", map);
+        return map;
+    }
+
+    private static void flatten(ObjectStore store, String treeSha1, String prefix,
+                                TreeMap<String, String> map) {
+        for (Entry entry : store.readTree(treeSha1).getEntries()) {
+            if (entry.type == TREE) {
+                flatten(store, entry.sha1, prefix + entry.name + "/", map);
+            } else {
+                map.put(prefix + entry.name, entry.sha1);
+            }
+        }
+    }
+
+    /** Like update(), but returns null instead of writing an empty tree. */
+    private static String updateSubtree(ObjectStore store, String treeSha1,
+                                        SortedMap<String, String> changes) {
+        Tree tree = treeSha1 == null ? new Tree() : store.readTree(treeSha1);
+        // the changes in subdirectories, grouped by the name of the subdirectory
+        TreeMap<String, SortedMap<String, String>> subdirChanges = new TreeMap<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            String path = change.getKey();
+            int slash = path.indexOf('/');
+            if (slash < 0) {
+                if (change.getValue() == null) {
+                    tree.remove(path);
+                } else {
+                    tree.put(path, FILE, change.getValue());
+                }
+            } else {
+                subdirChanges.computeIfAbsent(path.substring(0, slash), k -> new TreeMap<>())
+                        .put(path.substring(slash + 1), change.getValue());
+            }
+        }
+        for (Map.Entry<String, SortedMap<String, String>> subdir : subdirChanges.entrySet()) {
+            Entry entry = tree.get(subdir.getKey());
+            String subtreeSha1 = entry != null && entry.type == TREE ? entry.sha1 : null;
+            String newSubtreeSha1 = updateSubtree(store, subtreeSha1, subdir.getValue());
+            if (newSubtreeSha1 == null) {
+                tree.remove(subdir.getKey());
+            } else {
+                tree.put(subdir.getKey(), TREE, newSubtreeSha1);
+            }
+        }
+        if (tree.isEmpty()) {
+            return null;
+        }
+        return store.writeTree(tree);
+    }
+}
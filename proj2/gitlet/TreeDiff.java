@@ -0,0 +1,125 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Finds the files that differ between two trees.
+ * <p>
+ * Both trees are walked side by side, and a subdirectory whose tree has the
+ * same sha1 on both sides is skipped without reading it, since it can't hold
+ * any difference. Comparing two commits that changed a few files only reads
+ * the trees on the paths to those files.
+ *
+ * @author Linde
+ */
+class TreeDiff {
+
+    /** A file that was added (oldSha1 is null), removed (newSha1 is null) or changed. */
+    static class Change {
+        final String path;
+        final String oldSha1;
+        final String newSha1;
+
+        Change(String path, String oldSha1, String newSha1) {
+            this.path = path;
+            this.oldSha1 = oldSha1;
+            this.newSha1 = newSha1;
+        }
+    }
+
+    private TreeDiff() {
+    }
+
+    /** Returns the changes from the tree OLDTREESHA1 to NEWTREESHA1, directory by directory. */
+    static List<Change> diff(ObjectStore store, String oldTreeSha1, String newTreeSha1) {
+        List<Change> changes = new ArrayList<>();
+        diff(store, oldTreeSha1, newTreeSha1, "", changes);
+        return changes;
+    }
+
+    /**
+     * Returns the changes from the flat filename->blob map OLDMAP to NEWMAP, sorted by path,
+     * for commits that were written before there were trees.
+     */
+    static List<Change> diff(Map<String, String> oldMap, Map<String, String> newMap) {
+        TreeSet<String> paths = new TreeSet<>(oldMap.keySet());
+        paths.addAll(newMap.keySet());
+        List<Change> changes = new ArrayList<>();
+        for (String path : paths) {
+            String oldSha1 = oldMap.get(path);
+            String newSha1 = newMap.get(path);
+            if (oldSha1 == null || !oldSha1.equals(newSha1)) {
+                changes.add(new Change(path, oldSha1, newSha1));
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Adds the changes between the trees OLDSHA1 and NEWSHA1, either of which may be
+     * null for a directory that doesn't exist on that side, to CHANGES.
+     */
+    private static void diff(ObjectStore store, String oldSha1, String newSha1, String prefix,
+                             List<Change> changes) {
+        if (oldSha1 != null && oldSha1.equals(newSha1)) {
+            return;
+        }
+        Iterator<Tree.Entry> oldEntries = entriesOf(store, oldSha1);
+        Iterator<Tree.Entry> newEntries = entriesOf(store, newSha1);
+        Tree.Entry oldEntry = next(oldEntries);
+        Tree.Entry newEntry = next(newEntries);
+        // both sides are sorted by name, so we walk them like the merge step of merge sort
+        while (oldEntry != null || newEntry != null) {
+            int cmp = oldEntry == null ? 1
+                    : newEntry == null ? -1 : oldEntry.name.compareTo(newEntry.name);
+            if (cmp < 0) {
+                entryChanged(store, prefix, oldEntry, null, changes);
+                oldEntry = next(oldEntries);
+            } else if (cmp > 0) {
+                entryChanged(store, prefix, null, newEntry, changes);
+                newEntry = next(newEntries);
+            } else {
+                if (!oldEntry.sha1.equals(newEntry.sha1) || oldEntry.type != newEntry.type) {
+                    entryChanged(store, prefix, oldEntry, newEntry, changes);
+                }
+                oldEntry = next(oldEntries);
+                newEntry = next(newEntries);
+            }
+        }
+    }
+
+    /**
+     * Adds the changes of one name in a directory, OLDENTRY and NEWENTRY have that
+     * name on either side, one of them may be null. A file can also have been
+     * replaced by a directory of the same name, or the other way around.
+     */
+    private static void entryChanged(ObjectStore store, String prefix, Tree.Entry oldEntry,
+                                     Tree.Entry newEntry, List<Change> changes) {
+        String path = prefix + (oldEntry != null ? oldEntry.name : newEntry.name);
+        String oldFile = oldEntry != null && oldEntry.type == Tree.FILE ? oldEntry.sha1 : null;
+        String newFile = newEntry != null && newEntry.type == Tree.FILE ? newEntry.sha1 : null;
+        String oldTree = oldEntry != null && oldEntry.type == Tree.TREE ? oldEntry.sha1 : null;
+        String newTree = newEntry != null && newEntry.type == Tree.TREE ? newEntry.sha1 : null;
+        if (oldFile != null || newFile != null) {
+            changes.add(new Change(path, oldFile, newFile));
+        }
+        if (oldTree != null || newTree != null) {
+            diff(store, oldTree, newTree, path + "/", changes);
+        }
+    }
+
+    private static Iterator<Tree.Entry> entriesOf(ObjectStore store, String treeSha1) {
+        if (treeSha1 == null) {
+            return new ArrayList<Tree.Entry>().iterator();
+        }
+        return store.readTree(treeSha1).getEntries().iterator();
+    }
+
+    private static Tree.Entry next(Iterator<Tree.Entry> entries) {
+        return entries.hasNext() ? entries.next() : null;
+    }
+}
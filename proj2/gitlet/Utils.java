@@ -4,18 +4,24 @@ import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
-import java.util.Formatter;
 import java.util.List;
 
 
@@ -33,36 +39,118 @@ class Utils {
 
     /* SHA-1 HASH VALUES. */
 
+    /** A SHA-1 digest per thread, reused by every hash computed on it. */
+    private static final ThreadLocal<MessageDigest> SHA1_DIGEST =
+        ThreadLocal.withInitial(() -> {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException excp) {
+                throw new IllegalArgumentException("System does not support SHA-1");
+            }
+        });
+
+    /** The size of the buffer sha1(File) reads through. */
+    private static final int HASH_BUFFER_SIZE = 1 << 16;
+
+    /** A direct buffer per thread for sha1(File), so hashing a file of any
+     *  size takes the same HASH_BUFFER_SIZE bytes of memory. */
+    private static final ThreadLocal<ByteBuffer> HASH_BUFFER =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(HASH_BUFFER_SIZE));
+
     /** Returns the SHA-1 hash of the concatenation of VALS, which may
      *  be any mixture of byte arrays and Strings. */
     static String sha1(Object... vals) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            for (Object val : vals) {
-                if (val instanceof byte[]) {
-                    md.update((byte[]) val);
-                } else if (val instanceof String) {
-                    md.update(((String) val).getBytes(StandardCharsets.UTF_8));
-                } else {
-                    throw new IllegalArgumentException("improper type to sha1");
-                }
+        MessageDigest md = SHA1_DIGEST.get();
+        md.reset();
+        for (Object val : vals) {
+            if (val instanceof byte[]) {
+                md.update((byte[]) val);
+            } else if (val instanceof String) {
+                md.update(((String) val).getBytes(StandardCharsets.UTF_8));
+            } else {
+                md.reset();
+                throw new IllegalArgumentException("improper type to sha1");
             }
-            Formatter result = new Formatter();
-            for (byte b : md.digest()) {
-                result.format("%02x", b);
+        }
+        return toHex(md.digest());
+    }
+
+    /** Returns the SHA-1 hash of the contents of FILE, reading it through
+     *  a fixed-size buffer instead of loading it into memory.  FILE must
+     *  be a normal file.  Throws IllegalArgumentException in case of
+     *  problems. */
+    static String sha1(File file) {
+        if (!file.isFile()) {
+            throw new IllegalArgumentException("must be a normal file");
+        }
+        MessageDigest md = SHA1_DIGEST.get();
+        md.reset();
+        ByteBuffer buffer = HASH_BUFFER.get();
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                                                    StandardOpenOption.READ)) {
+            buffer.clear();
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                md.update(buffer);
+                buffer.clear();
             }
-            return result.toString();
-        } catch (NoSuchAlgorithmException excp) {
-            throw new IllegalArgumentException("System does not support SHA-1");
+            return toHex(md.digest());
+        } catch (IOException excp) {
+            md.reset();
+            throw new IllegalArgumentException(excp.getMessage());
         }
     }
 
+    /** Returns the SHA-1 hash of everything left in IN, read through a
+     *  fixed-size buffer. */
+    static String sha1(InputStream in) throws IOException {
+        MessageDigest md = SHA1_DIGEST.get();
+        md.reset();
+        byte[] buffer = new byte[HASH_BUFFER_SIZE];
+        try {
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                md.update(buffer, 0, n);
+            }
+        } catch (IOException excp) {
+            md.reset();
+            throw excp;
+        }
+        return toHex(md.digest());
+    }
+
     /** Returns the SHA-1 hash of the concatenation of the strings in
      *  VALS. */
     static String sha1(List<Object> vals) {
         return sha1(vals.toArray(new Object[vals.size()]));
     }
 
+    /** The length of a SHA-1 hash in bytes. */
+    static final int UID_BYTES = UID_LENGTH / 2;
+
+    /** The lower-case hexadecimal digits, indexed by their value. */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /** Returns the lower-case hexadecimal numeral of BYTES. */
+    static String toHex(byte[] bytes) {
+        char[] hex = new char[2 * bytes.length];
+        for (int i = 0; i < bytes.length; i += 1) {
+            hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /** Returns the bytes denoted by the hexadecimal numeral HEX, which
+     *  must have an even number of digits. */
+    static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i += 1) {
+            bytes[i] = (byte) ((Character.digit(hex.charAt(2 * i), 16) << 4)
+                               | Character.digit(hex.charAt(2 * i + 1), 16));
+        }
+        return bytes;
+    }
+
     /* FILE DELETION */
 
     /** Deletes FILE if it exists and is not a directory.  Returns true
@@ -136,6 +224,37 @@ class Utils {
         }
     }
 
+    /** Write CONTENTS to FILE so that no reader, and no crash, ever sees
+     *  half of it: CONTENTS go to a new temporary file in TEMPDIR, which must
+     *  be on the same file system as FILE, are synced to disk, and the
+     *  temporary file is then renamed over FILE.  Every call uses a temporary
+     *  file of its own, so concurrent writers can't clobber each other. */
+    static void writeContentsAtomically(File file, File tempDir, byte[] contents) {
+        Path tempFile = null;
+        try {
+            tempFile = Files.createTempFile(tempDir.toPath(), file.getName() + "-", ".tmp");
+            try (FileOutputStream out = new FileOutputStream(tempFile.toFile())) {
+                out.write(contents);
+                out.getFD().sync();
+            }
+            Files.move(tempFile, file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            if (tempFile != null) {
+                tempFile.toFile().delete();
+            }
+            throw new GitletException(excp.getMessage());
+        }
+    }
+
+    /** Force the contents of FILE to disk, so that renaming it into place
+     *  can't leave a name pointing at data that was never written. */
+    static void fsync(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
     /** Return an object of type T read from FILE, casting it to EXPECTEDCLASS.
      *  Throws IllegalArgumentException in case of problems. */
     static <T extends Serializable> T readObject(File file,